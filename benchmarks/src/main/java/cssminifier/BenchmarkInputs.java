@@ -0,0 +1,85 @@
+package cssminifier;
+
+/**
+ * Deterministic benchmark stylesheets. Each shape repeats a block of rules with numbered
+ * selectors until the requested size is reached, so larger inputs keep the same mix.
+ */
+final class BenchmarkInputs {
+
+    private BenchmarkInputs() {}
+
+    static String stylesheet(String shape, int targetBytes) {
+        StringBuilder sb = new StringBuilder(targetBytes + 1024);
+        int n = 0;
+        while (sb.length() < targetBytes) {
+            switch (shape) {
+                case "framework" -> appendFramework(sb, n);
+                case "utility" -> appendUtility(sb, n);
+                case "comments" -> appendComments(sb, n);
+                case "strings" -> appendStrings(sb, n);
+                case "minified" -> sb.append(CssMinifier.minify(frameworkBlock(n)));
+                default -> throw new IllegalArgumentException("Unknown shape: " + shape);
+            }
+            n++;
+        }
+        return sb.toString();
+    }
+
+    private static String frameworkBlock(int n) {
+        StringBuilder sb = new StringBuilder();
+        appendFramework(sb, n);
+        return sb.toString();
+    }
+
+    // Component-library style: nested media queries, shorthand candidates, hex colors, duplicates
+    private static void appendFramework(StringBuilder sb, int n) {
+        sb.append("/* Component ").append(n).append(" */\n");
+        sb.append(".btn-").append(n).append(" {\n")
+          .append("    display: inline-block;\n")
+          .append("    padding-top: 0.375rem;\n    padding-right: 0.75rem;\n")
+          .append("    padding-bottom: 0.375rem;\n    padding-left: 0.75rem;\n")
+          .append("    font-weight: normal;\n")
+          .append("    color: #FFFFFF;\n")
+          .append("    background-color: #0d6efd;\n")
+          .append("    border: 1px solid transparent;\n")
+          .append("    transition: color 0.15s ease-in-out, background-color 0.15s ease-in-out;\n")
+          .append("}\n");
+        sb.append(".btn-").append(n).append(":hover {\n    color: #ffffff;\n    color: #eeeeee;\n    outline: none;\n}\n");
+        sb.append(".btn-").append(n).append(":focus { box-shadow: 0 0 0 0.25rem rgba(49, 132, 253, 0.5); }\n");
+        sb.append("@media (min-width: 768px) {\n")
+          .append("    .col-md-").append(n).append(" { flex: 0 0 auto; width: 50%; margin-left: 0px; }\n")
+          .append("    .col-md-").append(n).append(" { max-width: 100%; }\n")
+          .append("}\n");
+        sb.append("@keyframes spin-").append(n).append(" {\n    from { transform: rotate3d(0, 0, 1, 0deg); }\n")
+          .append("    100% { transform: rotate3d(0, 0, 1, 360deg); }\n}\n\n");
+    }
+
+    // Utility-first style: thousands of tiny single-declaration rules
+    private static void appendUtility(StringBuilder sb, int n) {
+        sb.append(".m-").append(n).append(" { margin: ").append(n % 16 * 0.25).append("rem; }\n");
+        sb.append(".p-").append(n).append(" { padding: ").append(n % 16 * 0.25).append("rem; }\n");
+        sb.append(".text-").append(n).append(" { color: #").append(n % 2 == 0 ? "112233" : "1a2b3c").append("; }\n");
+        sb.append(".w-").append(n).append(" { width: ").append(n % 100).append("%; }\n");
+        sb.append(".hover\\:opacity-").append(n).append(":hover { opacity: 0.").append(n % 10).append("; }\n");
+    }
+
+    // Heavily documented source: comment bytes outweigh declarations
+    private static void appendComments(StringBuilder sb, int n) {
+        sb.append("/*\n * Section ").append(n).append("\n *\n")
+          .append(" * Describes the layout of the card component, its spacing rules and the\n")
+          .append(" * interaction states. Keep in sync with the design tokens document.\n */\n");
+        sb.append(".card-").append(n).append(" {\n    /* spacing */\n    margin: 0 auto; /* centered */\n")
+          .append("    /* colors */\n    color: #333333;\n}\n");
+        sb.append("/*! License block ").append(n).append(" */\n");
+    }
+
+    // String-heavy: content strings, quoted urls, attribute selectors and data URIs
+    private static void appendStrings(StringBuilder sb, int n) {
+        sb.append(".icon-").append(n).append("::before { content: \"\\f").append(100 + n % 800).append("\"; }\n");
+        sb.append("[data-state=\"open-").append(n).append("\"] { background-image: url(\"img/bg-").append(n).append(".png\"); }\n");
+        sb.append(".logo-").append(n).append(" { background: url(\"data:image/svg+xml;charset=utf8,")
+          .append("%3Csvg xmlns='http://www.w3.org/2000/svg' viewBox='0 0 8 8'%3E%3Cpath fill='%23fff' ")
+          .append("d='M2.3 6.73L.6 4.53c-.4-1.04.46-1.4 1.1-.8l1.1 1.4 3.4-3.8c.6-.63 1.6-.27 1.2.7l-4 4.6c-.43.5-.8.4-1.1.1z'/%3E%3C/svg%3E\"); }\n");
+        sb.append(".quote-").append(n).append("::after { content: 'it\\'s ; {not} a rule'; font-family: \"Helvetica Neue\", Arial; }\n");
+    }
+}
@@ -0,0 +1,43 @@
+package cssminifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The first {@link CssMinifier#minify} call in a fresh JVM on a 5 KB stylesheet, which is what a
+ * command-line run pays: class loading and initialization and interpreted code, but not JVM
+ * start-up itself. Each fork measures one call. Run with
+ * {@code -jvmArgsAppend -XX:SharedArchiveFile=../target/css-minifier.jsa} to see the effect of
+ * the AppCDS archive built by {@code mvn -Pstartup package}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(20)
+@State(Scope.Benchmark)
+public class ColdStartBenchmark {
+
+    private String css;
+
+    @Setup
+    public void setUp() {
+        // Builds the input without touching CssMinifier, so that its initialization is measured
+        css = BenchmarkInputs.stylesheet("framework", 5 * 1024);
+    }
+
+    @Benchmark
+    public String firstMinify() {
+        return CssMinifier.minify(css);
+    }
+}
@@ -0,0 +1,347 @@
+package cssminifier;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Deterministic generator of realistic CSS for benchmarks and scaling tests. The same seed and
+ * settings always produce the same bytes. Output is streamed to an {@link Appendable}, so corpora
+ * far larger than the heap can be written to disk.
+ *
+ * <pre>
+ * String css = new CssCorpusGenerator().seed(7).rules(500).commentRatio(0.3).generate();
+ * </pre>
+ */
+public final class CssCorpusGenerator {
+
+    private static final String[] PROPERTIES = {
+        "color", "background-color", "border-color", "width", "height", "max-width", "min-height",
+        "line-height", "font-size", "font-weight", "opacity", "z-index", "display", "position",
+        "top", "left", "transform", "transition", "box-shadow", "border-radius", "outline",
+        "background", "flex", "gap", "text-align", "cursor", "content"};
+    private static final String[] KEYWORDS = {
+        "auto", "none", "inherit", "block", "inline-block", "flex", "relative", "absolute",
+        "center", "pointer", "transparent", "bold", "normal"};
+    private static final String[] UNITS = {"px", "em", "rem", "%", "vh", "vw", "deg", "s"};
+    private static final String[] SIDES = {"top", "right", "bottom", "left"};
+    private static final String[] PREFIXES = {"-webkit-", "-moz-", "-ms-"};
+    private static final String[] ELEMENTS = {"a", "div", "span", "ul>li", "button", "input", "p", "h1"};
+    private static final String[] PSEUDO = {":hover", ":focus", "::before", "::after", ":first-child", ":not(.active)"};
+    private static final String[] MEDIA = {
+        "@media (min-width: 576px)", "@media (min-width: 768px)", "@media screen and (max-width: 1199.98px)",
+        "@media (prefers-reduced-motion: reduce)", "@supports (display: grid)", "@media print"};
+
+    // Recently emitted rules, replayed for the duplicate-rule ratio (bounded for multi-GB output)
+    private static final int HISTORY = 64;
+
+    private long seed = 1;
+    private long rules = 1000;
+    private int declarationsPerRule = 6;
+    private int mediaDepth = 2;
+    private double stringDensity = 0.05;
+    private double escapeDensity = 0.02;
+    private double dataUriDensity = 0.01;
+    private double commentRatio = 0.1;
+    private double duplicateRatio = 0.05;
+
+    public CssCorpusGenerator seed(long seed) { this.seed = seed; return this; }
+
+    /** Number of top-level rules (including rules inside @media blocks). */
+    public CssCorpusGenerator rules(long rules) { this.rules = rules; return this; }
+
+    /** Mean declarations per rule; actual counts vary from 1 to twice this value. */
+    public CssCorpusGenerator declarationsPerRule(int count) { this.declarationsPerRule = count; return this; }
+
+    /** Maximum nesting of @media / @supports blocks; 0 disables them. */
+    public CssCorpusGenerator mediaDepth(int depth) { this.mediaDepth = depth; return this; }
+
+    /** Probability that a declaration value is a quoted string. */
+    public CssCorpusGenerator stringDensity(double p) { this.stringDensity = p; return this; }
+
+    /** Probability that a string or selector contains a backslash escape. */
+    public CssCorpusGenerator escapeDensity(double p) { this.escapeDensity = p; return this; }
+
+    /** Probability that a declaration is a background with an inline data URI. */
+    public CssCorpusGenerator dataUriDensity(double p) { this.dataUriDensity = p; return this; }
+
+    /** Probability of a comment before each rule and each declaration. */
+    public CssCorpusGenerator commentRatio(double p) { this.commentRatio = p; return this; }
+
+    /** Probability that a rule repeats an earlier one (half of them directly adjacent). */
+    public CssCorpusGenerator duplicateRatio(double p) { this.duplicateRatio = p; return this; }
+
+    public String generate() {
+        StringBuilder sb = new StringBuilder();
+        writeTo(sb, Long.MAX_VALUE);
+        return sb.toString();
+    }
+
+    /** Generates rules until roughly {@code targetChars} characters are written, ignoring {@link #rules}. */
+    public String generate(int targetChars) {
+        StringBuilder sb = new StringBuilder(targetChars + 4096);
+        emit(sb, Long.MAX_VALUE, targetChars);
+        return sb.toString();
+    }
+
+    /**
+     * Writes the corpus to {@code out}, stopping after {@link #rules} rules or once at least
+     * {@code maxChars} characters were written, whichever comes first.
+     */
+    public void writeTo(Appendable out, long maxChars) {
+        emit(out, rules, maxChars);
+    }
+
+    private void emit(Appendable out, long maxRules, long maxChars) {
+        try {
+            new Run(out, maxRules, maxChars).emit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private final class Run {
+        private final SplittableRandom random = new SplittableRandom(seed);
+        private final Appendable out;
+        private final long maxRules;
+        private final long maxChars;
+        private final String[] history = new String[HISTORY];
+        private long written;
+        private long emittedRules;
+        private long historyCount; // rules put in history; keyframes count as rules but are not
+
+        Run(Appendable out, long maxRules, long maxChars) {
+            this.out = out;
+            this.maxRules = maxRules;
+            this.maxChars = maxChars;
+        }
+
+        private boolean done() {
+            return emittedRules >= maxRules || written >= maxChars;
+        }
+
+        private void write(CharSequence s) throws IOException {
+            out.append(s);
+            written += s.length();
+        }
+
+        void emit() throws IOException {
+            write("/*! Generated corpus, seed " + seed + " */\n");
+            while (!done()) {
+                int roll = random.nextInt(100);
+                if (mediaDepth > 0 && roll < 8) {
+                    emitBlock(1);
+                } else if (roll < 10) {
+                    emitKeyframes();
+                } else {
+                    emitRule("");
+                }
+            }
+        }
+
+        private void emitBlock(int depth) throws IOException {
+            String indent = "    ".repeat(depth - 1);
+            write(indent + MEDIA[random.nextInt(MEDIA.length)] + " {\n");
+            int count = 1 + random.nextInt(4);
+            for (int i = 0; i < count && !done(); i++) {
+                if (depth < mediaDepth && random.nextInt(4) == 0) {
+                    emitBlock(depth + 1);
+                } else {
+                    emitRule(indent + "    ");
+                }
+            }
+            write(indent + "}\n");
+        }
+
+        private void emitKeyframes() throws IOException {
+            String name = "kf-" + emittedRules;
+            write("@keyframes " + name + " {\n    from { opacity: 0; transform: translate3d(0, 0, 0); }\n"
+                + "    50% { opacity: 0.5; transform: rotate3d(0, 0, 1, 180deg); }\n"
+                + "    100% { opacity: 1; transform: scale3d(1, 1, 1); }\n}\n");
+            emittedRules++;
+        }
+
+        private void emitRule(String indent) throws IOException {
+            if (random.nextDouble() < commentRatio) {
+                write(indent + "/* " + comment() + " */\n");
+            }
+            String rule;
+            if (historyCount > 0 && random.nextDouble() < duplicateRatio) {
+                // Half the duplicates repeat the previous rule (mergeable), half an older one
+                int back = random.nextBoolean() ? 1 : 1 + random.nextInt((int) Math.min(historyCount, HISTORY));
+                rule = history[(int) ((historyCount - back) % HISTORY)];
+            } else {
+                rule = newRule();
+            }
+            history[(int) (historyCount % HISTORY)] = rule;
+            historyCount++;
+            emittedRules++;
+            write(indent);
+            write(rule);
+        }
+
+        private String newRule() {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(selector());
+            if (random.nextInt(5) == 0) sb.append(", ").append(selector());
+            sb.append(" {\n");
+            int count = 1 + random.nextInt(Math.max(1, declarationsPerRule * 2));
+            for (int i = 0; i < count; i++) {
+                if (random.nextDouble() < commentRatio) {
+                    sb.append("    /* ").append(comment()).append(" */\n");
+                }
+                declaration(sb);
+            }
+            return sb.append("}\n").toString();
+        }
+
+        private String selector() {
+            StringBuilder sb = new StringBuilder();
+            switch (random.nextInt(6)) {
+                case 0 -> sb.append(ELEMENTS[random.nextInt(ELEMENTS.length)]);
+                case 1 -> sb.append('#').append("id-").append(random.nextInt(10_000));
+                case 2 -> sb.append("[data-state=\"").append(word()).append("\"]");
+                default -> sb.append('.').append(word()).append('-').append(random.nextInt(10_000));
+            }
+            if (random.nextDouble() < escapeDensity) sb.append("\\:md");
+            if (random.nextInt(4) == 0) sb.append(PSEUDO[random.nextInt(PSEUDO.length)]);
+            if (random.nextInt(5) == 0) sb.append(" > ").append(ELEMENTS[random.nextInt(ELEMENTS.length)]);
+            return sb.toString();
+        }
+
+        private void declaration(StringBuilder sb) {
+            sb.append("    ");
+            double roll = random.nextDouble();
+            if (roll < dataUriDensity) {
+                sb.append("background-image: url(\"data:image/svg+xml;charset=utf8,%3Csvg xmlns='http://www.w3.org/2000/svg'")
+                  .append(" viewBox='0 0 8 8'%3E%3Cpath fill='%23").append(hex(6)).append("' d='M0 0h")
+                  .append(random.nextInt(8)).append("v8H0z'/%3E%3C/svg%3E\");\n");
+                return;
+            }
+            if (roll < dataUriDensity + stringDensity) {
+                sb.append(random.nextBoolean() ? "content: " : "font-family: ").append(string()).append(";\n");
+                return;
+            }
+            switch (random.nextInt(12)) {
+                case 0 -> {
+                    // Full set of longhands, collapsible into a shorthand
+                    String property = random.nextBoolean() ? "margin" : "padding";
+                    for (String side : SIDES) {
+                        sb.append(property).append('-').append(side).append(": ").append(length()).append(";\n    ");
+                    }
+                    sb.append("display: block;\n");
+                }
+                case 1 -> {
+                    String property = random.nextBoolean() ? "transition" : "user-select";
+                    String value = property.equals("transition") ? "all 0.2s ease-in-out" : "none";
+                    for (String prefix : PREFIXES) sb.append(prefix).append(property).append(": ").append(value).append(";\n    ");
+                    sb.append(property).append(": ").append(value).append(";\n");
+                }
+                case 2 -> sb.append("--var-").append(word()).append(": ").append(length()).append(";\n");
+                case 3 -> sb.append("width: calc(100% - ").append(length()).append(");\n");
+                default -> {
+                    String property = PROPERTIES[random.nextInt(PROPERTIES.length)];
+                    sb.append(property).append(": ").append(value(property));
+                    if (random.nextInt(20) == 0) sb.append(" !important");
+                    sb.append(";\n");
+                }
+            }
+        }
+
+        private String value(String property) {
+            return switch (property) {
+                case "color", "background-color", "border-color" -> random.nextInt(3) == 0
+                    ? "rgba(" + random.nextInt(256) + ", " + random.nextInt(256) + ", 0, 0." + random.nextInt(10) + ")"
+                    : "#" + (random.nextBoolean() ? pairedHex() : hex(6));
+                case "transform" -> random.nextBoolean()
+                    ? "translate3d(0, 0, " + length() + ")" : "rotate3d(0, 0, 1, " + random.nextInt(360) + "deg)";
+                case "font-weight" -> random.nextBoolean() ? "bold" : "normal";
+                case "outline", "background" -> random.nextBoolean() ? "none" : "transparent";
+                case "content" -> string();
+                case "box-shadow" -> "0 0 0 " + length() + " rgba(0, 0, 0, 0.125)";
+                case "opacity" -> "0." + random.nextInt(100);
+                case "z-index" -> Integer.toString(random.nextInt(1000));
+                default -> random.nextInt(3) == 0 ? KEYWORDS[random.nextInt(KEYWORDS.length)] : length();
+            };
+        }
+
+        private String length() {
+            int kind = random.nextInt(4);
+            String unit = UNITS[random.nextInt(UNITS.length)];
+            if (kind == 0) return "0" + unit;
+            if (kind == 1) return "0." + (1 + random.nextInt(99)) + unit;
+            return random.nextInt(200) + unit;
+        }
+
+        private String string() {
+            char quote = random.nextInt(3) == 0 ? '\'' : '"';
+            StringBuilder sb = new StringBuilder().append(quote).append(word());
+            if (random.nextDouble() < escapeDensity * 10) {
+                sb.append(random.nextBoolean() ? "\\" + quote : "\\f10" + random.nextInt(10));
+            }
+            if (random.nextInt(4) == 0) sb.append(" ; { } ").append(word());
+            return sb.append(quote).toString();
+        }
+
+        private String pairedHex() {
+            StringBuilder sb = new StringBuilder(6);
+            for (int i = 0; i < 3; i++) {
+                char c = Character.forDigit(random.nextInt(16), 16);
+                sb.append(c).append(c);
+            }
+            return sb.toString();
+        }
+
+        private String hex(int digits) {
+            StringBuilder sb = new StringBuilder(digits);
+            for (int i = 0; i < digits; i++) sb.append(Character.forDigit(random.nextInt(16), 16));
+            return sb.toString();
+        }
+
+        private String word() {
+            int length = 3 + random.nextInt(8);
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < length; i++) sb.append((char) ('a' + random.nextInt(26)));
+            return sb.toString();
+        }
+
+        private String comment() {
+            return random.nextInt(10) == 0
+                ? "TODO: " + word() + " " + word() + " after the " + word() + " refactor"
+                : word() + " " + word();
+        }
+    }
+
+    /**
+     * Writes a corpus file: {@code CssCorpusGenerator <output.css> <size>[k|m|g] [seed]}.
+     * Useful for scaling runs beyond what fits in a JMH parameter.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CssCorpusGenerator <output.css> <size>[k|m|g] [seed]");
+            System.exit(1);
+        }
+        long size = parseSize(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(Path.of(args[0]), StandardCharsets.UTF_8), 1 << 16)) {
+            new CssCorpusGenerator().seed(seed).emit(writer, Long.MAX_VALUE, size);
+        }
+    }
+
+    static long parseSize(String size) {
+        char suffix = Character.toLowerCase(size.charAt(size.length() - 1));
+        long multiplier = switch (suffix) {
+            case 'k' -> 1L << 10;
+            case 'm' -> 1L << 20;
+            case 'g' -> 1L << 30;
+            default -> 1;
+        };
+        String digits = multiplier == 1 ? size : size.substring(0, size.length() - 1);
+        return Long.parseLong(digits) * multiplier;
+    }
+}
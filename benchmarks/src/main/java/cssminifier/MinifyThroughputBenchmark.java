@@ -0,0 +1,67 @@
+package cssminifier;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end {@link CssMinifier#minify} throughput. The {@code inputBytes} secondary result is
+ * the input consumed per second, i.e. throughput in B/s (divide by 1e6 for MB/s).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Benchmark)
+public class MinifyThroughputBenchmark {
+
+    @Param({"framework", "utility", "comments", "strings", "minified"})
+    public String shape;
+
+    @Param({"10240", "102400", "1048576"})
+    public int size;
+
+    private String css;
+
+    @Setup
+    public void setUp() {
+        css = BenchmarkInputs.stylesheet(shape, size);
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long inputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            inputBytes = 0;
+        }
+    }
+
+    @Benchmark
+    public String minify(Bytes bytes) {
+        bytes.inputBytes += css.length();
+        return CssMinifier.minify(css);
+    }
+
+    /** Against {@link #minify}, the cost of the source map. */
+    @Benchmark
+    public CssMinifier.SourceMapResult minifyWithSourceMap(Bytes bytes) {
+        bytes.inputBytes += css.length();
+        return CssMinifier.minifyWithSourceMap(css, "input.css");
+    }
+}
@@ -0,0 +1,100 @@
+package cssminifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each pipeline pass in isolation. Every pass is fed the output of the passes before it in
+ * {@link CssMinifier#minify}, so it sees the same input it would see in the full pipeline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Benchmark)
+public class PassBenchmark {
+
+    @Param({"framework", "utility", "strings"})
+    public String shape;
+
+    @Param({"102400"})
+    public int size;
+
+    private String raw;
+    private String uncommented;
+    private String collapsed;
+    private int features;
+    private String valuesOptimized;
+    private String quotesOptimized;
+    private String shorthandCollapsed;
+    private String deduplicated;
+
+    @Setup
+    public void setUp() {
+        raw = BenchmarkInputs.stylesheet(shape, size);
+        uncommented = CssMinifier.stripComments(raw);
+        collapsed = CssMinifier.collapseWhitespace(uncommented);
+        features = CssMinifier.scanFeatures(collapsed);
+        valuesOptimized = CssMinifier.optimizeValues(collapsed, features);
+        quotesOptimized = CssMinifier.optimizeQuotedTokens(valuesOptimized);
+        shorthandCollapsed = CssMinifier.collapseShorthand(quotesOptimized);
+        deduplicated = CssMinifier.removeDuplicateProperties(shorthandCollapsed);
+    }
+
+    @Benchmark
+    public boolean isAlreadyMinified() {
+        return CssMinifier.isAlreadyMinified(raw);
+    }
+
+    @Benchmark
+    public String stripComments() {
+        return CssMinifier.stripComments(raw);
+    }
+
+    @Benchmark
+    public String collapseWhitespace() {
+        return CssMinifier.collapseWhitespace(uncommented);
+    }
+
+    @Benchmark
+    public int scanFeatures() {
+        return CssMinifier.scanFeatures(collapsed);
+    }
+
+    @Benchmark
+    public String optimizeValues() {
+        return CssMinifier.optimizeValues(collapsed, features);
+    }
+
+    @Benchmark
+    public String optimizeQuotedTokens() {
+        return CssMinifier.optimizeQuotedTokens(valuesOptimized);
+    }
+
+    @Benchmark
+    public String collapseShorthand() {
+        return CssMinifier.collapseShorthand(quotesOptimized);
+    }
+
+    @Benchmark
+    public String removeDuplicateProperties() {
+        return CssMinifier.removeDuplicateProperties(shorthandCollapsed);
+    }
+
+    @Benchmark
+    public String mergeAdjacentRules() {
+        return CssMinifier.mergeAdjacentRules(deduplicated);
+    }
+}
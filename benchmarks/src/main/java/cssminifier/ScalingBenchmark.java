@@ -0,0 +1,76 @@
+package cssminifier;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link CssMinifier#minify} on generated corpora from 1 KB upwards. Flat
+ * {@code inputBytes} (B/s) across sizes means linear scaling; {@code gc.alloc.rate.norm} divided
+ * by the size shows whether transient memory grows faster than the input. Larger runs:
+ * {@code -p size=1g -jvmArgsAppend -Xmx16g}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "-XX:+AlwaysPreTouch"})
+@State(Scope.Benchmark)
+public class ScalingBenchmark {
+
+    @Param({"1k", "16k", "256k", "4m", "64m"})
+    public String size;
+
+    @Param({"42"})
+    public long seed;
+
+    @Param({"0.1"})
+    public double commentRatio;
+
+    @Param({"0.05"})
+    public double duplicateRatio;
+
+    @Param({"2"})
+    public int mediaDepth;
+
+    private String css;
+
+    @Setup
+    public void setUp() {
+        css = new CssCorpusGenerator()
+            .seed(seed)
+            .commentRatio(commentRatio)
+            .duplicateRatio(duplicateRatio)
+            .mediaDepth(mediaDepth)
+            .generate(Math.toIntExact(CssCorpusGenerator.parseSize(size)));
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long inputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            inputBytes = 0;
+        }
+    }
+
+    @Benchmark
+    public String minify(Bytes bytes) {
+        bytes.inputBytes += css.length();
+        return CssMinifier.minify(css);
+    }
+}
@@ -0,0 +1,78 @@
+package cssminifier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call latency of {@link CssMinifier#minify} on sub-kilobyte fragments, the size of inline
+ * style blocks and CSS-in-JS output, where fixed per-call setup dominates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class SmallInputBenchmark {
+
+    @Param({"inline", "component", "minified", "kilobyte"})
+    public String shape;
+
+    private String css;
+
+    @Setup
+    public void setUp() {
+        css = switch (shape) {
+            // A typical style attribute lifted into a rule (~60 bytes)
+            case "inline" -> ".x{ color: #ffffff; margin: 0px auto; font-weight: bold; }";
+            // CSS-in-JS output for one component (~190 bytes)
+            case "component" -> """
+                .btn-3f2a {
+                  display: inline-block;
+                  padding: 0.375rem 0.75rem;
+                  border: 1px solid transparent;
+                  border-radius: 0.25rem;
+                  color: #FFFFFF;
+                  background-color: #0d6efd;
+                }
+                """;
+            // Output of a previous minification
+            case "minified" -> ".btn-3f2a{display:inline-block;padding:.375rem .75rem;border:1px solid transparent;"
+                + "border-radius:.25rem;color:#fff;background-color:#0d6efd}";
+            // Several rules with shorthand, duplicates and a media query (~1 KB)
+            case "kilobyte" -> """
+                /* card */
+                .card { position: relative; display: flex; flex-direction: column; min-width: 0; }
+                .card-body { margin-top: 0px; margin-right: 1rem; margin-bottom: 0px; margin-left: 1rem; }
+                .card-title { margin-bottom: 0.5rem; font-weight: bold; color: #333333; }
+                .card-title { color: #222222; }
+                .card-link:hover { text-decoration: none; outline: none; }
+                .card-img { width: 100%; border-radius: calc(0.25rem - 1px); background: transparent; }
+                .card-footer { padding: 0.5rem 1rem; border-top: 1px solid rgba(0, 0, 0, 0.125); }
+                @media (min-width: 576px) {
+                  .card-group { display: flex; flex-flow: row wrap; }
+                  .card-group > .card { flex: 1 0 0%; margin-bottom: 0; }
+                }
+                .card-header { padding: 0.5rem 1rem; background-color: rgba(0, 0, 0, 0.03); }
+                .card-header:first-child { border-radius: calc(0.25rem - 1px) calc(0.25rem - 1px) 0 0; }
+                """;
+            default -> throw new IllegalArgumentException(shape);
+        };
+    }
+
+    @Benchmark
+    public String minify() {
+        return CssMinifier.minify(css);
+    }
+}
@@ -0,0 +1,182 @@
+package cssminifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold-path benchmark of the packaged command line. JMH measures steady state in a warm JVM,
+ * but most invocations are short-lived processes, so this launches the jar once per run and
+ * measures from the outside:
+ * <ul>
+ *   <li>time to first byte of minified output on stdout, and total wall time to exit;</li>
+ *   <li>peak RSS, the VmHWM high-water mark of /proc/&lt;pid&gt;/status (Linux only), polled
+ *       until the process exits;</li>
+ *   <li>JIT compilations, counted from {@code -Xlog:jit+compilation=debug}.</li>
+ * </ul>
+ * Each mode runs on small, medium and large inputs piped through stdin ({@code css-minifier -}):
+ * <ul>
+ *   <li>{@code plain}: {@code java -jar};</li>
+ *   <li>{@code cds}: with the AppCDS archive of {@code mvn -Pstartup package}, if built;</li>
+ *   <li>{@code image}: the launcher of the jlink runtime image, if built;</li>
+ *   <li>{@code client}: {@code --client} against a daemon started (and warmed up) beforehand;
+ *       RSS and JIT counts are the client's own.</li>
+ * </ul>
+ * The first run of every combination is discarded. Run from the repository root:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar cssminifier.StartupHarness [--runs 20] [--java path] [--target dir]
+ * </pre>
+ */
+public final class StartupHarness {
+
+    private record Sample(double ttfbMillis, double wallMillis, long peakRssKb, int compilations) {}
+
+    private StartupHarness() {}
+
+    public static void main(String[] args) throws Exception {
+        int runs = 20;
+        Path java = Path.of(System.getProperty("java.home"), "bin", "java");
+        Path target = Path.of("target");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--runs" -> runs = Integer.parseInt(args[i + 1]);
+                case "--java" -> java = Path.of(args[i + 1]);
+                case "--target" -> target = Path.of(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        Path jar = target.resolve("css-minifier-1.0-SNAPSHOT.jar");
+        if (!Files.isRegularFile(jar)) throw new IllegalStateException(jar + " not found; run mvn package first");
+
+        Map<String, byte[]> inputs = new LinkedHashMap<>();
+        inputs.put("small 1KB", BenchmarkInputs.stylesheet("framework", 1024).getBytes(StandardCharsets.UTF_8));
+        inputs.put("medium 50KB", BenchmarkInputs.stylesheet("framework", 50 * 1024).getBytes(StandardCharsets.UTF_8));
+        inputs.put("large 1MB", BenchmarkInputs.stylesheet("framework", 1024 * 1024).getBytes(StandardCharsets.UTF_8));
+
+        Path work = Files.createTempDirectory("css-minifier-startup");
+        Path socket = work.resolve("daemon.sock");
+        Map<String, List<String>> modes = new LinkedHashMap<>();
+        modes.put("plain", List.of(java.toString(), "-jar", jar.toString(), "-"));
+        Path archive = target.resolve("css-minifier.jsa");
+        if (Files.isRegularFile(archive)) {
+            modes.put("cds", List.of(java.toString(), "-XX:SharedArchiveFile=" + archive, "-jar", jar.toString(), "-"));
+        }
+        Path launcher = target.resolve("runtime/bin/css-minifier");
+        if (Files.isExecutable(launcher)) modes.put("image", List.of(launcher.toString(), "-"));
+        modes.put("client", List.of(java.toString(), "-jar", jar.toString(), "--client", "--socket", socket.toString(), "-"));
+
+        Process daemon = new ProcessBuilder(java.toString(), "-jar", jar.toString(), "--daemon", "--socket", socket.toString())
+            .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!Files.exists(socket)) {
+                if (System.nanoTime() > deadline || !daemon.isAlive()) throw new IllegalStateException("daemon did not start");
+                Thread.sleep(10);
+            }
+            // Let the daemon reach steady state, as it would be after a day of builds
+            for (int i = 0; i < 20; i++) launch(modes.get("client"), inputs.get("large 1MB"), work);
+
+            System.out.printf("%-8s %-12s %10s %10s %10s %10s %10s %8s%n",
+                "mode", "input", "ttfb p50", "wall p50", "wall p90", "wall min", "rss MB", "jit");
+            for (Map.Entry<String, byte[]> input : inputs.entrySet()) {
+                for (Map.Entry<String, List<String>> mode : modes.entrySet()) {
+                    launch(mode.getValue(), input.getValue(), work);
+                    List<Sample> samples = new ArrayList<>(runs);
+                    for (int i = 0; i < runs; i++) samples.add(launch(mode.getValue(), input.getValue(), work));
+                    print(mode.getKey(), input.getKey(), samples);
+                }
+            }
+        } finally {
+            daemon.destroy();
+            daemon.waitFor(10, TimeUnit.SECONDS);
+            try (var files = Files.list(work)) {
+                for (Path file : files.toList()) Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(work);
+        }
+    }
+
+    private static Sample launch(List<String> command, byte[] input, Path work) throws IOException, InterruptedException {
+        Path jitLog = work.resolve("jit.log");
+        Files.deleteIfExists(jitLog);
+        ProcessBuilder builder = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD);
+        // JDK_JAVA_OPTIONS also reaches the java of the runtime image launcher
+        builder.environment().put("JDK_JAVA_OPTIONS", "-Xlog:jit+compilation=debug:file=" + jitLog + ":none");
+
+        long start = System.nanoTime();
+        Process process = builder.start();
+        Thread writer = Thread.ofVirtual().start(() -> {
+            try (OutputStream stdin = process.getOutputStream()) {
+                stdin.write(input);
+            } catch (IOException ignored) {
+                // The process exited early; its exit status says why
+            }
+        });
+        long[] peakRss = {0};
+        Thread sampler = Thread.ofPlatform().daemon().start(() -> {
+            Path status = Path.of("/proc", Long.toString(process.pid()), "status");
+            while (process.isAlive()) {
+                peakRss[0] = Math.max(peakRss[0], highWaterMarkKb(status));
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        long firstByte = -1;
+        try (InputStream stdout = process.getInputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            for (int n; (n = stdout.read(buffer)) != -1; ) {
+                if (n > 0 && firstByte < 0) firstByte = System.nanoTime();
+            }
+        }
+        int status = process.waitFor();
+        long end = System.nanoTime();
+        writer.join();
+        sampler.join();
+        if (status != 0) throw new IllegalStateException(String.join(" ", command) + " exited with " + status);
+
+        int compilations = 0;
+        if (Files.exists(jitLog)) {
+            try (var lines = Files.lines(jitLog)) {
+                compilations = (int) lines.count();
+            }
+        }
+        return new Sample((firstByte - start) / 1e6, (end - start) / 1e6, peakRss[0], compilations);
+    }
+
+    private static long highWaterMarkKb(Path status) {
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmHWM:")) return Long.parseLong(line.substring(6).replace("kB", "").trim());
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux, or the process is gone
+        }
+        return 0;
+    }
+
+    private static void print(String mode, String input, List<Sample> samples) {
+        double[] ttfb = samples.stream().mapToDouble(Sample::ttfbMillis).sorted().toArray();
+        double[] wall = samples.stream().mapToDouble(Sample::wallMillis).sorted().toArray();
+        long[] rss = samples.stream().mapToLong(Sample::peakRssKb).sorted().toArray();
+        int[] jit = samples.stream().mapToInt(Sample::compilations).sorted().toArray();
+        System.out.printf("%-8s %-12s %8.1fms %8.1fms %8.1fms %8.1fms %10.1f %8d%n",
+            mode, input, percentile(ttfb, 0.5), percentile(wall, 0.5), percentile(wall, 0.9), wall[0],
+            rss[rss.length / 2] / 1024.0, jit[jit.length / 2]);
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+}
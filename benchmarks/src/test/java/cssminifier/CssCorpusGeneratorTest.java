@@ -0,0 +1,87 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CssCorpusGeneratorTest {
+
+    private static CssCorpusGenerator generator(long seed) {
+        return new CssCorpusGenerator().seed(seed).rules(2_000).mediaDepth(3).commentRatio(0.2)
+            .stringDensity(0.1).escapeDensity(0.05).dataUriDensity(0.02).duplicateRatio(0.1);
+    }
+
+    /** Top-level blocks of a corpus without @media, one per entry, the header comment dropped. */
+    private static List<String> blocks(String css) {
+        List<String> blocks = new ArrayList<>();
+        StringBuilder block = new StringBuilder();
+        for (String line : css.substring(css.indexOf('\n') + 1).split("\n")) {
+            block.append(line).append('\n');
+            if (line.equals("}")) {
+                blocks.add(block.toString());
+                block.setLength(0);
+            }
+        }
+        return blocks;
+    }
+
+    @Test
+    void sameSeedAndSettingsGiveTheSameBytes() {
+        for (long seed : new long[] {1, 42, -7}) {
+            String first = generator(seed).generate();
+            assertEquals(first, generator(seed).generate(), "seed " + seed);
+
+            StringBuilder streamed = new StringBuilder();
+            generator(seed).writeTo(streamed, Long.MAX_VALUE);
+            assertEquals(first, streamed.toString(), "seed " + seed);
+
+            assertEquals(generator(seed).generate(200_000), generator(seed).generate(200_000), "seed " + seed);
+        }
+        assertNotEquals(generator(1).generate(), generator(2).generate());
+        assertNotEquals(generator(1).generate(), generator(1).duplicateRatio(0.2).generate());
+    }
+
+    @Test
+    void duplicatesRepeatRecentRulesAndHalfAreAdjacent() {
+        String css = new CssCorpusGenerator().seed(3).rules(4_000).mediaDepth(0).commentRatio(0)
+            .duplicateRatio(0.5).generate();
+        List<String> rules = new ArrayList<>();
+        List<Boolean> afterKeyframes = new ArrayList<>();
+        boolean keyframes = false;
+        for (String block : blocks(css)) {
+            if (block.startsWith("@keyframes")) {
+                keyframes = true;
+            } else {
+                rules.add(block);
+                afterKeyframes.add(keyframes);
+                keyframes = false;
+            }
+        }
+
+        int duplicates = 0;
+        int adjacent = 0;
+        int followingKeyframes = 0;
+        int adjacentAcrossKeyframes = 0;
+        for (int i = 1; i < rules.size(); i++) {
+            boolean repeatsPrevious = rules.get(i).equals(rules.get(i - 1));
+            if (afterKeyframes.get(i)) {
+                followingKeyframes++;
+                if (repeatsPrevious) adjacentAcrossKeyframes++;
+            }
+            if (!rules.subList(Math.max(0, i - 64), i).contains(rules.get(i))) continue;
+            duplicates++;
+            if (repeatsPrevious) adjacent++;
+        }
+        double duplicateShare = (double) duplicates / rules.size();
+        double adjacentShare = (double) adjacent / duplicates;
+        assertTrue(duplicateShare > 0.45 && duplicateShare < 0.55, "duplicate share: " + duplicateShare);
+        assertTrue(adjacentShare > 0.45 && adjacentShare < 0.7, "share repeating the previous rule: " + adjacentShare);
+        // Keyframes are not rules of the history: the rule after one still repeats the rule before it
+        assertTrue(followingKeyframes > 100, "keyframes are interleaved: " + followingKeyframes);
+        double acrossShare = (double) adjacentAcrossKeyframes / followingKeyframes;
+        assertTrue(acrossShare > 0.15, "share repeating the rule before the keyframes: " + acrossShare);
+    }
+}
@@ -0,0 +1,118 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * That the source map puts every rule, at-rule and declaration of the output where it came from,
+ * on generated corpora with the rewrites the passes record: dropped duplicates, fallback chains,
+ * collapsed shorthands, merged rules and rewritten keyframe selectors.
+ */
+class SourceMapAccuracyTest {
+
+    private static CssCorpusGenerator plain(long seed) {
+        return new CssCorpusGenerator().seed(seed);
+    }
+
+    private static CssCorpusGenerator heavy(long seed) {
+        return new CssCorpusGenerator().seed(seed).mediaDepth(3).commentRatio(0.2)
+            .stringDensity(0.1).escapeDensity(0.05).dataUriDensity(0.02).duplicateRatio(0.1);
+    }
+
+    /** Generated and original offsets of each segment of the map's mappings, in order. */
+    private static List<int[]> decode(String map, String output, String input) {
+        String mappings = map.substring(map.indexOf("\"mappings\":\"") + 12, map.lastIndexOf('"'));
+        int[] outLines = lineStarts(output);
+        int[] inLines = lineStarts(input);
+        List<int[]> segments = new ArrayList<>();
+        int line = 0;
+        int[] state = new int[4]; // column, source, source line, source column
+        int i = 0;
+        while (i < mappings.length()) {
+            char c = mappings.charAt(i);
+            if (c == ';' || c == ',') {
+                if (c == ';') {
+                    line++;
+                    state[0] = 0;
+                }
+                i++;
+                continue;
+            }
+            for (int f = 0; f < 4; f++) {
+                int value = 0;
+                int shift = 0;
+                int digit;
+                do {
+                    digit = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".indexOf(mappings.charAt(i++));
+                    value |= (digit & 31) << shift;
+                    shift += 5;
+                } while ((digit & 32) != 0);
+                state[f] += (value & 1) != 0 ? -(value >>> 1) : value >>> 1;
+            }
+            segments.add(new int[] {outLines[line] + state[0], inLines[state[2]] + state[3]});
+        }
+        return segments;
+    }
+
+    private static int[] lineStarts(String text) {
+        List<Integer> starts = new ArrayList<>(List.of(0));
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) starts.add(i + 1);
+        return starts.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** The text of the segment at an offset: up to the next '{', '}' or ';' outside strings. */
+    private static String segment(String text, int from) {
+        int i = from;
+        while (i < text.length() && "{};".indexOf(text.charAt(i)) < 0) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\'') {
+                for (i++; i < text.length() && text.charAt(i) != c; i++) {
+                    if (text.charAt(i) == '\\') i++;
+                }
+            }
+            i++;
+        }
+        return text.substring(from, Math.min(i, text.length()));
+    }
+
+    private static String name(String declaration) {
+        int colon = declaration.indexOf(':');
+        return (colon < 0 ? declaration : declaration.substring(0, colon)).strip().toLowerCase();
+    }
+
+    @Test
+    void mapsEveryNodeOfGeneratedCorporaToWhereItCameFrom() {
+        for (long seed = 1; seed <= 4; seed++) {
+            for (CssCorpusGenerator generator : new CssCorpusGenerator[] {plain(seed), heavy(seed)}) {
+                String css = generator.generate(200_000);
+                CssMinifier.SourceMapResult result = CssMinifier.minifyWithSourceMap(css, "in.css");
+                String output = result.css();
+                Stylesheet nodes = Stylesheet.parse(output);
+                List<int[]> segments = decode(result.sourceMap(), output, css);
+                assertEquals(nodes.size(), segments.size(), "seed " + seed + ": one segment per node");
+
+                for (int n = 0; n < nodes.size(); n++) {
+                    Stylesheet.Node node = nodes.node(n);
+                    String produced = segment(output, node.start());
+                    String source = segment(css, segments.get(n)[1]);
+                    String where = "seed " + seed + ", node " + n + ": " + produced + " <- " + source;
+                    assertEquals(node.start(), segments.get(n)[0], where);
+                    if (node instanceof Stylesheet.Declaration) {
+                        if (name(source).startsWith(name(produced) + "-")) continue; // a shorthand and its first longhand
+                        // The declaration it maps to minifies to it, not to a duplicate of it
+                        assertEquals("a{" + produced + "}", CssMinifier.minify("a{" + source + "}"), where);
+                    } else if (produced.equals("0%") || produced.equals("to")) {
+                        assertTrue(source.strip().matches("(?i)from|100%|0%|to"), where);
+                    } else {
+                        // A rule or at-rule maps to its own first character
+                        assertEquals(produced.charAt(0), source.charAt(0), where);
+                    }
+                }
+            }
+        }
+    }
+}
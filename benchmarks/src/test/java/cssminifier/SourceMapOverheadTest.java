@@ -0,0 +1,49 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * What a source map adds to the time of minifying framework-like, string-heavy and already minified
+ * stylesheets; utility and comment-heavy ones, which minify fastest, pay more. Each side is timed
+ * as the best of many short rounds, taken in turn, so that a pause or a busy neighbour counts
+ * against neither; the JMH comparison is {@link MinifyThroughputBenchmark#minifyWithSourceMap}.
+ */
+class SourceMapOverheadTest {
+
+    private static final double LIMIT = 0.20;
+
+    private static long best(Runnable call, int reps, long best) {
+        long start = System.nanoTime();
+        for (int r = 0; r < reps; r++) call.run();
+        return Math.min(best, System.nanoTime() - start);
+    }
+
+    @Test
+    void addsAtMostAFifthToMinifying() {
+        for (String shape : new String[] {"framework", "strings", "minified"}) {
+            assertWithinLimit(shape);
+        }
+    }
+
+    private static void assertWithinLimit(String shape) {
+        String css = BenchmarkInputs.stylesheet(shape, 256 * 1024);
+        Runnable minify = () -> CssMinifier.minify(css);
+        Runnable withMap = () -> CssMinifier.minifyWithSourceMap(css, "input.css");
+        long warmUntil = System.nanoTime() + 3_000_000_000L;
+        while (System.nanoTime() < warmUntil) {
+            minify.run();
+            withMap.run();
+        }
+
+        long plain = Long.MAX_VALUE;
+        long mapped = Long.MAX_VALUE;
+        for (int round = 0; round < 40; round++) {
+            plain = best(minify, 3, plain);
+            mapped = best(withMap, 3, mapped);
+        }
+        double overhead = (double) (mapped - plain) / plain;
+        assertTrue(overhead <= LIMIT, String.format("source map adds %.0f%% to minify on %s", overhead * 100, shape));
+    }
+}
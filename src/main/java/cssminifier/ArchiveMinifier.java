@@ -0,0 +1,123 @@
+package cssminifier;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Minifies the .css entries of a JAR, WAR or ZIP archive without extracting it: the archive is
+ * copied, the copy is opened with the zip file system provider, and every stylesheet entry is
+ * read, minified and written back in parallel. The copy replaces the output when done.
+ *
+ * <p>The result does not depend on the number of threads: the zip file system writes entries in
+ * their original order when it closes, copies entries that were not touched byte for byte, and
+ * rewritten entries keep their original timestamps. Entries whose minified bytes are the same
+ * as before are not rewritten at all. Archives nested in the archive are left alone.
+ */
+final class ArchiveMinifier {
+
+    private ArchiveMinifier() {}
+
+    static boolean isArchive(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".jar") || lower.endsWith(".war") || lower.endsWith(".zip");
+    }
+
+    static BatchMinifier.Summary minify(Path archive, Path output, int threads, PrintStream err) throws IOException {
+        return minify(archive, output, threads, MinifyOptions.defaults(), err);
+    }
+
+    /** A timeout in the options is a budget per entry; an entry that runs out of it is kept as it is. */
+    static BatchMinifier.Summary minify(Path archive, Path output, int threads, MinifyOptions options, PrintStream err)
+            throws IOException {
+        long start = System.nanoTime();
+        Path dir = output.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = DirectoryMinifier.createTempSibling(output);
+        try {
+            // Into the file as created: a copy that replaced it would take the input's permissions
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                Files.copy(archive, out);
+            }
+            int written = 0;
+            int unchanged = 0;
+            int failed = 0;
+            long inputBytes = 0;
+            long outputBytes = 0;
+            try (FileSystem zip = FileSystems.newFileSystem(temp)) {
+                List<Path> entries;
+                try (Stream<Path> tree = Files.walk(zip.getPath("/"))) {
+                    entries = tree.filter(Files::isRegularFile)
+                        .filter(p -> p.getFileName().toString().endsWith(".css"))
+                        .sorted()
+                        .toList();
+                }
+                List<Future<long[]>> results = new ArrayList<>(entries.size());
+                try (ExecutorService pool = Executors.newFixedThreadPool(threads)) {
+                    for (Path entry : entries) results.add(pool.submit(() -> minifyEntry(entry, options)));
+                }
+                for (int i = 0; i < results.size(); i++) {
+                    try {
+                        long[] sizes = results.get(i).get();
+                        inputBytes += sizes[0];
+                        outputBytes += sizes[1];
+                        if (sizes[2] != 0) {
+                            written++;
+                        } else {
+                            unchanged++;
+                        }
+                    } catch (ExecutionException e) {
+                        err.println("Cannot minify " + archive + "!" + entries.get(i) + ": " + e.getCause());
+                        failed++;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failed++;
+                    }
+                }
+            } // closing writes the updated archive
+            try {
+                Files.move(temp, output, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return new BatchMinifier.Summary(written + unchanged + failed, written, unchanged, failed,
+                inputBytes, outputBytes, 0, System.nanoTime() - start);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** Returns {input size, output size, 1 if rewritten}. */
+    private static long[] minifyEntry(Path entry, MinifyOptions options) throws IOException {
+        byte[] input = Files.readAllBytes(entry);
+        String css = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(input)).toString();
+        byte[] minified = CssMinifier.minify(css, options).getBytes(StandardCharsets.UTF_8);
+        if (Arrays.equals(input, minified)) return new long[] {input.length, minified.length, 0};
+
+        BasicFileAttributes original = Files.readAttributes(entry, BasicFileAttributes.class);
+        Files.write(entry, minified);
+        // Otherwise the entry would be stamped with the current time
+        Files.getFileAttributeView(entry, BasicFileAttributeView.class)
+            .setTimes(original.lastModifiedTime(), original.lastAccessTime(), original.creationTime());
+        return new long[] {input.length, minified.length, 1};
+    }
+}
@@ -0,0 +1,125 @@
+package cssminifier;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Batch mode of the command line: {@code css-minifier <dir|glob>... --out <dir>}. Every input is
+ * expanded to stylesheets, which are minified in parallel into a mirror of their tree under the
+ * output directory, in one JVM. Outputs whose bytes would not change are left alone (see
+ * {@link DirectoryMinifier}), and an aggregate summary is printed at the end.
+ *
+ * <p>A directory contributes all .css files below it, mirrored relative to the directory. A glob
+ * ({@code src/**}{@code /*.css}) is matched against paths below its longest literal prefix, which
+ * is also what the outputs are mirrored relative to; {@code **}{@code /} also matches no directory.
+ *
+ * <p>A timeout in the options is a budget per file: a file that runs out of it fails on its own,
+ * without holding up the rest of the batch.
+ */
+final class BatchMinifier {
+
+    record Job(DirectoryMinifier tree, Path source) {}
+
+    /** compressedBytes is the size of the .css.gz files of {@code --gzip}, or 0. */
+    record Summary(int files, int written, int unchanged, int failed, long inputBytes, long outputBytes,
+                   long compressedBytes, long nanos) {}
+
+    private BatchMinifier() {}
+
+    static boolean isGlob(String spec) {
+        for (int i = 0; i < spec.length(); i++) {
+            char c = spec.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') return true;
+        }
+        return false;
+    }
+
+    /**
+     * The stylesheets named by the specs, each once, in spec order then path order.
+     *
+     * @throws IllegalArgumentException when two different stylesheets would be written to the same
+     *         output, as {@code a/x.css b/x.css --out out} would
+     */
+    static List<Job> expand(List<String> specs, Path outputRoot, Path cwd) throws IOException {
+        Map<Path, Job> jobs = new LinkedHashMap<>(); // by output path
+        for (String spec : specs) {
+            if (isGlob(spec)) {
+                Path base = cwd.resolve(literalPrefix(spec));
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + spec);
+                PathMatcher zeroDirectories = FileSystems.getDefault().getPathMatcher("glob:" + spec.replace("**/", ""));
+                DirectoryMinifier tree = new DirectoryMinifier(base, cwd.resolve(outputRoot));
+                for (Path file : walk(base, tree)) {
+                    // Match the path in the same (relative or absolute) form as the spec
+                    Path relative = base.relativize(file);
+                    Path candidate = literalPrefix(spec).equals(".") ? relative : Path.of(literalPrefix(spec)).resolve(relative);
+                    if (matcher.matches(candidate) || zeroDirectories.matches(candidate)) {
+                        add(jobs, new Job(tree, file));
+                    }
+                }
+            } else {
+                Path path = cwd.resolve(spec);
+                if (Files.isDirectory(path)) {
+                    DirectoryMinifier tree = new DirectoryMinifier(path, cwd.resolve(outputRoot));
+                    for (Path file : walk(path, tree)) add(jobs, new Job(tree, file));
+                } else if (Files.isRegularFile(path)) {
+                    Path parent = path.toAbsolutePath().getParent();
+                    add(jobs, new Job(new DirectoryMinifier(parent, cwd.resolve(outputRoot)), path));
+                } else {
+                    throw new NoSuchFileException(spec);
+                }
+            }
+        }
+        return new ArrayList<>(jobs.values());
+    }
+
+    private static void add(Map<Path, Job> jobs, Job job) {
+        Path output = job.tree().outputFor(job.source());
+        Job previous = jobs.putIfAbsent(output, job);
+        if (previous != null && !previous.source().toAbsolutePath().normalize().equals(job.source().toAbsolutePath().normalize())) {
+            throw new IllegalArgumentException(previous.source() + " and " + job.source() + " would both be written to " + output);
+        }
+    }
+
+    /** The leading path segments of a glob that contain no glob characters, or "." if none. */
+    static String literalPrefix(String glob) {
+        int end = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '/') end = i;
+            if (c == '*' || c == '?' || c == '[' || c == '{') break;
+        }
+        if (end == 0) return glob.startsWith("/") ? "/" : ".";
+        return glob.substring(0, end);
+    }
+
+    private static List<Path> walk(Path dir, DirectoryMinifier tree) throws IOException {
+        if (!Files.isDirectory(dir)) return List.of();
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).filter(tree::isSource).sorted().toList();
+        }
+    }
+
+    /** With gzip, every output also gets a {@code .css.gz} sibling; see {@link BatchPipeline}. */
+    static Summary run(List<Job> jobs, int threads, MinifyOptions options, boolean gzip, PrintStream err) {
+        return BatchPipeline.run(jobs, threads, options, gzip, err);
+    }
+
+    static void printSummary(Summary summary, PrintStream out) {
+        double seconds = summary.nanos() / 1e9;
+        double savings = summary.inputBytes() == 0 ? 0 : (1.0 - (double) summary.outputBytes() / summary.inputBytes()) * 100;
+        String gzipped = summary.compressedBytes() == 0 ? "" : ", " + summary.compressedBytes() + " gzipped";
+        out.printf("Minified %d files (%d written, %d unchanged, %d failed): %d -> %d bytes (%.1f%% smaller%s) in %.2f s, %.1f MB/s%n",
+            summary.files(), summary.written(), summary.unchanged(), summary.failed(), summary.inputBytes(),
+            summary.outputBytes(), savings, gzipped, seconds, seconds == 0 ? 0 : summary.inputBytes() / 1e6 / seconds);
+    }
+}
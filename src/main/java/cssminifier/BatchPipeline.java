@@ -0,0 +1,346 @@
+package cssminifier;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The batch mode as a pipeline of stages, so that disk and CPU work overlap instead of every
+ * worker alternating between them:
+ * <ol>
+ *   <li>read: asynchronous reads into pooled direct buffers;</li>
+ *   <li>minify: {@code threads} workers;</li>
+ *   <li>compress, with {@code --gzip}: Deflaters producing a {@code .css.gz} next to each output;</li>
+ *   <li>write: asynchronous writes to a temporary sibling, moved into place once complete.</li>
+ * </ol>
+ * Stages hand files on through bounded queues. At most {@code 2 * threads + IO_THREADS} files are
+ * in flight, which bounds both the queues and the buffers: the reader cannot run ahead of the CPU
+ * with half the tree in memory.
+ *
+ * <p>As in {@link DirectoryMinifier#writeIfChanged}, outputs whose bytes would not change are left
+ * alone. The gzip header carries no name or timestamp, so an unchanged stylesheet compresses to
+ * an unchanged {@code .css.gz} too.
+ */
+final class BatchPipeline {
+
+    static final int BUFFER_BYTES = 256 * 1024;
+    static final int IO_THREADS = 4;
+
+    /** Deflate, no flags, no mtime, no extra flags, OS unknown: the same bytes every run. */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final MinifyOptions options;
+    private final boolean gzip;
+    private final PrintStream err;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final BlockingQueue<Deflater> deflaters = new LinkedBlockingQueue<>();
+    private final ExecutorService io = Executors.newFixedThreadPool(IO_THREADS);
+    private final ThreadPoolExecutor minifyStage;
+    private final ThreadPoolExecutor compressStage;
+
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger unchanged = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong inputBytes = new AtomicLong();
+    private final AtomicLong outputBytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+
+    private BatchPipeline(int threads, MinifyOptions options, boolean gzip, PrintStream err) {
+        this.options = options;
+        this.gzip = gzip;
+        this.err = err;
+        this.maxInFlight = 2 * threads + IO_THREADS;
+        this.inFlight = new Semaphore(maxInFlight);
+        // A file in flight holds at most two buffers: its input, then its compressed output
+        this.buffers = new ArrayBlockingQueue<>(2 * maxInFlight);
+        // A file waits in at most one queue at a time, so the queues never overflow
+        this.minifyStage = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(maxInFlight));
+        int compressThreads = Math.max(1, threads / 2);
+        this.compressStage = new ThreadPoolExecutor(compressThreads, compressThreads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(maxInFlight));
+    }
+
+    static BatchMinifier.Summary run(List<BatchMinifier.Job> jobs, int threads, MinifyOptions options, boolean gzip,
+            PrintStream err) {
+        long start = System.nanoTime();
+        BatchPipeline pipeline = new BatchPipeline(threads, options, gzip, err);
+        try {
+            for (BatchMinifier.Job job : jobs) {
+                pipeline.inFlight.acquireUninterruptibly();
+                pipeline.read(pipeline.new File(job));
+            }
+            pipeline.inFlight.acquireUninterruptibly(pipeline.maxInFlight);
+        } finally {
+            pipeline.io.shutdown();
+            pipeline.minifyStage.shutdown();
+            pipeline.compressStage.shutdown();
+            for (Deflater deflater : pipeline.deflaters) deflater.end();
+        }
+        return new BatchMinifier.Summary(jobs.size(), pipeline.written.get(), pipeline.unchanged.get(),
+            pipeline.failed.get(), pipeline.inputBytes.get(), pipeline.outputBytes.get(), pipeline.compressedBytes.get(),
+            System.nanoTime() - start);
+    }
+
+    /** A file in flight; done once each of its branches (the stylesheet, the .gz) is. */
+    private final class File {
+        final BatchMinifier.Job job;
+        final Path output;
+        final AtomicInteger branches = new AtomicInteger(1);
+        final AtomicBoolean failed = new AtomicBoolean();
+        volatile boolean wrote;
+        volatile long inputBytes;
+        volatile long outputBytes;
+
+        File(BatchMinifier.Job job) {
+            this.job = job;
+            this.output = job.tree().outputFor(job.source());
+        }
+
+        void fail(Throwable e) {
+            if (failed.compareAndSet(false, true)) err.println("Cannot minify " + job.source() + ": " + e);
+            done();
+        }
+
+        void done() {
+            if (branches.decrementAndGet() > 0) return;
+            if (failed.get()) {
+                BatchPipeline.this.failed.incrementAndGet();
+            } else {
+                (wrote ? written : unchanged).incrementAndGet();
+                BatchPipeline.this.inputBytes.addAndGet(inputBytes);
+                BatchPipeline.this.outputBytes.addAndGet(outputBytes);
+            }
+            inFlight.release();
+        }
+    }
+
+    // ==================== Read ====================
+
+    private void read(File file) {
+        AsynchronousFileChannel channel = null;
+        ByteBuffer buffer = null;
+        try {
+            channel = AsynchronousFileChannel.open(file.job.source(), Set.of(StandardOpenOption.READ), io);
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) throw new IOException("Too large to minify: " + size + " bytes");
+            buffer = size <= BUFFER_BYTES ? takeBuffer() : ByteBuffer.allocate((int) size);
+            buffer.limit((int) size);
+            ByteBuffer target = buffer;
+            AsynchronousFileChannel source = channel;
+            source.read(target, 0, file, new CompletionHandler<>() {
+                @Override
+                public void completed(Integer n, File file) {
+                    if (n >= 0 && target.hasRemaining()) {
+                        source.read(target, target.position(), file, this);
+                        return;
+                    }
+                    closeQuietly(source);
+                    target.flip();
+                    minifyStage.execute(() -> minify(file, target));
+                }
+
+                @Override
+                public void failed(Throwable e, File file) {
+                    closeQuietly(source);
+                    release(target);
+                    file.fail(e);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) closeQuietly(channel);
+            if (buffer != null) release(buffer);
+            file.fail(e);
+        }
+    }
+
+    // ==================== Minify ====================
+
+    private void minify(File file, ByteBuffer input) {
+        try {
+            file.inputBytes = input.remaining();
+            String css;
+            try {
+                // Strict decoding, as in DirectoryMinifier: bad UTF-8 is an error, not U+FFFD
+                css = StandardCharsets.UTF_8.newDecoder().decode(input).toString();
+            } finally {
+                release(input);
+            }
+            byte[] minified = CssMinifier.minify(css, options).getBytes(StandardCharsets.UTF_8);
+            file.outputBytes = minified.length;
+            if (gzip) {
+                file.branches.incrementAndGet();
+                compressStage.execute(() -> compress(file, minified));
+            }
+            write(file, file.output, ByteBuffer.wrap(minified), true);
+        } catch (Throwable e) {
+            file.fail(e);
+        }
+    }
+
+    // ==================== Compress ====================
+
+    private void compress(File file, byte[] minified) {
+        ByteBuffer gz = null;
+        try {
+            // Stored blocks add 5 bytes per 64 KB at worst, so this rarely has to grow
+            int bound = GZIP_HEADER.length + minified.length + minified.length / 1000 + 64;
+            gz = bound <= BUFFER_BYTES ? takeBuffer() : ByteBuffer.allocate(bound);
+            gz = deflate(minified, gz.put(GZIP_HEADER));
+            CRC32 crc = new CRC32();
+            crc.update(minified);
+            if (gz.remaining() < 8) gz = grow(gz, 8);
+            gz.order(ByteOrder.LITTLE_ENDIAN).putInt((int) crc.getValue()).putInt(minified.length);
+            gz.order(ByteOrder.BIG_ENDIAN).flip();
+            compressedBytes.addAndGet(gz.remaining());
+            ByteBuffer data = gz;
+            gz = null;
+            write(file, file.output.resolveSibling(file.output.getFileName() + ".gz"), data, false);
+        } catch (Throwable e) {
+            if (gz != null) release(gz);
+            file.fail(e);
+        }
+    }
+
+    /** Appends the raw deflate stream of the input; returns the buffer, which may have grown. */
+    private ByteBuffer deflate(byte[] input, ByteBuffer out) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (!out.hasRemaining()) out = grow(out, out.capacity());
+                deflater.deflate(out);
+            }
+            return out;
+        } finally {
+            // Back in the pool before the file can complete, so run() ends every Deflater
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    // ==================== Write ====================
+
+    /** Writes the data unless the target already holds exactly it; releases the data when done. */
+    private void write(File file, Path target, ByteBuffer data, boolean stylesheet) {
+        Path temp = null;
+        try {
+            if (Files.isRegularFile(target) && Files.size(target) == data.remaining()
+                    && ByteBuffer.wrap(Files.readAllBytes(target)).equals(data)) {
+                release(data);
+                file.done();
+                return;
+            }
+            Path dir = target.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            temp = DirectoryMinifier.createTempSibling(target);
+            Path written = temp;
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(temp,
+                Set.of(StandardOpenOption.WRITE), io);
+            channel.write(data, 0, file, new CompletionHandler<>() {
+                @Override
+                public void completed(Integer n, File file) {
+                    if (data.hasRemaining()) {
+                        channel.write(data, data.position(), file, this);
+                        return;
+                    }
+                    release(data);
+                    try {
+                        channel.close();
+                        move(written, target);
+                        if (stylesheet) file.wrote = true;
+                        file.done();
+                    } catch (IOException | RuntimeException e) {
+                        deleteQuietly(written);
+                        file.fail(e);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, File file) {
+                    closeQuietly(channel);
+                    release(data);
+                    deleteQuietly(written);
+                    file.fail(e);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            release(data);
+            if (temp != null) deleteQuietly(temp);
+            file.fail(e);
+        }
+    }
+
+    private static void move(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // ==================== Buffers ====================
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_BYTES);
+    }
+
+    /** Returns pooled buffers to the pool; others are left to the garbage collector. */
+    private void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == BUFFER_BYTES) {
+            buffers.offer(buffer.clear());
+        }
+    }
+
+    private ByteBuffer grow(ByteBuffer buffer, int extra) {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() + extra);
+        bigger.put(buffer.flip());
+        release(buffer);
+        return bigger;
+    }
+
+    private static void closeQuietly(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Nothing was written through it, or the failure is already being reported
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // A stray temporary file is harmless; the failure itself is reported
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package cssminifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs the pipeline over a stylesheet a slice of whole top-level rules at a time, so that the
+ * working set of the passes is bounded by the slice size rather than by the input size. Slices
+ * end after a top-level node, as a {@link Stylesheet} parse of the input read so far has it,
+ * once at least {@code chunkChars} characters have been collected; a node counts once input
+ * follows it, so that a rule cut short by the end of what has arrived is not taken for whole.
+ * The parse takes in a few slices' worth at a time, and twice as much each time it finds no end,
+ * so that a rule many slices long is parsed a few times rather than once per append.
+ *
+ * <p>A top-level {@code @media}, {@code @supports}, {@code @container} or named {@code @layer}
+ * block larger than that is split between the rules it holds: the slice closes the block after
+ * a rule, and the next slice opens it again with the same prelude. Two such blocks in a row mean
+ * the same as one, which is not true of {@code @keyframes}, {@code @font-face} or an anonymous
+ * {@code @layer}; those, and a single style rule larger than a slice, are still one slice.
+ *
+ * <p>The last rule of each minified slice, found from the nodes the pipeline returns with it, is
+ * held back and minified again at the front of the next slice, so that adjacent rules with the
+ * same selector are still merged across slice boundaries. The output is the same as minifying
+ * the whole stylesheet, except in three cases: a rule merged across a boundary is deduplicated
+ * again, and a rule right after a top-level statement such as {@code @import} can merge with its
+ * twin, which mergeAdjacentRules misses when it takes the statement for part of the selector;
+ * both only make it shorter. A block split between slices repeats its prelude, and its rules on
+ * either side of the split are not merged.
+ *
+ * <p>Input arrives either as a whole string ({@link #minify(String, int, Function)}), which is
+ * sliced in place, or piecewise through {@link #append} and {@link #finish}; output goes to the
+ * consumer in order.
+ */
+final class ChunkedMinifier {
+
+    static final int DEFAULT_CHUNK_CHARS = 64 * 1024;
+
+    private final int chunkChars;
+    private final Function<String, Stylesheet> pipeline;
+    private final Consumer<String> out;
+
+    private CharSequence text;  // input; text[start, ...) is not minified yet
+    private StringBuilder buffer; // text, when input arrives piecewise
+    private int start;
+    private int span;           // how much of text from start the next parse takes in
+    private int parseAt;        // length text must reach before the next parse, after one found no end
+    private boolean complete;   // all of the input is in text
+    private String heldBack = "";
+    private String prefix = ""; // reopens the block the last slice closed
+
+    ChunkedMinifier(int chunkChars, Function<String, Stylesheet> pipeline, Consumer<String> out) {
+        if (chunkChars <= 0) throw new IllegalArgumentException("chunkChars must be positive: " + chunkChars);
+        this.chunkChars = chunkChars;
+        this.pipeline = pipeline;
+        this.out = out;
+        this.span = firstSpan();
+    }
+
+    /** Minifies a whole stylesheet without copying it into a buffer first. */
+    static String minify(String css, int chunkChars, Function<String, Stylesheet> pipeline) {
+        List<String> parts = new ArrayList<>();
+        ChunkedMinifier chunked = new ChunkedMinifier(chunkChars, pipeline, parts::add);
+        chunked.text = css;
+        chunked.complete = true;
+        chunked.emitCompleteChunks();
+        chunked.finish();
+        // Sized exactly, unlike a StringBuilder grown by doubling
+        return String.join("", parts);
+    }
+
+    void append(CharSequence css) {
+        if (buffer == null) {
+            buffer = new StringBuilder();
+            text = buffer;
+        }
+        buffer.append(css);
+        emitCompleteChunks();
+    }
+
+    /** Minifies what is left; the input must be complete. */
+    void finish() {
+        if (!complete && text != null) {
+            // The end of the input ends the last rule read, which may end a slice
+            complete = true;
+            parseAt = 0;
+            emitCompleteChunks();
+        }
+        int end = text == null ? 0 : text.length();
+        if (start < end) {
+            out.accept(pipeline.apply(heldBack + prefix + text.subSequence(start, end)).source());
+        } else if (!heldBack.isEmpty()) {
+            out.accept(heldBack);
+        }
+        heldBack = "";
+        prefix = "";
+        start = end;
+    }
+
+    private int firstSpan() {
+        return (int) Math.min(Integer.MAX_VALUE, 4L * chunkChars);
+    }
+
+    private void emitCompleteChunks() {
+        int length = text.length();
+        while (length - start >= chunkChars && length >= parseAt) {
+            int to = (int) Math.min(length, (long) start + span);
+            boolean rest = to == length;
+            // A '/' last may open a comment, which hides what a '}' after it would close
+            if ((!rest || !complete) && text.charAt(to - 1) == '/') to--;
+            if (emitSlices(to)) {
+                span = firstSpan();
+                parseAt = 0;
+            } else if (!rest) {
+                span = (int) Math.min(Integer.MAX_VALUE, 2L * span);
+            } else {
+                parseAt = (int) Math.min(Integer.MAX_VALUE, start + 2L * (length - start));
+                break;
+            }
+        }
+        // Once per append, not per slice: small slices would otherwise shift the buffer each time
+        if (buffer != null && start > 0) {
+            buffer.delete(0, start);
+            if (parseAt > 0) parseAt -= start;
+            start = 0;
+        }
+    }
+
+    /**
+     * Parses text[start, to) and minifies the slices it finds: each ends after the first top-level
+     * node, or node inside a block that can be split, that makes it at least chunkChars long.
+     * Returns whether there was any.
+     */
+    private boolean emitSlices(int to) {
+        String window = prefix + text.subSequence(start, to);
+        Stylesheet.Parser parser = new Stylesheet.Parser(window.length() / 24);
+        parser.run(window, 0, -1, null);
+        Stylesheet sheet = parser.finish(window);
+        boolean closed = parser.unclosed == 0; // the last block read, if it ends the window, is whole
+        int base = start - prefix.length(); // offset in text of the window's first character
+        boolean emitted = false;
+        for (int n = 0; n < sheet.size; n = sheet.subtreeEnds[n]) {
+            if (sheet.hasBlock(n) && isSplittable(window, sheet.starts[n], sheet.mids[n])) {
+                // Split only before another rule of the block, so that no slice ends with an empty block
+                String reopen = null;
+                int blockEnd = sheet.subtreeEnds[n];
+                for (int c = n + 1; c < blockEnd && sheet.subtreeEnds[c] < blockEnd; c = sheet.subtreeEnds[c]) {
+                    int end = base + after(sheet, c);
+                    if (end - start < chunkChars) continue;
+                    if (reopen == null) reopen = window.substring(sheet.starts[n], sheet.mids[n] + 1);
+                    out.accept(pipeline.apply(heldBack + prefix + text.subSequence(start, end) + "}").source());
+                    // Nothing is held back: the next slice starts inside the block, and the rules
+                    // of two blocks are not merged anyway
+                    heldBack = "";
+                    prefix = reopen;
+                    start = end;
+                    emitted = true;
+                }
+            }
+            if (sheet.ends[n] >= window.length() && !(closed && sheet.hasBlock(n))) break; // the rest may be yet to come
+            int end = base + after(sheet, n);
+            if (end - start < chunkChars) continue;
+            Stylesheet minified = pipeline.apply(heldBack + prefix + text.subSequence(start, end));
+            String css = minified.source();
+            int last = lastRuleStart(minified);
+            if (last > 0) out.accept(css.substring(0, last));
+            heldBack = css.substring(last);
+            prefix = "";
+            start = end;
+            emitted = true;
+        }
+        return emitted;
+    }
+
+    /** Offset after a node: after the '}' of a block, or the ';' or '}' ending a statement. */
+    private static int after(Stylesheet sheet, int node) {
+        return sheet.hasBlock(node) ? sheet.ends[node] : Math.min(sheet.source().length(), sheet.ends[node] + 1);
+    }
+
+    /** Whether css[from, to), the prelude of a top-level block, names a block that can be split. */
+    static boolean isSplittable(CharSequence css, int from, int to) {
+        String prelude = css.subSequence(from, to).toString().strip().toLowerCase(Locale.ROOT);
+        for (String name : new String[] {"@media", "@supports", "@container"}) {
+            if (prelude.startsWith(name)
+                    && (prelude.length() == name.length() || !isNameChar(prelude.charAt(name.length())))) {
+                return true;
+            }
+        }
+        // An anonymous @layer block is a new layer each time
+        return prelude.startsWith("@layer") && prelude.length() > 6 && Character.isWhitespace(prelude.charAt(6))
+            && prelude.indexOf(',') < 0;
+    }
+
+    private static boolean isNameChar(char c) {
+        return c == '-' || c == '_' || c >= 0x80 || Character.isLetterOrDigit(c);
+    }
+
+    /** Start of the last top-level rule of a minified slice: the end of the node before it, or 0. */
+    static int lastRuleStart(Stylesheet minified) {
+        int last = 0;
+        int previous = -1;
+        for (int n = 0; n < minified.size; n = minified.subtreeEnds[n]) {
+            if (previous >= 0) last = after(minified, previous);
+            previous = n;
+        }
+        return last;
+    }
+}
@@ -1,15 +1,37 @@
 package cssminifier;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import jdk.jfr.FlightRecorder;
+
 public class CssMinifier {
 
+    static {
+        if (Boolean.getBoolean("cssminifier.jmx")) MinifierMetrics.register();
+    }
+
     private static boolean isEscaped(String s, int pos) {
         int backslashes = 0;
         for (int k = pos - 1; k >= 0 && s.charAt(k) == '\\'; k--) backslashes++;
@@ -41,50 +63,411 @@ public class CssMinifier {
     }
 
     public static String minify(String css) {
-        String result = stripComments(css);
-        result = collapseWhitespace(result);
-        result = optimizeValues(result);
-        result = optimizeQuotedTokens(result);
-        result = collapseShorthand(result);
-        result = removeDuplicateProperties(result);
-        result = mergeAdjacentRules(result);
-        return result;
+        return minify(css, null, null, null, 0, null);
     }
 
-    private static String stripComments(String css) {
-        StringBuilder result = new StringBuilder(css.length());
-        boolean inComment = false;
+    /**
+     * Minifies a parsed stylesheet, as {@link #minify(String)} does its source, and returns the
+     * output parsed. Deduplication and merging work from the nodes, so a stylesheet the passes
+     * before them leave as it is, as they leave minified CSS, is not parsed again: minifying the
+     * output again, or one read back with {@link Stylesheet#read}, costs no parse. The output's
+     * nodes are those of the last pass, moved past its edits.
+     */
+    public static Stylesheet minify(Stylesheet sheet) {
+        Stylesheet[] nodes = {sheet};
+        String output = minify(sheet.source(), nodes, null, null, 0, null);
+        return parsed(output, nodes);
+    }
+
+    /**
+     * Minifies within the timeout and subject to the cancellation token of the options. The output
+     * is that of {@link #minify(String)}, except with {@link MinifyOptions#boundedMemory()}: the
+     * output of slices differs where rules meet across slice boundaries, as listed in
+     * {@link ChunkedMinifier}, and is still valid CSS with the same meaning.
+     *
+     * @throws MinifyTimeoutException when the timeout expires, unless the options are best-effort
+     * @throws java.util.concurrent.CancellationException when the token is cancelled
+     */
+    public static String minify(String css, MinifyOptions options) {
+        return minify(css, null, null, Budget.of(options), options.chunkChars(), null);
+    }
+
+    /**
+     * Same as {@link #minify(String, MinifyOptions)}, on a worker of {@link MinifyExecutor#shared()}.
+     * Cancelling the future cancels the minification; under overload the future fails with a
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    public static CompletableFuture<String> minifyAsync(CharSequence css, MinifyOptions options) {
+        return MinifyExecutor.shared().minify(css, options);
+    }
+
+    /**
+     * Minifies a stream a slice of whole top-level rules at a time (see
+     * {@link MinifyOptions#boundedMemory}), writing each slice's output as soon as it is ready.
+     * Memory use is bounded by the slice size and the largest rule that cannot be split (see
+     * {@link ChunkedMinifier}), not by the input, whether or not the options ask for bounded
+     * memory. Neither stream is closed.
+     */
+    public static void minify(Reader in, Writer out, MinifyOptions options) throws IOException {
+        MinifierEvents.Minify event = null;
+        if (FlightRecorder.isInitialized()) {
+            event = new MinifierEvents.Minify();
+            event.begin();
+        }
+        long[] written = new long[1];
+        int chunkChars = options.chunkChars() > 0 ? options.chunkChars() : ChunkedMinifier.DEFAULT_CHUNK_CHARS;
+        ChunkedMinifier chunked = new ChunkedMinifier(chunkChars, slicePipeline(options), part -> {
+            try {
+                out.write(part);
+                written[0] += part.length();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        MinifierMetrics metrics = MinifierMetrics.current();
+        long start = metrics != null ? System.nanoTime() : 0;
+        long read = 0;
+        boolean completed = false;
+        try {
+            CharBuffer buffer = CharBuffer.allocate(8192);
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                read += buffer.remaining();
+                chunked.append(buffer);
+                buffer.clear();
+            }
+            chunked.finish();
+            completed = true;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (RuntimeException | Error e) {
+            if (metrics != null) metrics.recordError();
+            throw e;
+        } finally {
+            if (event != null && event.shouldCommit()) {
+                event.inputLength = read;
+                event.outputLength = written[0];
+                event.completed = completed;
+                event.commit();
+            }
+        }
+        if (metrics != null) metrics.recordCall(read, written[0], System.nanoTime() - start);
+    }
+
+    /** The pipeline for the slices of a {@link ChunkedMinifier}; one budget covers all of them. */
+    static Function<String, Stylesheet> slicePipeline(MinifyOptions options) {
+        Budget budget = Budget.of(options);
+        return chunk -> runPipeline(chunk, null, budget);
+    }
+
+    /**
+     * Same output as {@link #minify(String, MinifyOptions)}, together with a Source Map v3 that maps
+     * every rule and declaration of it back to the input, named {@code sourceName} in the map's
+     * {@code sources}. The passes record where their output came from as they write it (see
+     * {@link OffsetMap}), which needs the stylesheet whole: with bounded memory, the output is
+     * that of {@link #minify(String)} and the memory that of a string.
+     */
+    public static SourceMapResult minifyWithSourceMap(String css, String sourceName, MinifyOptions options) {
+        OffsetMap offsets = OffsetMap.identity();
+        Stylesheet[] nodes = new Stylesheet[1];
+        String output = minify(css, nodes, null, Budget.of(options), 0, offsets);
+        return new SourceMapResult(output, SourceMapGenerator.generate(css, parsed(output, nodes), offsets, sourceName));
+    }
+
+    public static SourceMapResult minifyWithSourceMap(String css, String sourceName) {
+        return minifyWithSourceMap(css, sourceName, MinifyOptions.defaults());
+    }
+
+    /**
+     * Same output as {@link #minify}, together with the time each pipeline stage took, the bytes it
+     * removed and how often the counted rewrites fired.
+     */
+    public static MinifyResult minifyWithStats(String css) {
+        return minifyWithStats(css, MinifyOptions.defaults());
+    }
+
+    /**
+     * Same output as {@link #minify(String, MinifyOptions)}, together with the statistics of
+     * {@link #minifyWithStats(String)}. With bounded memory, the time and bytes of each stage are
+     * summed over the slices.
+     *
+     * @throws MinifyTimeoutException when the timeout expires, unless the options are best-effort
+     * @throws java.util.concurrent.CancellationException when the token is cancelled
+     */
+    public static MinifyResult minifyWithStats(String css, MinifyOptions options) {
+        return minifyWithStats(css, options, null, null);
+    }
+
+    /** With offsets and nodes, as for {@link #minifyWithSourceMap}, for the command line's --stats --source-map. */
+    private static MinifyResult minifyWithStats(String css, MinifyOptions options, OffsetMap offsets, Stylesheet[] nodes) {
+        Stats stats = new Stats();
+        long start = System.nanoTime();
+        String output = minify(css, nodes, stats, Budget.of(options), offsets != null ? 0 : options.chunkChars(), offsets);
+        stats.totalNanos = System.nanoTime() - start;
+        stats.inputLength = css.length();
+        stats.outputLength = output.length();
+        return new MinifyResult(output, stats);
+    }
+
+    // nodes, when not null, holds the parse of css or null, and is left holding that of the output
+    // when the passes had it at hand (see parsed)
+    private static String minify(String css, Stylesheet[] nodes, Stats stats, Budget budget, int chunkChars,
+            OffsetMap offsets) {
+        MinifierEvents.Minify event = null;
+        if (FlightRecorder.isInitialized()) {
+            event = new MinifierEvents.Minify();
+            event.begin();
+        }
+        MinifierMetrics metrics = MinifierMetrics.current();
+        long start = metrics != null ? System.nanoTime() : 0;
+        String output = null;
+        try {
+            output = runPipeline(css, nodes, stats, budget, chunkChars, offsets);
+        } catch (RuntimeException | Error e) {
+            if (metrics != null) metrics.recordError();
+            throw e;
+        } finally {
+            // Calls that time out or fail are recorded too; they are the ones worth a look
+            if (event != null && event.shouldCommit()) {
+                event.inputLength = css.length();
+                event.outputLength = output != null ? output.length() : 0;
+                event.completed = output != null;
+                event.commit();
+            }
+        }
+        if (metrics != null) metrics.recordCall(css.length(), output.length(), System.nanoTime() - start);
+        return output;
+    }
+
+    private static String runPipeline(String css, Stylesheet[] nodes, Stats stats, Budget budget, int chunkChars,
+            OffsetMap offsets) {
+        if (chunkChars <= 0) return runPipeline(css, nodes, stats, budget, offsets);
+        if (nodes != null) nodes[0] = null;
+        return ChunkedMinifier.minify(css, chunkChars, chunk -> runPipeline(chunk, stats, budget));
+    }
+
+    /** A slice's output and its nodes. */
+    private static Stylesheet runPipeline(String css, Stats stats, Budget budget) {
+        Stylesheet[] nodes = new Stylesheet[1];
+        return parsed(runPipeline(css, nodes, stats, budget, null), nodes);
+    }
+
+    /** The nodes of output: those the pipeline left in nodes, or a parse when it had none. */
+    private static Stylesheet parsed(String output, Stylesheet[] nodes) {
+        Stylesheet sheet = nodes[0];
+        return sheet != null && sheet.source() == output ? sheet : Stylesheet.parse(output);
+    }
+
+    // stats is null unless called from minifyWithStats or per-pass events are being recorded;
+    // budget is null unless called with a timeout or cancellation token; offsets is null unless
+    // a source map is being built, and then maps the result so far to css; nodes is null unless
+    // the caller has css parsed or wants the output's nodes. Every use of any of them is behind
+    // a null check.
+    private static String runPipeline(String css, Stylesheet[] nodes, Stats stats, Budget budget, OffsetMap offsets) {
+        if (stats == null && FlightRecorder.isInitialized() && new MinifierEvents.Pass().isEnabled()) stats = new Stats();
+        String result = css; // output of the last completed stage
+        String next;
+        OffsetMap passOffsets = offsets != null ? new OffsetMap() : null; // of the stage running
+        Stage stage = Stage.STRIP_COMMENTS;
+        long mark = stats != null ? stats.start() : 0;
+        try {
+            if (!isAlreadyMinified(result)) {
+                if (budget != null) budget.check();
+                next = stripComments(result, budget, passOffsets);
+                if (stats != null) mark = stats.record(Stage.STRIP_COMMENTS, mark, result, next);
+                follow(offsets, passOffsets, result, next);
+                result = next;
+                stage = Stage.COLLAPSE_WHITESPACE;
+                if (budget != null) budget.check();
+                next = collapseWhitespace(result, budget, passOffsets);
+                if (stats != null) mark = stats.record(Stage.COLLAPSE_WHITESPACE, mark, result, next);
+                follow(offsets, passOffsets, result, next);
+                result = next;
+            }
+            int features = scanFeatures(result);
+            if (stats != null) mark = stats.start();
+            if ((features & VALUE_FEATURES) != 0) {
+                stage = Stage.OPTIMIZE_VALUES;
+                if (budget != null) budget.check();
+                next = optimizeValues(result, features, stats, budget, passOffsets);
+                if (stats != null) mark = stats.record(Stage.OPTIMIZE_VALUES, mark, result, next);
+                follow(offsets, passOffsets, result, next);
+                result = next;
+            }
+            if ((features & (HAS_URL | HAS_ATTRIBUTE)) != 0) {
+                stage = Stage.OPTIMIZE_QUOTED_TOKENS;
+                if (budget != null) budget.check();
+                next = optimizeQuotedTokens(result, budget, passOffsets);
+                if (stats != null) mark = stats.record(Stage.OPTIMIZE_QUOTED_TOKENS, mark, result, next);
+                follow(offsets, passOffsets, result, next);
+                result = next;
+            }
+            if ((features & HAS_BOX_SIDES) != 0) {
+                stage = Stage.COLLAPSE_SHORTHAND;
+                if (budget != null) budget.check();
+                next = collapseShorthand(result, budget, passOffsets);
+                if (stats != null) mark = stats.record(Stage.COLLAPSE_SHORTHAND, mark, result, next);
+                follow(offsets, passOffsets, result, next);
+                result = next;
+            }
+            // The last two stages work from the nodes, parsed here unless the caller's still fit
+            stage = Stage.REMOVE_DUPLICATE_PROPERTIES;
+            if (budget != null) budget.check();
+            Stylesheet sheet = nodes != null && nodes[0] != null && nodes[0].source() == result
+                ? nodes[0] : Stylesheet.parse(result, budget);
+            sheet = removeDuplicateProperties(sheet, stats, budget, passOffsets);
+            next = sheet.source();
+            if (stats != null) mark = stats.record(Stage.REMOVE_DUPLICATE_PROPERTIES, mark, result, next);
+            follow(offsets, passOffsets, result, next);
+            result = next;
+            stage = Stage.MERGE_ADJACENT_RULES;
+            if (budget != null) budget.check();
+            next = mergeAdjacentRules(sheet, stats, budget, passOffsets, nodes);
+            if (stats != null) stats.record(Stage.MERGE_ADJACENT_RULES, mark, result, next);
+            follow(offsets, passOffsets, result, next);
+        } catch (Budget.Expired e) {
+            // Every stage maps valid CSS to equivalent CSS, so any stage's output is a valid result
+            if (budget.bestEffort) return result;
+            throw new MinifyTimeoutException(stage, budget.timeout);
+        }
+        return next;
+    }
+
+    /**
+     * Moves offsets on to the output of a pass when it changed the text, clears passOffsets for the
+     * next pass and returns the output.
+     */
+    private static String follow(OffsetMap offsets, OffsetMap passOffsets, String before, String after) {
+        if (offsets == null) return after;
+        if (after != before) offsets.follow(passOffsets);
+        passOffsets.clear();
+        return after;
+    }
+
+    /**
+     * Timeout and cancellation of one call, checked cooperatively: before each stage, and in the
+     * scanning loop of each stage once every {@link #INTERVAL} characters, as in
+     * <pre>
+     * int checkAt = budget == null ? Integer.MAX_VALUE : 0;
+     * for (...) {
+     *     if (i >= checkAt) checkAt = budget.check(i);
+     * </pre>
+     */
+    static final class Budget {
+        static final int INTERVAL = 16 * 1024;
+
+        private final long deadline;
+        private final Duration timeout; // null for no deadline
+        private final MinifyOptions.CancellationToken cancellation;
+        private final boolean bestEffort;
+
+        private Budget(MinifyOptions options) {
+            this.timeout = options.timeout();
+            this.deadline = timeout == null ? 0 : System.nanoTime() + timeout.toNanos();
+            this.cancellation = options.cancellation();
+            this.bestEffort = options.isBestEffort();
+        }
+
+        /** Null, the cheapest budget to check, when the options set neither timeout nor token. */
+        static Budget of(MinifyOptions options) {
+            if (options.timeout() == null && options.cancellation() == null) return null;
+            return new Budget(options);
+        }
+
+        void check() {
+            if (cancellation != null && cancellation.isCancelled()) {
+                throw new CancellationException("Minification cancelled");
+            }
+            if (timeout != null && System.nanoTime() - deadline >= 0) throw new Expired();
+        }
+
+        /** Checks, and returns the position of the next check. */
+        int check(int position) {
+            check();
+            return position + INTERVAL;
+        }
+
+        /** Unwinds a stage to the pipeline, which turns it into a result or a MinifyTimeoutException. */
+        static final class Expired extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            Expired() {
+                super(null, null, false, false);
+            }
+        }
+    }
+
+    /**
+     * Cheap pre-check for input that stripComments and collapseWhitespace would return unchanged:
+     * no comments, no whitespace other than single significant spaces, no ';' before '}'.
+     */
+    static boolean isAlreadyMinified(String css) {
+        int len = css.length();
+        if (len > 0 && (css.charAt(0) <= ' ' || css.charAt(len - 1) <= ' ')) return false;
         boolean inString = false;
         char stringChar = 0;
+        int braceDepth = 0;
+        int parenDepth = 0;
+        char prev = 0;
 
-        for (int i = 0; i < css.length(); i++) {
+        for (int i = 0; i < len; i++) {
             char c = css.charAt(i);
-            char next = i + 1 < css.length() ? css.charAt(i + 1) : 0;
 
-            if (!inString && !inComment && c == '/' && next == '*') {
-                // Check for /*! license comment — preserve it
-                if (i + 2 < css.length() && css.charAt(i + 2) == '!') {
-                    int end = css.indexOf("*/", i + 3);
-                    if (end != -1) {
-                        result.append(css, i, end + 2);
-                        i = end + 1; // will be incremented by loop
-                        continue;
-                    }
+            if (inString) {
+                if (c == stringChar && !isEscaped(css, i)) {
+                    inString = false;
                 }
-                inComment = true;
-                i++;
+                prev = c;
                 continue;
             }
-            if (inComment) {
-                if (c == '*' && next == '/') {
-                    inComment = false;
-                    i++;
-                }
+            if (c == '"' || c == '\'') {
+                inString = true;
+                stringChar = c;
+                prev = c;
                 continue;
             }
+            if (c == '/' && i + 1 < len && css.charAt(i + 1) == '*') return false;
+
+            if (c == '{') braceDepth++;
+            else if (c == '}') braceDepth--;
+            else if (c == '(') parenDepth++;
+            else if (c == ')') parenDepth--;
+
+            if (Character.isWhitespace(c)) {
+                // Only a lone ' ' between two non-strip characters survives collapseWhitespace
+                char next = i + 1 < len ? css.charAt(i + 1) : 0;
+                if (c != ' ' || Character.isWhitespace(next)
+                        || isStripChar(prev, braceDepth, parenDepth)
+                        || isStripChar(next, braceDepth, parenDepth)) {
+                    return false;
+                }
+            } else if (c == '}' && prev == ';') {
+                return false;
+            }
+            prev = c;
+        }
+        return true;
+    }
+
+    static String stripComments(String css) {
+        return stripComments(css, null, null);
+    }
+
+    // offsets, when not null, records where each part of the output came from in css; so for
+    // every pass below
+    private static String stripComments(String css, Budget budget, OffsetMap offsets) {
+        if (css.indexOf("/*") < 0) return css;
+        StringBuilder result = new StringBuilder(css.length());
+        int copied = 0; // css[0, copied) is already in result
+        boolean inString = false;
+        char stringChar = 0;
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
+
+        for (int i = 0; i < css.length(); i++) {
+            if (i >= checkAt) checkAt = budget.check(i);
+            char c = css.charAt(i);
 
             if (inString) {
-                result.append(c);
                 if (c == stringChar && !isEscaped(css, i)) {
                     inString = false;
                 }
@@ -93,12 +476,35 @@ public class CssMinifier {
             if (c == '"' || c == '\'') {
                 inString = true;
                 stringChar = c;
+                continue;
             }
 
-            result.append(c);
+            if (c == '/' && i + 1 < css.length() && css.charAt(i + 1) == '*') {
+                // Check for /*! license comment — preserve it
+                if (i + 2 < css.length() && css.charAt(i + 2) == '!') {
+                    int end = css.indexOf("*/", i + 3);
+                    if (end != -1) {
+                        i = end + 1; // will be incremented by loop
+                        continue;
+                    }
+                }
+                if (offsets != null) offsets.copy(result.length(), copied);
+                result.append(css, copied, i);
+                int end = css.indexOf("*/", i + 2);
+                if (end == -1) {
+                    // Unterminated comment runs to the end of input
+                    copied = css.length();
+                    break;
+                }
+                copied = end + 2;
+                i = end + 1;
+            }
         }
+        if (offsets != null) offsets.copy(result.length(), copied);
+        result.append(css, copied, css.length());
 
-        return result.toString();
+        // Comments are only ever removed, so equal length means nothing was stripped
+        return result.length() == css.length() ? css : result.toString();
     }
 
     private static boolean isStripChar(char c, int braceDepth, int parenDepth) {
@@ -117,18 +523,24 @@ public class CssMinifier {
         return false;
     }
 
-    private static String collapseWhitespace(String css) {
+    static String collapseWhitespace(String css) {
+        return collapseWhitespace(css, null, null);
+    }
+
+    private static String collapseWhitespace(String css, Budget budget, OffsetMap offsets) {
         StringBuilder result = new StringBuilder(css.length());
+        int copied = 0; // css[0, copied) is already in result
         boolean inString = false;
         char stringChar = 0;
         int braceDepth = 0;
         int parenDepth = 0;
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
 
         for (int i = 0; i < css.length(); i++) {
+            if (i >= checkAt) checkAt = budget.check(i);
             char c = css.charAt(i);
 
             if (inString) {
-                result.append(c);
                 if (c == stringChar && !isEscaped(css, i)) {
                     inString = false;
                 }
@@ -137,7 +549,6 @@ public class CssMinifier {
             if (c == '"' || c == '\'') {
                 inString = true;
                 stringChar = c;
-                result.append(c);
                 continue;
             }
 
@@ -148,239 +559,500 @@ public class CssMinifier {
             else if (c == ')') parenDepth--;
 
             if (Character.isWhitespace(c)) {
-                char prev = result.length() > 0 ? result.charAt(result.length() - 1) : 0;
-                if (isStripChar(prev, braceDepth, parenDepth)) {
-                    continue;
-                }
+                // A whitespace run becomes at most one space
+                if (offsets != null) offsets.copy(result.length(), copied);
+                result.append(css, copied, i);
                 int j = i + 1;
                 while (j < css.length() && Character.isWhitespace(css.charAt(j))) j++;
+                char prev = result.length() > 0 ? result.charAt(result.length() - 1) : 0;
                 char nextNonWs = j < css.length() ? css.charAt(j) : 0;
-                if (isStripChar(nextNonWs, braceDepth, parenDepth)) {
-                    continue;
-                }
-                if (prev != ' ' && prev != 0) {
-                    result.append(' ');
+                if (!isStripChar(prev, braceDepth, parenDepth) && !isStripChar(nextNonWs, braceDepth, parenDepth)
+                        && prev != ' ' && prev != 0) {
+                    result.append(' '); // maps to css[i], carrying on the run copied before it
                 }
+                copied = j;
+                i = j - 1;
                 continue;
             }
 
-            if (c == '}' && result.length() > 0 && result.charAt(result.length() - 1) == ';') {
-                result.setLength(result.length() - 1);
+            if (c == '}') {
+                if (offsets != null) offsets.copy(result.length(), copied);
+                result.append(css, copied, i);
+                copied = i;
+                if (result.length() > 0 && result.charAt(result.length() - 1) == ';') {
+                    result.setLength(result.length() - 1);
+                    if (offsets != null) offsets.truncate(result.length());
+                }
             }
-
-            result.append(c);
         }
+        if (offsets != null) offsets.copy(result.length(), copied);
+        result.append(css, copied, css.length());
 
-        return result.toString().trim();
+        String collapsed = result.length() == css.length() && css.contentEquals(result) ? css : result.toString();
+        String trimmed = collapsed.trim();
+        if (offsets != null && trimmed != collapsed && !trimmed.isEmpty()) {
+            offsets.trimStart(collapsed.indexOf(trimmed.charAt(0))); // what trim dropped before it is all whitespace
+        }
+        return trimmed;
     }
 
-    // Matches 6-digit hex where pairs are identical: #AABBCC (case-insensitive backrefs)
-    private static final Pattern HEX6 = Pattern.compile(
-        "#([0-9a-fA-F])\\1([0-9a-fA-F])\\2([0-9a-fA-F])\\3(?![0-9a-fA-F])",
-        Pattern.CASE_INSENSITIVE);
+    // Trigger bits recorded by scanFeatures(). A rewrite whose trigger is absent cannot fire,
+    // so the pipeline skips it. None of the rewrites introduces a trigger for a later one,
+    // which keeps the bits valid for every pass after collapseWhitespace.
+    static final int HAS_HASH = 1;
+    static final int HAS_ZERO = 1 << 1;
+    static final int HAS_FONT_WEIGHT = 1 << 2;
+    static final int HAS_KEYFRAMES = 1 << 3;
+    static final int HAS_TRANSLATE3D = 1 << 4;
+    static final int HAS_SCALE3D = 1 << 5;
+    static final int HAS_ROTATE3D = 1 << 6;
+    static final int HAS_BACKGROUND = 1 << 7;
+    static final int HAS_OUTLINE = 1 << 8;
+    static final int HAS_URL = 1 << 9;
+    static final int HAS_ATTRIBUTE = 1 << 10;
+    static final int HAS_BOX_SIDES = 1 << 11;
+    static final int ALL_FEATURES = (1 << 12) - 1;
+
+    private static final int VALUE_FEATURES = HAS_HASH | HAS_ZERO | HAS_FONT_WEIGHT | HAS_KEYFRAMES
+        | HAS_TRANSLATE3D | HAS_SCALE3D | HAS_ROTATE3D | HAS_BACKGROUND | HAS_OUTLINE;
 
-    // Matches 8-digit hex where pairs are identical: #AABBCCDD (case-insensitive backrefs)
-    private static final Pattern HEX8 = Pattern.compile(
-        "#([0-9a-fA-F])\\1([0-9a-fA-F])\\2([0-9a-fA-F])\\3([0-9a-fA-F])\\4(?![0-9a-fA-F])",
-        Pattern.CASE_INSENSITIVE);
+    /**
+     * Single pass over whitespace-collapsed CSS recording which rewrite triggers occur.
+     * Runs after collapseWhitespace so that tokens joined by comment removal or
+     * whitespace stripping ("font-weight : bold") are seen exactly as the value passes see them.
+     */
+    static int scanFeatures(String css) {
+        int features = 0;
+        for (int i = 0; i < css.length() && features != ALL_FEATURES; i++) {
+            switch (css.charAt(i)) {
+                case '#' -> features |= HAS_HASH;
+                case '0' -> features |= HAS_ZERO;
+                case '[' -> features |= HAS_ATTRIBUTE;
+                case 'k' -> { if (css.startsWith("keyframes", i)) features |= HAS_KEYFRAMES; }
+                case 'f' -> { if (css.startsWith("font-weight:", i)) features |= HAS_FONT_WEIGHT; }
+                case 't' -> { if (css.startsWith("translate3d(", i)) features |= HAS_TRANSLATE3D; }
+                case 's' -> { if (css.startsWith("scale3d(", i)) features |= HAS_SCALE3D; }
+                case 'r' -> { if (css.startsWith("rotate3d(", i)) features |= HAS_ROTATE3D; }
+                case 'b' -> { if (css.startsWith("background:", i)) features |= HAS_BACKGROUND; }
+                case 'o' -> { if (css.startsWith("outline:", i)) features |= HAS_OUTLINE; }
+                case 'u' -> { if (css.startsWith("url(", i)) features |= HAS_URL; }
+                case 'm' -> { if (css.startsWith("margin-", i)) features |= HAS_BOX_SIDES; }
+                case 'p' -> { if (css.startsWith("padding-", i)) features |= HAS_BOX_SIDES; }
+                default -> { }
+            }
+        }
+        return features;
+    }
 
-    private static final Pattern ZERO_UNIT = Pattern.compile(
-        "(?<=[:\\s,(/])0(px|em|rem|pt|cm|mm|in|pc|ex|ch|vw|vh|vmin|vmax|deg|rad|turn|%)(?![0-9a-zA-Z%])");
+    /**
+     * A pattern compiled on first use rather than in the static initializer: most stylesheets
+     * need few or none of the value patterns below, and compiling all of them would add to the
+     * start-up time of every short command-line run. Two threads may both compile it; either
+     * result is kept.
+     */
+    private static final class LazyPattern {
+        private final String regex;
+        private volatile Pattern pattern;
 
-    private static final Pattern LEADING_ZERO = Pattern.compile(
-        "(?<=[:\\s,(/\\-])0(\\.\\d+)");
+        LazyPattern(String regex) {
+            this.regex = regex;
+        }
 
-    private static final Pattern FONT_WEIGHT = Pattern.compile(
-        "font-weight:(normal|bold)(?=[;}\"])");
+        Matcher matcher(CharSequence input) {
+            Pattern p = pattern;
+            if (p == null) pattern = p = Pattern.compile(regex);
+            return p.matcher(input);
+        }
+    }
 
     // 6. Keyframe from → 0%, 100% → to (only in keyframe context: preceded by { or })
+    // Only attempted when the stylesheet contains a keyframes at-rule.
     // NOTE: These patterns could theoretically match a `from` element selector directly
     // after `}` with no class/id prefix, but this never occurs in practice. A proper fix
     // would require structural keyframe-context parsing.
-    private static final Pattern KEYFRAME_FROM = Pattern.compile(
+    private static final LazyPattern KEYFRAME_FROM = new LazyPattern(
         "(?<=[{}])from(?=\\s*[{,])");
-    private static final Pattern KEYFRAME_100 = Pattern.compile(
+    private static final LazyPattern KEYFRAME_100 = new LazyPattern(
         "(?<=[{}])100%(?=\\s*[{,])");
 
     // 7. translate3d(0,0,X) → translateZ(X) (any Z value, including 0)
-    private static final Pattern TRANSLATE3D_Z = Pattern.compile(
+    private static final LazyPattern TRANSLATE3D_Z = new LazyPattern(
         "translate3d\\(0,\\s*0,\\s*([^)]+)\\)");
 
     // 8. scale3d(1,1,1) → scaleX(1)
-    private static final Pattern SCALE3D_IDENTITY = Pattern.compile(
+    private static final LazyPattern SCALE3D_IDENTITY = new LazyPattern(
         "scale3d\\(1,\\s*1,\\s*1\\)");
 
     // 9. rotate3d single-axis → rotate/rotateX/rotateY
-    private static final Pattern ROTATE3D_Z = Pattern.compile(
+    private static final LazyPattern ROTATE3D_Z = new LazyPattern(
         "rotate3d\\(0,\\s*0,\\s*1,\\s*([^)]+)\\)");
-    private static final Pattern ROTATE3D_Y = Pattern.compile(
+    private static final LazyPattern ROTATE3D_Y = new LazyPattern(
         "rotate3d\\(0,\\s*1,\\s*0,\\s*([^)]+)\\)");
-    private static final Pattern ROTATE3D_X = Pattern.compile(
+    private static final LazyPattern ROTATE3D_X = new LazyPattern(
         "rotate3d\\(1,\\s*0,\\s*0,\\s*([^)]+)\\)");
 
     // 10. background:transparent/none → background:0 0
-    private static final Pattern BACKGROUND_TRANSPARENT = Pattern.compile(
+    private static final LazyPattern BACKGROUND_TRANSPARENT = new LazyPattern(
         "background:(transparent|none)(?=[;},!])");
 
     // 11. outline:none → outline:0
-    private static final Pattern OUTLINE_NONE = Pattern.compile(
+    private static final LazyPattern OUTLINE_NONE = new LazyPattern(
         "outline:none(?=[;},!])");
 
     static String optimizeValues(String css) {
-        StringBuilder result = new StringBuilder(css.length());
+        return optimizeValues(css, scanFeatures(css));
+    }
+
+    static String optimizeValues(String css, int features) {
+        return optimizeValues(css, features, null, null, null);
+    }
+
+    private static String optimizeValues(String css, int features, Stats stats, Budget budget, OffsetMap offsets) {
+        StringBuilder result = null; // created on first modified segment
+        int copied = 0;              // css[0, copied) is already in result
         boolean inString = false;
         char stringChar = 0;
         int segmentStart = 0;
+        OffsetMap segmentOffsets = offsets != null ? new OffsetMap() : null;
+        OffsetMap step = offsets != null ? new OffsetMap() : null; // of the segment's rewrite running
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
 
         for (int i = 0; i < css.length(); i++) {
+            if (i >= checkAt) checkAt = budget.check(i);
             char c = css.charAt(i);
 
             if (inString) {
                 if (c == stringChar && !isEscaped(css, i)) {
                     inString = false;
-                    // Append string verbatim (including closing quote)
-                    result.append(css, segmentStart, i + 1);
+                    // Strings are kept verbatim (including closing quote)
                     segmentStart = i + 1;
                 }
                 continue;
             }
             if (c == '"' || c == '\'') {
                 // Process the non-string segment before this string
-                result.append(optimizeSegment(css.substring(segmentStart, i)));
+                String segment = css.substring(segmentStart, i);
+                String optimized = optimizeSegment(segment, features, stats, budget, segmentOffsets, step);
+                if (optimized != segment) {
+                    if (result == null) result = new StringBuilder(css.length());
+                    if (offsets != null) offsets.copy(result.length(), copied);
+                    result.append(css, copied, segmentStart);
+                    if (offsets != null) offsets.append(segmentOffsets, result.length(), segmentStart);
+                    result.append(optimized);
+                    copied = i;
+                }
                 inString = true;
                 stringChar = c;
-                segmentStart = i; // string start (will be appended verbatim when string ends or at EOF)
+                segmentStart = i; // string start (kept verbatim when string ends or at EOF)
                 continue;
             }
         }
 
         // Process remaining segment
-        if (segmentStart < css.length()) {
-            if (inString) {
-                result.append(css, segmentStart, css.length());
-            } else {
-                result.append(optimizeSegment(css.substring(segmentStart)));
+        if (segmentStart < css.length() && !inString) {
+            String segment = css.substring(segmentStart);
+            String optimized = optimizeSegment(segment, features, stats, budget, segmentOffsets, step);
+            if (optimized != segment && segmentStart == 0) {
+                // No strings: the segment is the whole text, so its map, levels and all, is the pass's
+                if (offsets != null) {
+                    offsets.copy(0, 0);
+                    offsets.follow(segmentOffsets);
+                }
+                return optimized;
+            }
+            if (optimized != segment) {
+                if (result == null) result = new StringBuilder(css.length());
+                if (offsets != null) offsets.copy(result.length(), copied);
+                result.append(css, copied, segmentStart);
+                if (offsets != null) offsets.append(segmentOffsets, result.length(), segmentStart);
+                result.append(optimized);
+                copied = css.length();
             }
         }
 
+        if (result == null) return css;
+        if (offsets != null) offsets.copy(result.length(), copied);
+        result.append(css, copied, css.length());
         return result.toString();
     }
 
-    private static boolean isInCustomProperty(String segment, int pos) {
-        // Scan backward to find start of current declaration (after ; or { or start)
-        int declStart = 0;
-        for (int k = pos - 1; k >= 0; k--) {
-            char ch = segment.charAt(k);
-            if (ch == ';' || ch == '{') {
-                declStart = k + 1;
-                break;
-            }
-        }
-        // Check if declaration starts with '--'
-        return declStart + 1 < segment.length()
-            && segment.charAt(declStart) == '-'
-            && segment.charAt(declStart + 1) == '-';
-    }
-
-    private static String optimizeSegment(String segment) {
-        // 1. Shorten 8-digit hex colors
-        Matcher m8 = HEX8.matcher(segment);
-        StringBuilder sb = new StringBuilder();
-        while (m8.find()) {
-            String replacement = "#" + m8.group(1).toLowerCase() + m8.group(2).toLowerCase()
-                + m8.group(3).toLowerCase() + m8.group(4).toLowerCase();
-            m8.appendReplacement(sb, Matcher.quoteReplacement(replacement));
-        }
-        m8.appendTail(sb);
-        segment = sb.toString();
-
-        // 2. Shorten 6-digit hex colors
-        Matcher m6 = HEX6.matcher(segment);
-        sb = new StringBuilder();
-        while (m6.find()) {
-            String replacement = "#" + m6.group(1).toLowerCase() + m6.group(2).toLowerCase()
-                + m6.group(3).toLowerCase();
-            m6.appendReplacement(sb, Matcher.quoteReplacement(replacement));
-        }
-        m6.appendTail(sb);
-        segment = sb.toString();
-
-        // 3. Remove units on zero values (skip keyframe selectors and custom properties)
-        Matcher mz = ZERO_UNIT.matcher(segment);
-        sb = new StringBuilder();
-        while (mz.find()) {
-            int afterMatch = mz.end();
+    // Rewrites 1-5 are plain character scans rather than regexes: on small inputs, Matcher setup
+    // and a regex pass over the segment cost more than the rewrite itself. Each returns its
+    // input instance when nothing matched, and checks the budget as it goes, since a segment
+    // without quotes is the whole stylesheet.
+
+    private static boolean isHexDigit(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    /** The \s class of java.util.regex without UNICODE_CHARACTER_CLASS. */
+    private static boolean isRegexSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    /**
+     * #AABBCCDD → #abcd and #AABBCC → #abc: a '#' followed by exactly 8 or 6 hex digits whose
+     * pairs match case-insensitively.
+     */
+    private static String shortenHexColors(String segment, Stats stats, Budget budget, OffsetMap offsets) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
+        for (int i = segment.indexOf('#'); i >= 0; i = segment.indexOf('#', i + 1)) {
+            if (i >= checkAt) checkAt = budget.check(i);
+            int digits = 0;
+            while (i + 1 + digits < segment.length() && isHexDigit(segment.charAt(i + 1 + digits))) digits++;
+            if (digits != 6 && digits != 8) continue;
+            boolean paired = true;
+            for (int k = i + 1; k < i + 1 + digits && paired; k += 2) {
+                paired = Character.toLowerCase(segment.charAt(k)) == Character.toLowerCase(segment.charAt(k + 1));
+            }
+            if (!paired) continue;
+            if (sb == null) sb = new StringBuilder(segment.length());
+            if (stats != null) stats.hexColors++;
+            if (offsets != null) offsets.copy(sb.length(), copied);
+            sb.append(segment, copied, i + 1);
+            if (offsets != null) offsets.write(sb.length(), i + 1);
+            for (int k = i + 1; k < i + 1 + digits; k += 2) {
+                sb.append(Character.toLowerCase(segment.charAt(k)));
+            }
+            copied = i + 1 + digits;
+        }
+        if (sb == null) return segment;
+        if (offsets != null) offsets.copy(sb.length(), copied);
+        return sb.append(segment, copied, segment.length()).toString();
+    }
+
+    private static final String[] ZERO_UNITS = {
+        "px", "em", "rem", "pt", "cm", "mm", "in", "pc", "ex", "ch", "vw", "vh", "vmin", "vmax",
+        "deg", "rad", "turn", "%"};
+
+    /**
+     * 0px → 0: a '0' after one of ":,(/" or whitespace, followed by a unit that ends the token.
+     * Keeps 0% keyframe selectors (followed by '{') and units inside custom properties.
+     */
+    private static String stripZeroUnits(String segment, Stats stats, Budget budget, OffsetMap offsets) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int declStart = 0; // start of the declaration (after ';' or '{') the last candidate is in
+        int scanned = 0;   // segment[0, scanned) was searched for declaration starts
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
+        for (int i = segment.indexOf('0', 1); i > 0; i = segment.indexOf('0', i + 1)) {
+            if (i >= checkAt) checkAt = budget.check(i);
+            char prev = segment.charAt(i - 1);
+            if (prev != ':' && prev != ',' && prev != '(' && prev != '/' && !isRegexSpace(prev)) continue;
+            int unitEnd = -1;
+            for (String unit : ZERO_UNITS) {
+                if (!segment.startsWith(unit, i + 1)) continue;
+                int end = i + 1 + unit.length();
+                char after = end < segment.length() ? segment.charAt(end) : 0;
+                boolean endsToken = !((after >= '0' && after <= '9') || (after >= 'a' && after <= 'z')
+                    || (after >= 'A' && after <= 'Z') || after == '%');
+                if (endsToken) unitEnd = end;
+                break; // no unit is a prefix of another, so no other can match here
+            }
+            if (unitEnd < 0) continue;
             // Don't strip 0% when it's a keyframe selector (followed by '{')
-            if (mz.group(1).equals("%") && afterMatch < segment.length() && segment.charAt(afterMatch) == '{') {
-                mz.appendReplacement(sb, Matcher.quoteReplacement(mz.group()));
-            // Don't strip units inside custom property declarations (--name:0px)
-            } else if (isInCustomProperty(segment, mz.start())) {
-                mz.appendReplacement(sb, Matcher.quoteReplacement(mz.group()));
-            } else {
-                mz.appendReplacement(sb, "0");
+            if (segment.charAt(unitEnd - 1) == '%' && unitEnd < segment.length() && segment.charAt(unitEnd) == '{') continue;
+            // Don't strip units inside custom property declarations (--name:0px). The declaration
+            // start only moves forward, so finding it is one pass over the segment in all.
+            for (; scanned < i; scanned++) {
+                char ch = segment.charAt(scanned);
+                if (ch == ';' || ch == '{') declStart = scanned + 1;
             }
+            if (segment.startsWith("--", declStart)) continue;
+            if (sb == null) sb = new StringBuilder(segment.length());
+            if (stats != null) stats.zeroUnits++;
+            if (offsets != null) offsets.copy(sb.length(), copied);
+            sb.append(segment, copied, i + 1);
+            copied = unitEnd;
+            i = unitEnd - 1;
+        }
+        if (sb == null) return segment;
+        if (offsets != null) offsets.copy(sb.length(), copied);
+        return sb.append(segment, copied, segment.length()).toString();
+    }
+
+    /** 0.25 → .25: a '0' after one of ":,(/-" or whitespace, followed by '.' and a digit. */
+    private static String stripLeadingZeros(String segment, Budget budget, OffsetMap offsets) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
+        for (int i = segment.indexOf('0', 1); i > 0; i = segment.indexOf('0', i + 1)) {
+            if (i >= checkAt) checkAt = budget.check(i);
+            char prev = segment.charAt(i - 1);
+            if (prev != ':' && prev != ',' && prev != '(' && prev != '/' && prev != '-' && !isRegexSpace(prev)) continue;
+            if (i + 2 >= segment.length() || segment.charAt(i + 1) != '.') continue;
+            char digit = segment.charAt(i + 2);
+            if (digit < '0' || digit > '9') continue;
+            if (sb == null) sb = new StringBuilder(segment.length());
+            if (offsets != null) offsets.copy(sb.length(), copied);
+            sb.append(segment, copied, i);
+            copied = i + 1;
+            // Skip the fraction digits, as the regex match would have consumed them
+            i += 2;
+            while (i + 1 < segment.length() && segment.charAt(i + 1) >= '0' && segment.charAt(i + 1) <= '9') i++;
+        }
+        if (sb == null) return segment;
+        if (offsets != null) offsets.copy(sb.length(), copied);
+        return sb.append(segment, copied, segment.length()).toString();
+    }
+
+    /** font-weight:bold → 700 and font-weight:normal → 400, when the value ends at ';', '}' or '"'. */
+    private static String shortenFontWeight(String segment, Budget budget, OffsetMap offsets) {
+        StringBuilder sb = null;
+        int copied = 0;
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
+        for (int i = segment.indexOf("font-weight:"); i >= 0; i = segment.indexOf("font-weight:", i + 1)) {
+            if (i >= checkAt) checkAt = budget.check(i);
+            int value = i + "font-weight:".length();
+            String keyword = segment.startsWith("bold", value) ? "bold" : segment.startsWith("normal", value) ? "normal" : null;
+            if (keyword == null) continue;
+            int end = value + keyword.length();
+            char after = end < segment.length() ? segment.charAt(end) : 0;
+            if (after != ';' && after != '}' && after != '"') continue;
+            if (sb == null) sb = new StringBuilder(segment.length());
+            if (offsets != null) offsets.copy(sb.length(), copied);
+            sb.append(segment, copied, value);
+            if (offsets != null) offsets.write(sb.length(), value);
+            sb.append(keyword.equals("bold") ? "700" : "400");
+            copied = end;
+        }
+        if (sb == null) return segment;
+        if (offsets != null) offsets.copy(sb.length(), copied);
+        return sb.append(segment, copied, segment.length()).toString();
+    }
+
+    // offsets, when not null, is set to map the result to the segment: each rewrite records into
+    // step, which is followed when the rewrite changed the segment
+    private static String optimizeSegment(String segment, int features, Stats stats, Budget budget, OffsetMap offsets,
+            OffsetMap step) {
+        // Each rewrite only builds a new String when it matches, so an untouched segment
+        // comes back as the same instance. The regex rewrites below are single linear passes;
+        // the budget is checked before each one that runs.
+        if (offsets != null) {
+            offsets.clear();
+            offsets.copy(0, 0);
         }
-        mz.appendTail(sb);
-        segment = sb.toString();
 
-        // 4. Remove leading zeros from decimals (0.25 -> .25)
-        Matcher mlz = LEADING_ZERO.matcher(segment);
-        sb = new StringBuilder();
-        while (mlz.find()) {
-            mlz.appendReplacement(sb, Matcher.quoteReplacement(mlz.group(1)));
+        // 1-2. Shorten 8- and 6-digit hex colors
+        if ((features & HAS_HASH) != 0) {
+            segment = follow(offsets, step, segment, shortenHexColors(segment, stats, budget, step));
+        }
+
+        if ((features & HAS_ZERO) != 0) {
+            // 3. Remove units on zero values (skip keyframe selectors and custom properties)
+            segment = follow(offsets, step, segment, stripZeroUnits(segment, stats, budget, step));
+            // 4. Remove leading zeros from decimals (0.25 -> .25)
+            segment = follow(offsets, step, segment, stripLeadingZeros(segment, budget, step));
         }
-        mlz.appendTail(sb);
-        segment = sb.toString();
 
         // 5. Shorten font-weight keywords
-        Matcher mfw = FONT_WEIGHT.matcher(segment);
-        sb = new StringBuilder();
-        while (mfw.find()) {
-            String val = mfw.group(1).equals("bold") ? "font-weight:700" : "font-weight:400";
-            mfw.appendReplacement(sb, Matcher.quoteReplacement(val));
+        if ((features & HAS_FONT_WEIGHT) != 0) {
+            segment = follow(offsets, step, segment, shortenFontWeight(segment, budget, step));
         }
-        mfw.appendTail(sb);
-        segment = sb.toString();
 
-        // 6. Keyframe from → 0%, 100% → to
-        segment = KEYFRAME_FROM.matcher(segment).replaceAll("0%");
-        segment = KEYFRAME_100.matcher(segment).replaceAll("to");
+        if ((features & HAS_KEYFRAMES) != 0) {
+            if (budget != null) budget.check();
+            // 6. Keyframe from → 0%, 100% → to
+            segment = follow(offsets, step, segment, replaceAll(KEYFRAME_FROM, segment, "0%", step));
+            segment = follow(offsets, step, segment, replaceAll(KEYFRAME_100, segment, "to", step));
+        }
 
         // 7. translate3d(0,0,X) → translateZ(X)
-        segment = TRANSLATE3D_Z.matcher(segment).replaceAll("translateZ($1)");
+        if ((features & HAS_TRANSLATE3D) != 0 && segment.contains("translate3d(")) {
+            if (budget != null) budget.check();
+            segment = follow(offsets, step, segment, replaceAll(TRANSLATE3D_Z, segment, "translateZ($1)", step));
+        }
 
         // 8. scale3d(1,1,1) → scaleX(1)
-        segment = SCALE3D_IDENTITY.matcher(segment).replaceAll("scaleX(1)");
+        if ((features & HAS_SCALE3D) != 0 && segment.contains("scale3d(")) {
+            if (budget != null) budget.check();
+            segment = follow(offsets, step, segment, replaceAll(SCALE3D_IDENTITY, segment, "scaleX(1)", step));
+        }
 
         // 9. rotate3d single-axis → rotate/rotateX/rotateY
-        segment = ROTATE3D_Z.matcher(segment).replaceAll("rotate($1)");
-        segment = ROTATE3D_Y.matcher(segment).replaceAll("rotateY($1)");
-        segment = ROTATE3D_X.matcher(segment).replaceAll("rotateX($1)");
+        if ((features & HAS_ROTATE3D) != 0 && segment.contains("rotate3d(")) {
+            if (budget != null) budget.check();
+            if (stats != null) {
+                stats.rotate3d += countMatches(ROTATE3D_Z, segment) + countMatches(ROTATE3D_Y, segment)
+                    + countMatches(ROTATE3D_X, segment);
+            }
+            segment = follow(offsets, step, segment, replaceAll(ROTATE3D_Z, segment, "rotate($1)", step));
+            segment = follow(offsets, step, segment, replaceAll(ROTATE3D_Y, segment, "rotateY($1)", step));
+            segment = follow(offsets, step, segment, replaceAll(ROTATE3D_X, segment, "rotateX($1)", step));
+        }
 
         // 10. background:transparent/none → background:0 0
-        segment = BACKGROUND_TRANSPARENT.matcher(segment).replaceAll("background:0 0");
+        if ((features & HAS_BACKGROUND) != 0 && segment.contains("background:")) {
+            if (budget != null) budget.check();
+            segment = follow(offsets, step, segment, replaceAll(BACKGROUND_TRANSPARENT, segment, "background:0 0", step));
+        }
 
         // 11. outline:none → outline:0
-        segment = OUTLINE_NONE.matcher(segment).replaceAll("outline:0");
+        if ((features & HAS_OUTLINE) != 0 && segment.contains("outline:")) {
+            if (budget != null) budget.check();
+            segment = follow(offsets, step, segment, replaceAll(OUTLINE_NONE, segment, "outline:0", step));
+        }
 
         return segment;
     }
 
+    /**
+     * The pattern's replaceAll, recording in offsets, when not null, that each replacement was
+     * written for its match. A group reference in the replacement can only be $1.
+     */
+    private static String replaceAll(LazyPattern pattern, String segment, String replacement, OffsetMap offsets) {
+        Matcher m = pattern.matcher(segment);
+        if (offsets == null) return m.replaceAll(replacement);
+        StringBuilder sb = null;
+        int copied = 0;
+        int group = replacement.indexOf("$1");
+        while (m.find()) {
+            if (sb == null) sb = new StringBuilder(segment.length());
+            offsets.copy(sb.length(), copied);
+            sb.append(segment, copied, m.start());
+            offsets.write(sb.length(), m.start());
+            if (group < 0) {
+                sb.append(replacement);
+            } else {
+                sb.append(replacement, 0, group).append(m.group(1)).append(replacement, group + 2, replacement.length());
+            }
+            copied = m.end();
+        }
+        if (sb == null) return segment;
+        offsets.copy(sb.length(), copied);
+        return sb.append(segment, copied, segment.length()).toString();
+    }
+
+    private static int countMatches(LazyPattern pattern, String segment) {
+        Matcher m = pattern.matcher(segment);
+        int count = 0;
+        while (m.find()) count++;
+        return count;
+    }
+
     /**
      * Optimizes quoted tokens that span across what optimizeValues() considers string boundaries:
      * attribute selector quotes and url() quotes.
      */
     static String optimizeQuotedTokens(String css) {
-        StringBuilder result = new StringBuilder(css.length());
+        return optimizeQuotedTokens(css, null, null);
+    }
+
+    private static String optimizeQuotedTokens(String css, Budget budget, OffsetMap offsets) {
+        StringBuilder result = null; // created on first rewrite
+        int copied = 0;              // css[0, copied) is already in result
         boolean inString = false;
         char stringChar = 0;
         int i = 0;
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
 
         while (i < css.length()) {
+            if (i >= checkAt) checkAt = budget.check(i);
             char c = css.charAt(i);
 
             if (inString) {
-                result.append(c);
                 if (c == stringChar && !isEscaped(css, i)) {
                     inString = false;
                 }
@@ -396,12 +1068,16 @@ public class CssMinifier {
                     if (q == '"' || q == '\'') {
                         int closeQ = css.indexOf(q, qPos + 1);
                         if (closeQ > 0 && closeQ + 1 < css.length() && css.charAt(closeQ + 1) == ')') {
-                            String content = css.substring(qPos + 1, closeQ);
-                            if (!content.isEmpty() && content.indexOf(' ') < 0
-                                    && content.indexOf('(') < 0 && content.indexOf(')') < 0
-                                    && content.indexOf(';') < 0) {
-                                result.append("url(").append(content).append(')');
+                            if (closeQ > qPos + 1 && !containsAny(css, qPos + 1, closeQ, " ();")) {
+                                if (result == null) result = new StringBuilder(css.length());
+                                if (offsets != null) offsets.copy(result.length(), copied);
+                                result.append(css, copied, qPos);       // ...url(
+                                if (offsets != null) offsets.copy(result.length(), qPos + 1);
+                                result.append(css, qPos + 1, closeQ);   // content without quotes
+                                if (offsets != null) offsets.copy(result.length(), closeQ + 1);
+                                result.append(')');
                                 i = closeQ + 2;
+                                copied = i;
                                 continue;
                             }
                         }
@@ -423,12 +1099,16 @@ public class CssMinifier {
                         char q = css.charAt(j);
                         int closeQ = css.indexOf(q, j + 1);
                         if (closeQ > 0 && closeQ + 1 < css.length() && css.charAt(closeQ + 1) == ']') {
-                            String value = css.substring(j + 1, closeQ);
-                            if (isValidCssIdentifier(value)) {
-                                result.append(css, i, j); // [attr=
-                                result.append(value);      // value without quotes
+                            if (isValidCssIdentifier(css, j + 1, closeQ)) {
+                                if (result == null) result = new StringBuilder(css.length());
+                                if (offsets != null) offsets.copy(result.length(), copied);
+                                result.append(css, copied, j);          // ...[attr=
+                                if (offsets != null) offsets.copy(result.length(), j + 1);
+                                result.append(css, j + 1, closeQ);      // value without quotes
+                                if (offsets != null) offsets.copy(result.length(), closeQ + 1);
                                 result.append(']');
                                 i = closeQ + 2;
+                                copied = i;
                                 continue;
                             }
                         }
@@ -442,24 +1122,33 @@ public class CssMinifier {
                 stringChar = c;
             }
 
-            result.append(c);
             i++;
         }
 
+        if (result == null) return css;
+        if (offsets != null) offsets.copy(result.length(), copied);
+        result.append(css, copied, css.length());
         return result.toString();
     }
 
-    private static boolean isValidCssIdentifier(String value) {
-        if (value.isEmpty()) return false;
-        char first = value.charAt(0);
+    private static boolean containsAny(String s, int from, int to, String chars) {
+        for (int k = from; k < to; k++) {
+            if (chars.indexOf(s.charAt(k)) >= 0) return true;
+        }
+        return false;
+    }
+
+    private static boolean isValidCssIdentifier(String s, int from, int to) {
+        if (from >= to) return false;
+        char first = s.charAt(from);
         if (!Character.isLetter(first) && first != '_' && first != '-') return false;
         if (first == '-') {
-            if (value.length() < 2) return false;
-            char second = value.charAt(1);
+            if (to - from < 2) return false;
+            char second = s.charAt(from + 1);
             if (!Character.isLetter(second) && second != '_' && second != '-') return false;
         }
-        for (int k = 1; k < value.length(); k++) {
-            char ch = value.charAt(k);
+        for (int k = from + 1; k < to; k++) {
+            char ch = s.charAt(k);
             if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != '-') return false;
         }
         return true;
@@ -468,16 +1157,24 @@ public class CssMinifier {
     private static final String[] SIDES = {"top", "right", "bottom", "left"};
 
     static String collapseShorthand(String css) {
-        StringBuilder result = new StringBuilder(css.length());
+        return collapseShorthand(css, null, null);
+    }
+
+    private static String collapseShorthand(String css, Budget budget, OffsetMap offsets) {
+        StringBuilder result = null; // created on first modified block
+        int copied = 0;              // css[0, copied) is already in result
+        OffsetMap blockOffsets = offsets != null ? new OffsetMap() : null; // of the block being collapsed
+        OffsetMap step = offsets != null ? new OffsetMap() : null;
         boolean inString = false;
         char stringChar = 0;
         int i = 0;
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
 
         while (i < css.length()) {
+            if (i >= checkAt) checkAt = budget.check(i);
             char c = css.charAt(i);
 
             if (inString) {
-                result.append(c);
                 if (c == stringChar && !isEscaped(css, i)) {
                     inString = false;
                 }
@@ -487,7 +1184,6 @@ public class CssMinifier {
             if (c == '"' || c == '\'') {
                 inString = true;
                 stringChar = c;
-                result.append(c);
                 i++;
                 continue;
             }
@@ -517,55 +1213,66 @@ public class CssMinifier {
                 }
                 int blockEnd = j - 1; // index of '}'
                 String block = css.substring(blockStart, blockEnd);
+                String collapsed;
+
+                if (blockOffsets != null) blockOffsets.clear();
 
                 if (block.contains("{")) {
                     // Recurse into nested blocks (e.g., @media)
-                    block = collapseShorthand(block);
+                    collapsed = collapseShorthand(block, budget, blockOffsets);
                 } else {
-                    block = collapseBlock(block, "margin");
-                    block = collapseBlock(block, "padding");
+                    if (blockOffsets != null) blockOffsets.copy(0, 0);
+                    collapsed = follow(blockOffsets, step, block, collapseBlock(block, "margin", step));
+                    collapsed = follow(blockOffsets, step, collapsed, collapseBlock(collapsed, "padding", step));
                 }
 
-                result.append('{');
-                result.append(block);
-                result.append('}');
+                if (collapsed != block) {
+                    if (result == null) result = new StringBuilder(css.length());
+                    if (offsets != null) offsets.copy(result.length(), copied);
+                    result.append(css, copied, blockStart);
+                    if (offsets != null) offsets.append(blockOffsets, result.length(), blockStart);
+                    result.append(collapsed);
+                    copied = blockEnd;
+                }
                 i = blockEnd + 1;
                 continue;
             }
 
-            result.append(c);
             i++;
         }
 
+        if (result == null) return css;
+        if (offsets != null) offsets.copy(result.length(), copied);
+        result.append(css, copied, css.length());
         return result.toString();
     }
 
-    private static String collapseBlock(String block, String property) {
+    private static String collapseBlock(String block, String property, OffsetMap offsets) {
+        if (!hasLonghand(block, property)) return block;
         java.util.List<String> declarations = splitDeclarations(block);
-        Map<String, String> sideValues = new LinkedHashMap<>();
-        java.util.Set<String> sideProps = new java.util.HashSet<>();
-        for (String side : SIDES) {
-            sideProps.add(property + "-" + side);
-        }
+        String[] sideValues = new String[SIDES.length]; // indexed like SIDES, last declaration wins
+        int[] sideStarts = new int[SIDES.length];       // where the declaration of each value starts
+        int found = 0;
 
+        int start = 0;
         for (String decl : declarations) {
-            int colon = decl.indexOf(':');
-            if (colon <= 0) continue;
-            String prop = decl.substring(0, colon);
-            if (sideProps.contains(prop)) {
-                String side = prop.substring(property.length() + 1);
-                sideValues.put(side, decl.substring(colon + 1).trim());
+            int side = sideIndex(decl, property);
+            if (side >= 0) {
+                if (sideValues[side] == null) found++;
+                sideValues[side] = decl.substring(decl.indexOf(':') + 1).trim();
+                sideStarts[side] = start;
             }
+            start += decl.length() + 1; // and the ';'
         }
 
-        if (sideValues.size() != 4) {
+        if (found != 4) {
             return block;
         }
 
-        String top = sideValues.get("top");
-        String right = sideValues.get("right");
-        String bottom = sideValues.get("bottom");
-        String left = sideValues.get("left");
+        String top = sideValues[0];
+        String right = sideValues[1];
+        String bottom = sideValues[2];
+        String left = sideValues[3];
 
         // Build shorthand value
         String shorthand;
@@ -580,90 +1287,101 @@ public class CssMinifier {
         }
 
         // Rebuild block without the 4 longhand declarations, then append shorthand
-        StringBuilder sb = new StringBuilder();
+        StringBuilder sb = new StringBuilder(block.length());
+        start = 0;
         for (String decl : declarations) {
-            int colon = decl.indexOf(':');
-            if (colon > 0 && sideProps.contains(decl.substring(0, colon))) continue;
+            int declStart = start;
+            start += decl.length() + 1;
+            if (sideIndex(decl, property) >= 0) continue;
             if (decl.isEmpty()) continue;
             if (sb.length() > 0) sb.append(';');
+            if (offsets != null) offsets.copy(sb.length(), declStart);
             sb.append(decl);
         }
 
-        if (sb.length() > 0) {
-            sb.append(';').append(property).append(':').append(shorthand);
-        } else {
-            sb.append(property).append(':').append(shorthand);
+        if (sb.length() > 0) sb.append(';');
+        // The shorthand stands for the first of the declarations it took a value from
+        if (offsets != null) {
+            offsets.write(sb.length(), Math.min(Math.min(sideStarts[0], sideStarts[1]), Math.min(sideStarts[2], sideStarts[3])));
         }
+        sb.append(property).append(':').append(shorthand);
 
         return sb.toString();
     }
 
-    static String removeDuplicateProperties(String css) {
-        StringBuilder result = new StringBuilder(css.length());
-        boolean inString = false;
-        char stringChar = 0;
-        int i = 0;
+    private static boolean hasLonghand(String block, String property) {
+        for (int i = block.indexOf(property); i >= 0; i = block.indexOf(property, i + 1)) {
+            int after = i + property.length();
+            if (after < block.length() && block.charAt(after) == '-') return true;
+        }
+        return false;
+    }
 
-        while (i < css.length()) {
-            char c = css.charAt(i);
+    /** Index into SIDES when decl is "property-side:value", else -1. Avoids building "margin-top" etc. */
+    private static int sideIndex(String decl, String property) {
+        int colon = decl.indexOf(':');
+        int nameLength = property.length() + 1;
+        if (colon <= nameLength || !decl.startsWith(property) || decl.charAt(property.length()) != '-') return -1;
+        for (int s = 0; s < SIDES.length; s++) {
+            if (colon - nameLength == SIDES[s].length() && decl.startsWith(SIDES[s], nameLength)) return s;
+        }
+        return -1;
+    }
 
-            if (inString) {
-                result.append(c);
-                if (c == stringChar && !isEscaped(css, i)) {
-                    inString = false;
-                }
-                i++;
-                continue;
-            }
-            if (c == '"' || c == '\'') {
-                inString = true;
-                stringChar = c;
-                result.append(c);
-                i++;
-                continue;
-            }
+    static String removeDuplicateProperties(String css) {
+        return removeDuplicateProperties(Stylesheet.parse(css), null, null, null).source();
+    }
 
-            if (c == '{') {
-                int braceDepth = 1;
-                int blockStart = i + 1;
-                int j = blockStart;
-                boolean bInString = false;
-                char bStringChar = 0;
-                while (j < css.length() && braceDepth > 0) {
-                    char bc = css.charAt(j);
-                    if (bInString) {
-                        if (bc == bStringChar && !isEscaped(css, j)) bInString = false;
-                    } else if (bc == '"' || bc == '\'') {
-                        bInString = true;
-                        bStringChar = bc;
-                    } else if (bc == '{') {
-                        braceDepth++;
-                    } else if (bc == '}') {
-                        braceDepth--;
-                    }
-                    j++;
-                }
-                int blockEnd = j - 1;
-                String block = css.substring(blockStart, blockEnd);
+    // Deduplicates the declarations of each block that holds no other block; the blocks of
+    // @media and the like are deduplicated on their own. Returns sheet when nothing changed.
+    private static Stylesheet removeDuplicateProperties(Stylesheet sheet, Stats stats, Budget budget, OffsetMap offsets) {
+        String css = sheet.source();
+        StringBuilder result = null; // created on first modified block
+        Stylesheet.Editor edits = null;
+        int copied = 0;              // css[0, copied) is already in result
+        OffsetMap blockOffsets = offsets != null ? new OffsetMap() : null; // of the block being deduplicated
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
+
+        for (int n = 0; n < sheet.size; n++) {
+            if (!sheet.hasBlock(n) || sheet.hasNestedBlock(n)) continue;
+            int blockStart = sheet.mids[n] + 1;
+            int blockEnd = sheet.bodyEnd(n);
+            if (blockStart >= checkAt) checkAt = budget.check(blockStart);
+            String block = css.substring(blockStart, blockEnd);
+            MinifierEvents.LargeRule event = null;
+            if (block.length() >= LARGE_RULE_LENGTH && FlightRecorder.isInitialized()) {
+                event = new MinifierEvents.LargeRule();
+                event.begin();
+            }
 
-                if (block.contains("{")) {
-                    block = removeDuplicateProperties(block);
-                } else {
-                    block = deduplicateBlock(block);
-                }
+            if (blockOffsets != null) blockOffsets.clear();
+            String deduplicated = deduplicateBlock(block, stats, blockOffsets);
 
-                result.append('{');
-                result.append(block);
-                result.append('}');
-                i = blockEnd + 1;
-                continue;
+            if (event != null && event.shouldCommit()) {
+                event.selector = css.substring(sheet.starts[n], blockStart - 1).strip();
+                event.blockLength = block.length();
+                event.outputLength = deduplicated.length();
+                event.commit();
             }
 
-            result.append(c);
-            i++;
+            if (deduplicated != block) {
+                if (result == null) {
+                    result = new StringBuilder(css.length());
+                    edits = new Stylesheet.Editor(sheet);
+                }
+                if (offsets != null) offsets.copy(result.length(), copied);
+                result.append(css, copied, blockStart);
+                if (offsets != null) offsets.append(blockOffsets, result.length(), blockStart);
+                result.append(deduplicated);
+                edits.replace(blockStart, blockEnd, deduplicated, n);
+                copied = blockEnd;
+            }
         }
 
-        return result.toString();
+        if (result == null) return sheet;
+        if (offsets != null) offsets.copy(result.length(), copied);
+        result.append(css, copied, css.length());
+        return edits.apply(result.toString());
     }
 
     private static boolean hasVendorPrefix(String value) {
@@ -677,8 +1395,56 @@ public class CssMinifier {
             || value.contains("clamp(") || value.contains("env(");
     }
 
-    private static String deduplicateBlock(String block) {
-        if (block.isEmpty()) return block;
+    // Blocks up to this many declarations are checked for duplicates without building a map
+    private static final int SMALL_BLOCK_DECLARATIONS = 16;
+
+    /**
+     * Allocation-light screen for deduplicateBlock: false only when the block is small, has no
+     * repeated property name, no empty declaration and no trailing ';' (nothing to rewrite).
+     */
+    private static boolean mayNeedDeduplication(String block) {
+        int[] starts = new int[SMALL_BLOCK_DECLARATIONS];
+        int[] colons = new int[SMALL_BLOCK_DECLARATIONS];
+        int count = 0;
+        int declStart = 0;
+        int colon = -1;
+        boolean inString = false;
+        char stringChar = 0;
+
+        for (int i = 0; i <= block.length(); i++) {
+            char c = i < block.length() ? block.charAt(i) : ';';
+            // Like deduplicateBlock, the property name ends at the first ':' even inside a string
+            if (c == ':' && colon < 0) colon = i;
+            if (inString) {
+                if (c == stringChar && !isEscaped(block, i)) inString = false;
+                continue;
+            }
+            if (c == '"' || c == '\'') {
+                inString = true;
+                stringChar = c;
+            } else if (c == ';') {
+                if (i == declStart) return true; // empty declaration or trailing ';'
+                if (colon > declStart) {
+                    if (count == SMALL_BLOCK_DECLARATIONS) return true;
+                    int nameLength = colon - declStart;
+                    for (int k = 0; k < count; k++) {
+                        if (colons[k] - starts[k] == nameLength && block.regionMatches(starts[k], block, declStart, nameLength)) {
+                            return true;
+                        }
+                    }
+                    starts[count] = declStart;
+                    colons[count] = colon;
+                    count++;
+                }
+                declStart = i + 1;
+                colon = -1;
+            }
+        }
+        return false;
+    }
+
+    private static String deduplicateBlock(String block, Stats stats, OffsetMap offsets) {
+        if (block.isEmpty() || !mayNeedDeduplication(block)) return block;
 
         java.util.List<String> declarations = splitDeclarations(block);
 
@@ -742,142 +1508,444 @@ public class CssMinifier {
             }
         }
 
-        StringBuilder sb = new StringBuilder();
+        // Nothing to drop and no empty declarations to squeeze out: keep the block as is
+        if (toRemove.isEmpty() && block.charAt(block.length() - 1) != ';' && !declarations.contains("")) {
+            return block;
+        }
+
+        if (stats != null) stats.deduplicatedDeclarations += toRemove.size();
+        StringBuilder sb = new StringBuilder(block.length());
+        int start = 0;
         for (int i = 0; i < declarations.size(); i++) {
-            if (declarations.get(i).isEmpty() || toRemove.contains(i)) continue;
+            String decl = declarations.get(i);
+            int declStart = start;
+            start += decl.length() + 1; // and the ';'
+            if (decl.isEmpty() || toRemove.contains(i)) continue;
             if (sb.length() > 0) sb.append(';');
-            sb.append(declarations.get(i));
+            if (offsets != null) offsets.copy(sb.length(), declStart);
+            sb.append(decl);
         }
         return sb.toString();
     }
 
     static String mergeAdjacentRules(String css) {
-        StringBuilder result = new StringBuilder(css.length());
-        boolean inString = false;
-        char stringChar = 0;
-        int i = 0;
-
-        String prevSelector = null;
-        int prevBodyStart = -1; // index in result where previous rule's body starts (after '{')
+        return mergeAdjacentRules(Stylesheet.parse(css));
+    }
 
-        while (i < css.length()) {
-            char c = css.charAt(i);
+    static String mergeAdjacentRules(Stylesheet sheet) {
+        return mergeAdjacentRules(sheet, null, null, null, null);
+    }
 
-            if (inString) {
-                result.append(c);
-                if (c == stringChar && !isEscaped(css, i)) {
-                    inString = false;
+    // Merges a top-level block into the one before when their selectors match and it holds no
+    // block. nodes, when not null, is left holding the nodes of the output, which only then are
+    // worked out.
+    private static String mergeAdjacentRules(Stylesheet sheet, Stats stats, Budget budget, OffsetMap offsets,
+            Stylesheet[] nodes) {
+        String css = sheet.source();
+        StringBuilder result = null; // created on first merge
+        Stylesheet.Editor edits = null;
+        int copied = 0;              // css[0, copied) is already in result
+
+        // The block merged into, its selector as a trimmed range of css, and the '}' now closing it
+        int target = -1;
+        int prevSelectorStart = -1;
+        int prevSelectorEnd = -1;
+        int prevClose = -1;
+        int prevBlockEnd = 0; // end of the top-level block before
+        int checkAt = budget == null ? Integer.MAX_VALUE : 0;
+
+        for (int n = 0; n < sheet.size; n = sheet.subtreeEnds[n]) {
+            if (!sheet.hasBlock(n)) continue;
+            int brace = sheet.mids[n];
+            if (brace >= checkAt) checkAt = budget.check(brace);
+
+            // Selector: everything since the block before (or the start), trimmed, so that a
+            // statement or comment in between keeps the rules apart
+            int selectorStart = prevBlockEnd;
+            int selectorEnd = brace;
+            while (selectorStart < selectorEnd && css.charAt(selectorStart) <= ' ') selectorStart++;
+            while (selectorEnd > selectorStart && css.charAt(selectorEnd - 1) <= ' ') selectorEnd--;
+            boolean hasSelector = selectorStart < selectorEnd;
+
+            if (hasSelector && prevSelectorStart >= 0 && !sheet.hasNestedBlock(n)
+                    && selectorEnd - selectorStart == prevSelectorEnd - prevSelectorStart
+                    && css.regionMatches(selectorStart, css, prevSelectorStart, selectorEnd - selectorStart)) {
+                // Merge: "...prevBody}selector{body}" becomes "...prevBody;body}"
+                if (result == null) {
+                    result = new StringBuilder(css.length());
+                    if (nodes != null) edits = new Stylesheet.Editor(sheet);
                 }
-                i++;
-                continue;
+                if (stats != null) stats.mergedRules++;
+                if (offsets != null) offsets.copy(result.length(), copied);
+                result.append(css, copied, prevClose);
+                // The ';' takes the place of the '{' before the body
+                if (offsets != null) offsets.copy(result.length(), brace);
+                result.append(';');
+                if (edits != null) edits.merge(prevClose, brace + 1, 1, target);
+                copied = brace + 1;
+                // The previous selector stays the same
+            } else if (hasSelector) {
+                target = n;
+                prevSelectorStart = selectorStart;
+                prevSelectorEnd = selectorEnd;
+            } else {
+                prevSelectorStart = -1;
             }
-            if (c == '"' || c == '\'') {
-                inString = true;
-                stringChar = c;
-                result.append(c);
-                i++;
-                continue;
+            prevClose = sheet.ends[n] - 1;
+            prevBlockEnd = sheet.ends[n];
+        }
+
+        if (nodes != null) nodes[0] = sheet;
+        if (result == null) return css;
+        if (offsets != null) offsets.copy(result.length(), copied);
+        result.append(css, copied, css.length());
+        String merged = result.toString();
+        if (edits != null) nodes[0] = edits.apply(merged);
+        return merged;
+    }
+
+    /** The pipeline stages of {@link #minify}, in the order they run. */
+    public enum Stage {
+        STRIP_COMMENTS("stripComments"),
+        COLLAPSE_WHITESPACE("collapseWhitespace"),
+        OPTIMIZE_VALUES("optimizeValues"),
+        OPTIMIZE_QUOTED_TOKENS("optimizeQuotedTokens"),
+        COLLAPSE_SHORTHAND("collapseShorthand"),
+        REMOVE_DUPLICATE_PROPERTIES("removeDuplicateProperties"),
+        MERGE_ADJACENT_RULES("mergeAdjacentRules");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /** Output of {@link #minifyWithStats}. */
+    public record MinifyResult(String css, Stats stats) {}
+
+    /** Minified CSS and its Source Map v3 JSON. */
+    public record SourceMapResult(String css, String sourceMap) {}
+
+    /**
+     * Per-stage statistics of one minification. A stage that was skipped (already minified input,
+     * or no trigger for it in the stylesheet) reports {@code ran(stage) == false} and zeros.
+     */
+    public static final class Stats {
+        private final long[] nanos = new long[Stage.values().length];
+        private final long[] bytesRemoved = new long[Stage.values().length];
+        private int ran; // bit per Stage ordinal
+        private long totalNanos;
+        private long inputLength;
+        private long outputLength;
+        private int hexColors;
+        private int zeroUnits;
+        private int rotate3d;
+        private int mergedRules;
+        private int deduplicatedDeclarations;
+        private MinifierEvents.Pass passEvent; // begun by start() once JFR is up, committed by record() while recording
+
+        Stats() {}
+
+        /** Marks the start of a stage. */
+        private long start() {
+            passEvent = null;
+            if (FlightRecorder.isInitialized()) {
+                passEvent = new MinifierEvents.Pass();
+                passEvent.begin();
             }
+            return System.nanoTime();
+        }
 
-            if (c == '{') {
-                // Find matching close brace
-                int braceDepth = 1;
-                int blockStart = i + 1;
-                int j = blockStart;
-                boolean bInString = false;
-                char bStringChar = 0;
-                while (j < css.length() && braceDepth > 0) {
-                    char bc = css.charAt(j);
-                    if (bInString) {
-                        if (bc == bStringChar && !isEscaped(css, j)) bInString = false;
-                    } else if (bc == '"' || bc == '\'') {
-                        bInString = true;
-                        bStringChar = bc;
-                    } else if (bc == '{') {
-                        braceDepth++;
-                    } else if (bc == '}') {
-                        braceDepth--;
-                    }
-                    j++;
-                }
-                int blockEnd = j - 1;
-                String body = css.substring(blockStart, blockEnd);
-
-                // Extract selector: everything from the end of previous rule to this '{'
-                // The selector is what's currently buffered since the last '}' or start
-                String selector = extractTrailingSelector(result);
-
-                if (selector != null && selector.equals(prevSelector) && prevBodyStart >= 0
-                        && !body.contains("{")) {
-                    // Merge: remove the '}' that closed previous rule and the selector chars
-                    // result currently = "...prevBody}selector"
-                    // We want to cut back to "...prevBody", then append ";newBody}"
-                    result.setLength(result.length() - selector.length() - 1);
-                    result.append(';').append(body).append('}');
-                    // prevBodyStart stays the same, prevSelector stays the same
+        /** Records a finished stage and returns the start mark of the next one. */
+        private long record(Stage stage, long start, String before, String after) {
+            long now = System.nanoTime();
+            nanos[stage.ordinal()] += now - start;
+            bytesRemoved[stage.ordinal()] += before.length() - after.length();
+            ran |= 1 << stage.ordinal();
+            if (passEvent != null && passEvent.shouldCommit()) {
+                passEvent.stage = stage.toString();
+                passEvent.inputLength = before.length();
+                passEvent.outputLength = after.length();
+                passEvent.commit();
+            }
+            return start();
+        }
+
+        public boolean ran(Stage stage) {
+            return (ran & (1 << stage.ordinal())) != 0;
+        }
+
+        public long nanos(Stage stage) {
+            return nanos[stage.ordinal()];
+        }
+
+        public long bytesRemoved(Stage stage) {
+            return bytesRemoved[stage.ordinal()];
+        }
+
+        public long totalNanos() {
+            return totalNanos;
+        }
+
+        public long inputLength() {
+            return inputLength;
+        }
+
+        public long outputLength() {
+            return outputLength;
+        }
+
+        public int hexColorsShortened() {
+            return hexColors;
+        }
+
+        public int zeroUnitsStripped() {
+            return zeroUnits;
+        }
+
+        public int rotate3dSimplified() {
+            return rotate3d;
+        }
+
+        public int rulesMerged() {
+            return mergedRules;
+        }
+
+        public int declarationsDeduplicated() {
+            return deduplicatedDeclarations;
+        }
+
+        /** Human-readable table, as printed by the --stats flag. */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-28s %12s %14s%n", "stage", "time (ms)", "removed (B)"));
+            for (Stage stage : Stage.values()) {
+                if (ran(stage)) {
+                    sb.append(String.format("%-28s %12.3f %14d%n", stage, nanos(stage) / 1e6, bytesRemoved(stage)));
                 } else {
-                    // Normal rule — write it
-                    result.append('{');
-                    prevBodyStart = result.length();
-                    prevSelector = selector;
-                    result.append(body);
-                    result.append('}');
+                    sb.append(String.format("%-28s %12s %14s%n", stage, "skipped", "-"));
                 }
+            }
+            sb.append(String.format("%-28s %12.3f %14d%n", "total", totalNanos / 1e6, inputLength - outputLength));
+            sb.append(String.format("rewrites: %d hex colors, %d zero units, %d rotate3d, %d merged rules, "
+                + "%d deduplicated declarations%n", hexColors, zeroUnits, rotate3d, mergedRules, deduplicatedDeclarations));
+            return sb.toString();
+        }
+    }
 
-                i = blockEnd + 1;
-                continue;
+    // Rules with a declaration block at least this long get a MinifierEvents.LargeRule event
+    static final int LARGE_RULE_LENGTH = 4096;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && "serve".equals(args[0])) {
+            MinifyServer.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // Build systems add their own startup flags, so the worker flag may be anywhere
+        if (Arrays.asList(args).contains("--persistent_worker")) {
+            PersistentWorker.run(args);
+            return;
+        }
+        if (args.length > 0 && "--watch".equals(args[0])) {
+            int status;
+            try {
+                status = CssWatcher.main(args);
+            } catch (InterruptedException e) {
+                return;
             }
+            if (status != 0) System.exit(status);
+            return;
+        }
+        if (args.length > 0 && ("--daemon".equals(args[0]) || "--client".equals(args[0]))) {
+            int status = MinifyDaemon.main(args);
+            if (status != 0) System.exit(status);
+            return;
+        }
+        int status = run(args, Path.of(""), System.in, System.out, System.err);
+        if (status != 0) System.exit(status);
+    }
 
-            result.append(c);
-            i++;
+    /**
+     * The command line without the server modes: minifies one file or stdin and returns the exit
+     * status. Relative paths are resolved against cwd, so that the daemon can run a client's
+     * command in the client's directory.
+     */
+    static int run(String[] args, Path cwd, InputStream in, PrintStream out, PrintStream err)
+            throws IOException {
+        boolean printStats = false;
+        boolean gzip = false;
+        boolean sourceMap = false;
+        Path outDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        MinifyOptions options = MinifyOptions.defaults();
+        List<String> files = new ArrayList<>();
+        boolean badNumber = false;
+        for (int i = 0; i < args.length && !badNumber; i++) {
+            if ("--stats".equals(args[i])) {
+                printStats = true;
+            } else if ("--out".equals(args[i]) && i + 1 < args.length) {
+                outDir = Path.of(args[++i]);
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    badNumber = true;
+                }
+                badNumber |= threads < 1;
+            } else if ("--timeout".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    options = options.withTimeout(Duration.ofMillis(Long.parseLong(args[++i])));
+                } catch (IllegalArgumentException e) { // not a number, or negative
+                    badNumber = true;
+                }
+            } else if ("--bounded-memory".equals(args[i])) {
+                options = options.boundedMemory();
+            } else if ("--gzip".equals(args[i])) {
+                gzip = true;
+            } else if ("--source-map".equals(args[i])) {
+                sourceMap = true;
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (badNumber || files.isEmpty()) {
+            err.println("Usage: css-minifier [--stats] [--timeout ms] [--bounded-memory] <input.css> [output.css]");
+            err.println("       css-minifier [--source-map] <input.css> <output.css>  (also writes output.css.map)");
+            err.println("       css-minifier [--threads n] [--timeout ms] [--gzip] <dir|glob>... --out <dir>");
+            err.println("       css-minifier [--threads n] [--timeout ms] <input.jar|war|zip> <output.jar|war|zip>");
+            err.println("       cat input.css | css-minifier [--stats] -");
+            err.println("       css-minifier serve [port]");
+            err.println("       css-minifier --daemon [--socket path] [--threads n] [--idle-timeout seconds]");
+            err.println("       css-minifier --client [--socket path] <arguments as above>");
+            err.println("       css-minifier --watch <dir> --out <dir> [--threads n] [--debounce ms]");
+            err.println("       css-minifier --persistent_worker  (JSON WorkRequests on stdin)");
+            return 1;
         }
 
-        return result.toString();
-    }
+        if (sourceMap && (files.size() != 2 || outDir != null || "-".equals(files.get(0))
+                || ArchiveMinifier.isArchive(files.get(0)) || Files.isDirectory(cwd.resolve(files.get(0))))) {
+            err.println("--source-map needs an input and an output file: css-minifier --source-map <input.css> <output.css>");
+            return 1;
+        }
 
-    private static String extractTrailingSelector(StringBuilder sb) {
-        // Walk backward from end of sb to find the selector
-        // Selector ends at the current position and starts after the last '}' or at index 0
-        int end = sb.length();
-        int start = end;
-        for (int k = end - 1; k >= 0; k--) {
-            if (sb.charAt(k) == '}') {
-                start = k + 1;
-                break;
+        if (ArchiveMinifier.isArchive(files.get(0)) && Files.isRegularFile(cwd.resolve(files.get(0)))) {
+            if (files.size() != 2) {
+                err.println("Archives need an output archive: css-minifier <input.jar> <output.jar>");
+                return 1;
+            }
+            if (printStats) {
+                err.println("--stats reports on a single file or stdin: css-minifier --stats <input.css> [output.css]");
+                return 1;
             }
-            if (k == 0) {
-                start = 0;
+            if (gzip) {
+                err.println("--gzip writes .css.gz files in batch mode: css-minifier --gzip <dir|glob>... --out <dir>");
+                return 1;
             }
+            BatchMinifier.Summary summary = ArchiveMinifier.minify(
+                cwd.resolve(files.get(0)), cwd.resolve(files.get(1)), threads, options, err);
+            BatchMinifier.printSummary(summary, out);
+            return summary.failed() == 0 ? 0 : 1;
         }
-        if (start >= end) return null;
-        String sel = sb.substring(start, end).trim();
-        return sel.isEmpty() ? null : sel;
-    }
 
-    public static void main(String[] args) throws IOException {
-        if (args.length < 1) {
-            System.err.println("Usage: css-minifier <input.css> [output.css]");
-            System.err.println("       cat input.css | css-minifier -");
-            System.exit(1);
+        boolean batch = outDir != null;
+        for (String file : files) {
+            if (Files.isDirectory(cwd.resolve(file))
+                    || (BatchMinifier.isGlob(file) && !"-".equals(file) && !Files.exists(cwd.resolve(file)))) {
+                batch = true;
+            }
+        }
+        if (batch) {
+            if (outDir == null) {
+                err.println("Directories and globs need an output directory: --out <dir>");
+                return 1;
+            }
+            if (printStats) {
+                err.println("--stats reports on a single file or stdin: css-minifier --stats <input.css> [output.css]");
+                return 1;
+            }
+            List<BatchMinifier.Job> jobs;
+            try {
+                jobs = BatchMinifier.expand(files, outDir, cwd);
+            } catch (IllegalArgumentException e) {
+                err.println(e.getMessage());
+                return 1;
+            }
+            BatchMinifier.Summary summary = BatchMinifier.run(jobs, threads, options, gzip, err);
+            BatchMinifier.printSummary(summary, out);
+            return summary.failed() == 0 ? 0 : 1;
+        }
+
+        if (gzip) {
+            err.println("--gzip writes .css.gz files in batch mode: css-minifier --gzip <dir|glob>... --out <dir>");
+            return 1;
+        }
+
+        if ("-".equals(files.get(0)) && files.size() == 1 && options.chunkChars() > 0 && !printStats) {
+            // Stream stdin to stdout: memory bounded by the slice size, whatever the input size
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            try {
+                minify(new InputStreamReader(in, StandardCharsets.UTF_8), writer, options);
+            } catch (MinifyTimeoutException e) {
+                err.println(e.getMessage());
+                return 1;
+            }
+            writer.flush();
+            return 0;
         }
 
         String css;
-        if ("-".equals(args[0])) {
-            css = new String(System.in.readAllBytes());
+        if ("-".equals(files.get(0))) {
+            css = new String(in.readAllBytes());
         } else {
-            css = Files.readString(Path.of(args[0]));
+            css = Files.readString(cwd.resolve(files.get(0)));
         }
 
-        String minified = minify(css);
+        String minified;
+        OffsetMap offsets = sourceMap ? OffsetMap.identity() : null;
+        Stylesheet[] nodes = sourceMap ? new Stylesheet[1] : null;
+        try {
+            if (printStats) {
+                MinifyResult result = minifyWithStats(css, options, offsets, nodes);
+                minified = result.css();
+                // stderr, so that the minified CSS on stdout stays usable
+                err.print(result.stats());
+            } else if (sourceMap) {
+                minified = minify(css, nodes, null, Budget.of(options), 0, offsets);
+            } else {
+                minified = minify(css, options);
+            }
+        } catch (MinifyTimeoutException e) {
+            err.println(e.getMessage());
+            return 1;
+        }
 
-        if (args.length >= 2) {
-            Files.writeString(Path.of(args[1]), minified);
+        if (files.size() >= 2) {
+            Path output = cwd.resolve(files.get(1));
+            if (sourceMap) {
+                Path map = output.resolveSibling(output.getFileName() + ".map");
+                Path input = cwd.resolve(files.get(0)).toAbsolutePath().normalize();
+                // Sources are relative to the map, with '/' separators whatever the platform
+                String source = map.toAbsolutePath().normalize().getParent().relativize(input).toString()
+                    .replace(File.separatorChar, '/');
+                Files.writeString(map, SourceMapGenerator.generate(css, parsed(minified, nodes), offsets, source));
+                Files.writeString(output, minified + "\n/*# sourceMappingURL=" + map.getFileName() + " */");
+            } else {
+                Files.writeString(output, minified);
+            }
             long originalSize = css.length();
             long minifiedSize = minified.length();
             double savings = (1.0 - (double) minifiedSize / originalSize) * 100;
-            System.out.printf("Minified: %d -> %d bytes (%.1f%% smaller)%n", originalSize, minifiedSize, savings);
+            out.printf("Minified: %d -> %d bytes (%.1f%% smaller)%n", originalSize, minifiedSize, savings);
         } else {
-            System.out.print(minified);
+            out.print(minified);
         }
+        return 0;
     }
 }
@@ -0,0 +1,198 @@
+package cssminifier;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * {@code --watch src --out dist}: minifies the whole tree once, then re-minifies stylesheets as
+ * they change. Events are collected until the tree has been quiet for the debounce interval, so
+ * an editor's save (often several events) or a branch switch becomes one batch. Saves that don't
+ * change a file's content are skipped by {@link DirectoryMinifier}.
+ *
+ * <p>Files are minified on a bounded pool; when its queue is full the watching thread minifies
+ * itself, which throttles event intake. A file changed again while it is being minified is
+ * minified once more afterwards, never twice at the same time.
+ */
+final class CssWatcher implements AutoCloseable {
+
+    static final Duration DEFAULT_DEBOUNCE = Duration.ofMillis(100);
+
+    private final DirectoryMinifier minifier;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor pool;
+    private final Duration debounce;
+    private final PrintStream log;
+    // Files queued or being minified; TRUE when they changed again since their task started
+    private final Map<Path, Boolean> inFlight = new ConcurrentHashMap<>();
+
+    CssWatcher(Path sourceRoot, Path outputRoot, int threads, Duration debounce, PrintStream log) throws IOException {
+        this.minifier = new DirectoryMinifier(sourceRoot, outputRoot);
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+        this.debounce = debounce;
+        this.log = log;
+    }
+
+    /** Registers the tree and queues every stylesheet in it. */
+    void start() throws IOException {
+        for (Path file : register(minifier.sourceRoot())) submit(file);
+    }
+
+    /** Processes change events until {@link #close()}. */
+    void run() throws InterruptedException {
+        try {
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                collect(watchService.take(), changed);
+                for (WatchKey key; (key = watchService.poll(debounce.toMillis(), TimeUnit.MILLISECONDS)) != null; ) {
+                    collect(key, changed);
+                }
+                for (Path path : changed) {
+                    if (Files.isRegularFile(path)) {
+                        submit(path);
+                    } else {
+                        deleteOutput(path);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed: done
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        pool.shutdown();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Watches dir and its subdirectories; returns the stylesheets found in them. */
+    private Set<Path> register(Path dir) throws IOException {
+        Set<Path> sources = new LinkedHashSet<>();
+        try (Stream<Path> tree = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) tree::iterator) {
+                if (Files.isDirectory(path)) {
+                    if (minifier.isSourceDirectory(path)) {
+                        directories.put(path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), path);
+                    }
+                } else if (minifier.isSource(path)) {
+                    sources.add(path);
+                }
+            }
+        }
+        return sources;
+    }
+
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path dir = directories.get(key);
+        if (dir == null) return;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            try {
+                if (event.kind() == OVERFLOW) {
+                    // Events were lost: look at everything again, the hashes skip what didn't change
+                    changed.addAll(register(minifier.sourceRoot()));
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path)) {
+                    changed.addAll(register(path));
+                } else if (minifier.isSource(path)) {
+                    changed.add(path);
+                }
+            } catch (IOException e) {
+                log.println("Cannot watch " + dir + ": " + e);
+            }
+        }
+        if (!key.reset()) directories.remove(key);
+    }
+
+    private void submit(Path source) {
+        if (inFlight.put(source, Boolean.TRUE) != null) return; // the running task will go again
+        pool.execute(() -> {
+            do {
+                inFlight.put(source, Boolean.FALSE);
+                minify(source);
+            } while (!inFlight.remove(source, Boolean.FALSE));
+        });
+    }
+
+    private void minify(Path source) {
+        try {
+            DirectoryMinifier.Result result = minifier.minify(source);
+            if (result.status() == DirectoryMinifier.Status.SOURCE_UNCHANGED) return;
+            log.printf("%s -> %s (%d -> %d bytes, %.1f ms%s)%n", minifier.sourceRoot().relativize(source),
+                result.output(), result.inputBytes(), result.outputBytes(), result.nanos() / 1e6,
+                result.status() == DirectoryMinifier.Status.OUTPUT_UNCHANGED ? ", output unchanged" : "");
+        } catch (IOException | RuntimeException e) {
+            log.println("Cannot minify " + source + ": " + e);
+        }
+    }
+
+    private void deleteOutput(Path source) {
+        try {
+            minifier.delete(source);
+            log.printf("%s deleted%n", minifier.sourceRoot().relativize(source));
+        } catch (IOException e) {
+            log.println("Cannot delete output of " + source + ": " + e);
+        }
+    }
+
+    /** {@code --watch <dir> --out <dir> [--threads n] [--debounce ms]}. */
+    static int main(String[] args) throws IOException, InterruptedException {
+        Path source = null;
+        Path output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Duration debounce = DEFAULT_DEBOUNCE;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--watch" -> source = Path.of(args[i + 1]);
+                case "--out" -> output = Path.of(args[i + 1]);
+                case "--threads" -> threads = Integer.parseInt(args[i + 1]);
+                case "--debounce" -> debounce = Duration.ofMillis(Long.parseLong(args[i + 1]));
+                default -> {
+                    System.err.println("Unknown option " + args[i]);
+                    return 1;
+                }
+            }
+        }
+        if (source == null || output == null || args.length % 2 != 0) {
+            System.err.println("Usage: css-minifier --watch <dir> --out <dir> [--threads n] [--debounce ms]");
+            return 1;
+        }
+
+        try (CssWatcher watcher = new CssWatcher(source, output, threads, debounce, System.out)) {
+            watcher.start();
+            System.out.printf("Watching %s (Ctrl-C to stop)%n", source);
+            watcher.run();
+        }
+        return 0;
+    }
+}
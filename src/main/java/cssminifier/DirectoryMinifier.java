@@ -0,0 +1,148 @@
+package cssminifier;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Minifies the stylesheets of a source tree into a mirrored output tree. Shared by the watch and
+ * batch modes of the command line.
+ *
+ * <p>Two things keep repeated runs cheap: a source whose content hash is the one seen last time
+ * is not minified again, and an output whose bytes would not change is not rewritten, so its
+ * mtime stays put for downstream tools. Outputs are written to a temporary file and moved into
+ * place, so readers never see a half-written stylesheet. Safe for concurrent use on different
+ * files.
+ */
+final class DirectoryMinifier {
+
+    enum Status { WRITTEN, OUTPUT_UNCHANGED, SOURCE_UNCHANGED }
+
+    record Result(Path source, Path output, Status status, long inputBytes, long outputBytes, long nanos) {}
+
+    private final Path sourceRoot;
+    private final Path outputRoot;
+    private final Map<Path, byte[]> sourceHashes = new ConcurrentHashMap<>();
+
+    DirectoryMinifier(Path sourceRoot, Path outputRoot) {
+        this.sourceRoot = sourceRoot.toAbsolutePath().normalize();
+        this.outputRoot = outputRoot.toAbsolutePath().normalize();
+    }
+
+    Path sourceRoot() {
+        return sourceRoot;
+    }
+
+    Path outputRoot() {
+        return outputRoot;
+    }
+
+    /** A .css file of the source tree that is not itself inside the output tree. */
+    boolean isSource(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        return absolute.getFileName() != null && absolute.getFileName().toString().endsWith(".css")
+            && absolute.startsWith(sourceRoot) && !absolute.startsWith(outputRoot);
+    }
+
+    /** Whether a directory belongs to the source tree, i.e. is not the output tree or inside it. */
+    boolean isSourceDirectory(Path dir) {
+        return !dir.toAbsolutePath().normalize().startsWith(outputRoot);
+    }
+
+    Path outputFor(Path source) {
+        return outputRoot.resolve(sourceRoot.relativize(source.toAbsolutePath().normalize()));
+    }
+
+    Result minify(Path source) throws IOException {
+        return minify(source, MinifyOptions.defaults());
+    }
+
+    /** The options, a timeout in particular, apply to this file alone. */
+    Result minify(Path source, MinifyOptions options) throws IOException {
+        long start = System.nanoTime();
+        Path output = outputFor(source);
+        byte[] input = Files.readAllBytes(source);
+        byte[] hash = sha256(input);
+        byte[] previous = sourceHashes.get(source);
+        if (previous != null && Arrays.equals(previous, hash) && Files.exists(output)) {
+            return new Result(source, output, Status.SOURCE_UNCHANGED, input.length, Files.size(output), System.nanoTime() - start);
+        }
+
+        // Strict decoding, like Files.readString in single-file mode: bad UTF-8 is an error, not U+FFFD
+        String css = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(input)).toString();
+        byte[] minified = CssMinifier.minify(css, options).getBytes(StandardCharsets.UTF_8);
+        boolean written = writeIfChanged(output, minified);
+        sourceHashes.put(source, hash);
+        return new Result(source, output, written ? Status.WRITTEN : Status.OUTPUT_UNCHANGED,
+            input.length, minified.length, System.nanoTime() - start);
+    }
+
+    /** Removes the output of a source that was deleted. */
+    void delete(Path source) throws IOException {
+        sourceHashes.remove(source);
+        Files.deleteIfExists(outputFor(source));
+    }
+
+    /** Writes the bytes unless the file already holds exactly them; returns whether it wrote. */
+    static boolean writeIfChanged(Path target, byte[] bytes) throws IOException {
+        if (Files.isRegularFile(target) && Files.size(target) == bytes.length
+                && Arrays.equals(Files.readAllBytes(target), bytes)) {
+            return false;
+        }
+        writeAtomically(target, bytes);
+        return true;
+    }
+
+    /** Writes a sibling temporary file and renames it over the target. */
+    static void writeAtomically(Path target, byte[] bytes) throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        Path temp = createTempSibling(target);
+        try {
+            Files.write(temp, bytes);
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Creates an empty file next to the target, to be written and renamed over it. Unlike
+     * Files.createTempFile, which makes it readable by its owner alone, the file gets the
+     * permissions of any new file under the umask, so the renamed output is as readable as one
+     * written in place.
+     */
+    static Path createTempSibling(Path target) throws IOException {
+        Path dir = target.toAbsolutePath().getParent();
+        while (true) {
+            String name = "." + target.getFileName() + "." + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp";
+            try {
+                return Files.createFile(dir.resolve(name));
+            } catch (FileAlreadyExistsException e) {
+                // Taken by a concurrent writer: pick another name
+            }
+        }
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK has SHA-256
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package cssminifier;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder events of the minifier. {@link Minify} is recorded by default (one per minify
+ * call); the finer-grained ones must be enabled in the recording settings.
+ * <p>
+ * The minifier creates these only once {@link jdk.jfr.FlightRecorder#isInitialized()} holds, that
+ * is once a recording was started in this JVM, so a run without one never loads the event classes
+ * or the JFR machinery that instruments them.
+ */
+final class MinifierEvents {
+
+    private MinifierEvents() {}
+
+    @Name("cssminifier.Minify")
+    @Label("CSS Minification")
+    @Category("CSS Minifier")
+    @Description("One call to CssMinifier.minify or minifyWithStats, however many slices it ran in")
+    static final class Minify extends Event {
+        @Label("Input Length")
+        @DataAmount
+        long inputLength;
+
+        @Label("Output Length")
+        @DataAmount
+        long outputLength;
+
+        @Label("Completed")
+        @Description("False when the call timed out, was cancelled or failed; the output length is then what was written")
+        boolean completed;
+    }
+
+    @Name("cssminifier.Pass")
+    @Label("CSS Minifier Pass")
+    @Category("CSS Minifier")
+    @Description("One pipeline stage of a minification")
+    @Enabled(false)
+    static final class Pass extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Input Length")
+        @DataAmount
+        long inputLength;
+
+        @Label("Output Length")
+        @DataAmount
+        long outputLength;
+    }
+
+    @Name("cssminifier.LargeRule")
+    @Label("Large CSS Rule")
+    @Category("CSS Minifier")
+    @Description("Duplicate-property removal for a rule with a declaration block of at least 4 KB")
+    @Enabled(false)
+    static final class LargeRule extends Event {
+        @Label("Selector")
+        String selector;
+
+        @Label("Block Length")
+        @DataAmount
+        long blockLength;
+
+        @Label("Output Length")
+        @DataAmount
+        long outputLength;
+    }
+}
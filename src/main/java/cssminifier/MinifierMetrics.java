@@ -0,0 +1,242 @@
+package cssminifier;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters of {@link CssMinifier#minify}, exposed over JMX. Nothing is counted until
+ * {@link #register()} is called, or the {@code cssminifier.jmx} system property is {@code true}
+ * when CssMinifier is loaded; until then minify does a single volatile read.
+ *
+ * <p>All counters are lock-free, so concurrent minify calls don't contend on them.
+ */
+public final class MinifierMetrics implements MinifierMXBean {
+
+    public static final String OBJECT_NAME = "cssminifier:type=CssMinifier";
+
+    private static volatile MinifierMetrics active;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LogHistogram latency = new LogHistogram();
+
+    private MinifierMetrics() {}
+
+    /** Registers the MBean with the platform MBean server, once; later calls return the same instance. */
+    public static synchronized MinifierMetrics register() {
+        if (active != null) return active;
+        MinifierMetrics metrics = new MinifierMetrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot register " + OBJECT_NAME, e);
+        }
+        active = metrics;
+        return metrics;
+    }
+
+    /** Unregisters the MBean and stops counting. */
+    public static synchronized void unregister() {
+        if (active == null) return;
+        active = null;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException e) {
+            throw new IllegalStateException("Cannot unregister " + OBJECT_NAME, e);
+        }
+    }
+
+    /** The registered instance, or null when metrics are off. */
+    static MinifierMetrics current() {
+        return active;
+    }
+
+    /** Counts a lookup in a cache of minified output that was answered from the cache. */
+    public static void recordCacheHit() {
+        MinifierMetrics metrics = active;
+        if (metrics != null) metrics.cacheHits.increment();
+    }
+
+    /** Counts a lookup in a cache of minified output that had to minify. */
+    public static void recordCacheMiss() {
+        MinifierMetrics metrics = active;
+        if (metrics != null) metrics.cacheMisses.increment();
+    }
+
+    void recordCall(long inputLength, long outputLength, long nanos) {
+        calls.increment();
+        bytesIn.add(inputLength);
+        bytesOut.add(outputLength);
+        latency.record(nanos);
+    }
+
+    void recordError() {
+        errors.increment();
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public double getLatencyMeanMicros() {
+        return latency.mean() / 1e3;
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return latency.percentile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getLatencyP90Micros() {
+        return latency.percentile(0.9) / 1e3;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return latency.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getLatencyP999Micros() {
+        return latency.percentile(0.999) / 1e3;
+    }
+
+    @Override
+    public double getLatencyMaxMicros() {
+        return latency.max() / 1e3;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cacheHits.sum();
+        long lookups = hits + cacheMisses.sum();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public void reset() {
+        calls.reset();
+        errors.reset();
+        bytesIn.reset();
+        bytesOut.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+        latency.reset();
+    }
+
+    /**
+     * Histogram of non-negative longs with HDR-style logarithmic buckets: values below 8 get a
+     * bucket each, every power of two above is split into 8 linear sub-buckets, so a recorded
+     * value is known to within 12.5%. Recording is one atomic increment.
+     */
+    static final class LogHistogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            counts.incrementAndGet(bucketIndex(value));
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        /** Smallest value that falls into the bucket. */
+        static long lowestValue(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long sub = index % SUB_BUCKETS;
+            return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        /** Largest value that falls into the bucket. */
+        static long highestValue(int index) {
+            return index == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(index + 1) - 1;
+        }
+
+        /** Upper bound of the bucket holding the given quantile (0..1), or 0 when empty. */
+        long percentile(double quantile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) return Math.min(highestValue(i), max.get());
+            }
+            return max.get();
+        }
+
+        double mean() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) count += counts.get(i);
+            return count == 0 ? 0 : (double) sum.sum() / count;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+            sum.reset();
+            max.reset();
+        }
+    }
+}
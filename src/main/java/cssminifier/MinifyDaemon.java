@@ -0,0 +1,335 @@
+package cssminifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A warm JVM for build tools: {@code --daemon} listens on a Unix domain socket and runs the
+ * command lines that {@code --client} invocations forward to it, so each build step pays for a
+ * socket round trip instead of JVM startup and a cold JIT.
+ *
+ * <p>One connection carries one command. Both directions are a single length-prefixed frame:
+ * the request holds the client's working directory, its arguments and, when an argument is
+ * {@code -}, its stdin; the response holds the exit status, stdout and stderr. Commands run on a
+ * fixed pool, and the daemon exits after a period without requests.
+ *
+ * <p>Whoever listens on the socket sees the client's arguments and stdin and decides its output,
+ * so both ends insist that the socket lives in a directory of the current user that nobody else
+ * can write to, and the client only connects to a socket the current user owns. The default
+ * socket is in {@code $XDG_RUNTIME_DIR}, or else in a 0700 directory created under
+ * {@code java.io.tmpdir}.
+ */
+public final class MinifyDaemon implements AutoCloseable {
+
+    static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes(10);
+    static final int MAX_FRAME_BYTES = 256 << 20;
+
+    private final ServerSocketChannel server;
+    private final Path socket;
+    private final ExecutorService pool;
+    private final ScheduledExecutorService idleCheck;
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile long lastActivity = System.nanoTime();
+
+    private MinifyDaemon(ServerSocketChannel server, Path socket, int threads, Duration idleTimeout) {
+        this.server = server;
+        this.socket = socket;
+        this.pool = Executors.newFixedThreadPool(threads);
+        this.idleCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "css-minifier-idle-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long timeout = idleTimeout.toNanos();
+        long period = Math.clamp(timeout / 10, TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.SECONDS.toNanos(1));
+        idleCheck.scheduleAtFixedRate(() -> {
+            if (active.get() == 0 && System.nanoTime() - lastActivity > timeout) close();
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Binds the socket. A socket file left behind by a daemon that is gone is replaced; one
+     * that still accepts connections means a daemon is running, which is an error, as is a
+     * directory that another user owns or can write to.
+     */
+    public static MinifyDaemon bind(Path socket, int threads, Duration idleTimeout) throws IOException {
+        Path dir = socket.toAbsolutePath().getParent();
+        if (!Files.isDirectory(dir)) {
+            if (dir.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(dir);
+            }
+        }
+        String unsafe = checkPrivate(socket);
+        if (unsafe != null) throw new IOException("Not listening on " + socket + ": " + unsafe);
+        if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) {
+            if (isListening(socket)) throw new IOException("A daemon is already listening on " + socket);
+            Files.delete(socket);
+        }
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        try {
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system: keep the default permissions
+        }
+        return new MinifyDaemon(server, socket, threads, idleTimeout);
+    }
+
+    private static boolean isListening(Path socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Why the socket could have been planted or replaced by another user, or null if it could
+     * not: its directory must belong to the current user and be writable by nobody else, and the
+     * socket, if there is one, must belong to the current user and not be a link.
+     */
+    static String checkPrivate(Path socket) throws IOException {
+        Path dir = socket.toAbsolutePath().getParent();
+        UserPrincipal user;
+        try {
+            user = dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        } catch (IOException e) {
+            return "cannot look up the current user " + System.getProperty("user.name");
+        }
+        UserPrincipal dirOwner = Files.getOwner(dir, LinkOption.NOFOLLOW_LINKS);
+        if (!dirOwner.equals(user)) return dir + " belongs to " + dirOwner.getName();
+        PosixFileAttributeView view = Files.getFileAttributeView(dir, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+        if (view != null) {
+            var permissions = view.readAttributes().permissions();
+            if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                return dir + " is writable by other users";
+            }
+        }
+        if (!Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) return null;
+        if (Files.isSymbolicLink(socket)) return socket + " is a symbolic link";
+        UserPrincipal owner = Files.getOwner(socket, LinkOption.NOFOLLOW_LINKS);
+        return owner.equals(user) ? null : socket + " belongs to " + owner.getName();
+    }
+
+    /**
+     * Connects to the daemon on the socket, or returns null when none is listening or the socket
+     * is not safe to use, which is reported on err.
+     */
+    static SocketChannel connect(Path socket, PrintStream err) throws IOException {
+        if (!Files.exists(socket, LinkOption.NOFOLLOW_LINKS)) return null;
+        String unsafe = checkPrivate(socket);
+        if (unsafe != null) {
+            err.println("Not using the daemon on " + socket + ": " + unsafe);
+            return null;
+        }
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Accepts connections until the daemon is closed or idle for too long, then removes the socket. */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (ClosedChannelException e) {
+                    // Also AsynchronousCloseException: closed by close() or the idle check
+                    break;
+                }
+                active.incrementAndGet();
+                pool.execute(() -> handle(channel));
+            }
+        } finally {
+            close();
+            pool.shutdown();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    @Override
+    public void close() {
+        idleCheck.shutdown();
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Closing only fails if it was already broken; accept() returns either way
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            DataInputStream request = new DataInputStream(new ByteArrayInputStream(
+                readFrame(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))))));
+            Path cwd = Path.of(readString(request));
+            String[] args = new String[request.readInt()];
+            for (int i = 0; i < args.length; i++) args[i] = readString(request);
+            byte[] stdin = readBytes(request);
+
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            int status;
+            try (PrintStream out = new PrintStream(stdout); PrintStream err = new PrintStream(stderr)) {
+                try {
+                    status = CssMinifier.run(args, cwd, new ByteArrayInputStream(stdin), out, err);
+                } catch (IOException | RuntimeException e) {
+                    err.println(e);
+                    status = 1;
+                }
+            }
+
+            ByteArrayOutputStream response = new ByteArrayOutputStream(stdout.size() + stderr.size() + 12);
+            DataOutputStream data = new DataOutputStream(response);
+            data.writeInt(status);
+            writeBytes(data, stdout.toByteArray());
+            writeBytes(data, stderr.toByteArray());
+            writeFrame(Channels.newOutputStream(channel), response.toByteArray());
+        } catch (IOException e) {
+            // The client went away or sent garbage; nothing to answer
+        } finally {
+            lastActivity = System.nanoTime();
+            active.decrementAndGet();
+        }
+    }
+
+    /** Runs a command on the daemon at the other end of the channel, returning its exit status. */
+    static int client(SocketChannel channel, String[] args, Path cwd, InputStream in, OutputStream out, OutputStream err)
+            throws IOException {
+        try (channel) {
+            byte[] stdin = Arrays.asList(args).contains("-") ? in.readAllBytes() : new byte[0];
+            ByteArrayOutputStream request = new ByteArrayOutputStream(stdin.length + 256);
+            DataOutputStream data = new DataOutputStream(request);
+            writeString(data, cwd.toAbsolutePath().toString());
+            data.writeInt(args.length);
+            for (String arg : args) writeString(data, arg);
+            writeBytes(data, stdin);
+            writeFrame(Channels.newOutputStream(channel), request.toByteArray());
+
+            DataInputStream response = new DataInputStream(new ByteArrayInputStream(
+                readFrame(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))))));
+            int status = response.readInt();
+            out.write(readBytes(response));
+            out.flush();
+            err.write(readBytes(response));
+            err.flush();
+            return status;
+        }
+    }
+
+    private static void writeFrame(OutputStream channel, byte[] payload) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(channel));
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) throw new IOException("Bad frame length " + length);
+        return in.readNBytes(length);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FRAME_BYTES) throw new IOException("Bad field length " + length);
+        return in.readNBytes(length);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static Path defaultSocket() {
+        return defaultSocket(System.getenv("XDG_RUNTIME_DIR"));
+    }
+
+    /** In the per-user runtime directory when there is one, else in a directory of the user's own under tmp. */
+    static Path defaultSocket(String runtimeDir) {
+        if (runtimeDir != null && !runtimeDir.isEmpty()) return Path.of(runtimeDir, "css-minifier.sock");
+        return Path.of(System.getProperty("java.io.tmpdir"), "css-minifier-" + System.getProperty("user.name"), "daemon.sock");
+    }
+
+    /**
+     * {@code --daemon [--socket path] [--threads n] [--idle-timeout seconds]} or
+     * {@code --client [--socket path] <arguments>}. The client runs the command in-process when
+     * no daemon is listening.
+     */
+    static int main(String[] args) throws IOException {
+        boolean daemon = "--daemon".equals(args[0]);
+        Path socket = defaultSocket();
+        int threads = Runtime.getRuntime().availableProcessors();
+        Duration idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        int i = 1;
+        while (i + 1 < args.length) {
+            if ("--socket".equals(args[i])) {
+                socket = Path.of(args[i + 1]);
+            } else if (daemon && "--threads".equals(args[i])) {
+                threads = Integer.parseInt(args[i + 1]);
+            } else if (daemon && "--idle-timeout".equals(args[i])) {
+                idleTimeout = Duration.ofSeconds(Long.parseLong(args[i + 1]));
+            } else {
+                break;
+            }
+            i += 2;
+        }
+
+        if (daemon) {
+            try (MinifyDaemon server = bind(socket, threads, idleTimeout)) {
+                System.err.printf("Listening on %s (%d threads, exits after %ds idle)%n",
+                    socket, threads, idleTimeout.toSeconds());
+                server.serve();
+            }
+            return 0;
+        }
+
+        String[] command = Arrays.copyOfRange(args, i, args.length);
+        Path cwd = Path.of("");
+        SocketChannel channel = connect(socket, System.err);
+        if (channel == null) return CssMinifier.run(command, cwd, System.in, System.out, System.err);
+        return client(channel, command, cwd, System.in, System.out, System.err);
+    }
+}
@@ -0,0 +1,175 @@
+package cssminifier;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * A bounded pool for minifying off the calling thread, so that request handlers can offload large
+ * stylesheets without tying up their own threads or each building a pool.
+ * {@link CssMinifier#minifyAsync} uses a {@link #shared()} instance.
+ *
+ * <p>At most {@code workers} calls run at once; the rest wait in a queue. When the queue holds
+ * {@code queueCapacity} calls, the {@link Overload} policy decides: {@code REJECT} fails new calls
+ * at once with a {@link RejectedExecutionException}, so that a handler can shed load (answer 503,
+ * serve the unminified stylesheet); {@code QUEUE} blocks the submitting thread until a slot frees
+ * up, for callers that would rather wait than fail.
+ *
+ * <p>Completing a returned future by any means before the call finishes (cancelling it,
+ * {@code orTimeout}, {@code completeOnTimeout}, {@code complete}) cancels the call: a queued one is
+ * removed from the queue, and a running one stops at its next cancellation check, within a few
+ * kilobytes of input (see {@link MinifyOptions}). A cancellation token in the options still
+ * applies as well.
+ */
+public final class MinifyExecutor implements AutoCloseable {
+
+    /** What to do with a call when the queue is full. */
+    public enum Overload { REJECT, QUEUE }
+
+    private static volatile MinifyExecutor shared;
+
+    private final ThreadPoolExecutor pool;
+    private final int workers;
+    private final int queueCapacity;
+    private final Overload overload;
+    private final BiFunction<String, MinifyOptions, String> minifier;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public MinifyExecutor(int workers, int queueCapacity, Overload overload) {
+        this(workers, queueCapacity, overload, CssMinifier::minify);
+    }
+
+    MinifyExecutor(int workers, int queueCapacity, Overload overload, BiFunction<String, MinifyOptions, String> minifier) {
+        if (workers <= 0) throw new IllegalArgumentException("workers must be positive: " + workers);
+        if (queueCapacity < 0) throw new IllegalArgumentException("Negative queue capacity: " + queueCapacity);
+        this.workers = workers;
+        this.queueCapacity = queueCapacity;
+        this.overload = overload;
+        this.minifier = minifier;
+        BlockingQueue<Runnable> queue = queueCapacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger threads = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS, queue, task -> {
+            Thread thread = new Thread(task, "css-minify-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, overload == Overload.QUEUE ? MinifyExecutor::waitForSlot : new ThreadPoolExecutor.AbortPolicy());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Under {@code QUEUE}, waits for room in the full queue. Every worker is busy while it is full,
+     * so one is alive to take the call once room appears.
+     */
+    private static void waitForSlot(Runnable task, ThreadPoolExecutor pool) {
+        try {
+            while (!pool.getQueue().offer(task, 100, TimeUnit.MILLISECONDS)) {
+                if (pool.isShutdown()) throw new RejectedExecutionException("MinifyExecutor is closed");
+            }
+            // Closed meanwhile: the workers may be gone already
+            if (pool.isShutdown() && pool.remove(task)) throw new RejectedExecutionException("MinifyExecutor is closed");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a slot", e);
+        }
+    }
+
+    /**
+     * The instance behind {@link CssMinifier#minifyAsync}: one worker per processor, sixteen
+     * queued calls per worker, {@code REJECT} beyond that. Created on first use.
+     */
+    public static MinifyExecutor shared() {
+        MinifyExecutor executor = shared;
+        if (executor == null) {
+            synchronized (MinifyExecutor.class) {
+                executor = shared;
+                if (executor == null) {
+                    int workers = Runtime.getRuntime().availableProcessors();
+                    shared = executor = new MinifyExecutor(workers, 16 * workers, Overload.REJECT);
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Minifies on a worker. The input is copied on the calling thread, so a mutable
+     * {@code CharSequence} may be reused once this returns. Under {@code QUEUE} this waits while
+     * the queue is full. The future fails with a {@link RejectedExecutionException} when the call
+     * is rejected (or the wait interrupted), and with what
+     * {@link CssMinifier#minify(String, MinifyOptions)} throws otherwise.
+     */
+    public CompletableFuture<String> minify(CharSequence css, MinifyOptions options) {
+        String input = css.toString();
+        MinifyOptions.CancellationToken token = new MinifyOptions.CancellationToken(options.cancellation());
+        MinifyOptions callOptions = options.withCancellation(token);
+        CompletableFuture<String> call = new CompletableFuture<>();
+        Runnable task = () -> {
+            if (call.isDone()) return; // completed by the caller while queued
+            try {
+                call.complete(minifier.apply(input, callOptions));
+            } catch (Throwable e) {
+                call.completeExceptionally(e);
+            }
+        };
+        call.whenComplete((result, failure) -> {
+            token.cancel();
+            pool.remove(task);
+        });
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            return reject(call, e);
+        }
+        return call;
+    }
+
+    private CompletableFuture<String> reject(CompletableFuture<String> call, RejectedExecutionException cause) {
+        rejected.incrementAndGet();
+        call.completeExceptionally(pool.isShutdown() ? new RejectedExecutionException("MinifyExecutor is closed")
+            : overload == Overload.QUEUE ? cause // interrupted while waiting
+            : new RejectedExecutionException("MinifyExecutor is overloaded: " + queueDepth() + " calls queued"));
+        return call;
+    }
+
+    /** Calls waiting for a worker. */
+    public int queueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /** Workers running a call right now. */
+    public int activeWorkers() {
+        return pool.getActiveCount();
+    }
+
+    public int workers() {
+        return workers;
+    }
+
+    public int queueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Calls rejected since creation: under {@code REJECT}, after {@link #close()}, or interrupted
+     * while waiting under {@code QUEUE}.
+     */
+    public long rejectedCalls() {
+        return rejected.get();
+    }
+
+    /**
+     * Stops accepting calls; calls already accepted still complete. Does nothing on the shared
+     * instance, which stays open.
+     */
+    @Override
+    public void close() {
+        if (this != shared) pool.shutdown();
+    }
+}
@@ -0,0 +1,114 @@
+package cssminifier;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Options of {@link CssMinifier#minify(String, MinifyOptions)}. Instances are immutable and can be
+ * shared; each {@code with} method returns a copy.
+ *
+ * <p>A timeout is a budget per call, measured from the start of the call: a service with a
+ * request deadline passes the time left until it. The budget and the cancellation token are
+ * checked cooperatively between stages and every few kilobytes inside them. When the timeout
+ * expires, the call throws {@link MinifyTimeoutException}, or with {@link #bestEffort()} returns
+ * the output of the last completed stage, which is valid but less minified CSS. Cancellation
+ * always throws {@link java.util.concurrent.CancellationException}.
+ *
+ * <p>With {@link #boundedMemory()} the stylesheet is minified a slice of whole top-level rules at
+ * a time, instead of in several transient copies of the whole input. Peak heap is then the input,
+ * twice the output (the output of each slice, then the string joined from them) and the working
+ * set of a few slices; CSS that minifies to half its size stays within two and a half times its
+ * size. A large {@code @media}, {@code @supports}, {@code @container} or named {@code @layer}
+ * block is split between its rules; only a single style rule, {@code @keyframes} or other block
+ * larger than a slice is minified in one piece, and needs a working set of its own size. The
+ * output can differ from that of a whole-stylesheet call where rules meet across slice
+ * boundaries; {@link ChunkedMinifier} lists the cases.
+ */
+public final class MinifyOptions {
+
+    private static final MinifyOptions DEFAULTS = new MinifyOptions(null, null, false, 0);
+
+    private final Duration timeout;
+    private final CancellationToken cancellation;
+    private final boolean bestEffort;
+    private final int chunkChars;
+
+    private MinifyOptions(Duration timeout, CancellationToken cancellation, boolean bestEffort, int chunkChars) {
+        this.timeout = timeout;
+        this.cancellation = cancellation;
+        this.bestEffort = bestEffort;
+        this.chunkChars = chunkChars;
+    }
+
+    /** No timeout, no cancellation, one piece: the same as {@link CssMinifier#minify(String)}. */
+    public static MinifyOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public MinifyOptions withTimeout(Duration timeout) {
+        if (timeout.isNegative()) throw new IllegalArgumentException("Negative timeout: " + timeout);
+        return new MinifyOptions(timeout, cancellation, bestEffort, chunkChars);
+    }
+
+    public MinifyOptions withCancellation(CancellationToken cancellation) {
+        return new MinifyOptions(timeout, Objects.requireNonNull(cancellation), bestEffort, chunkChars);
+    }
+
+    /** On timeout, return the output of the last completed stage instead of throwing. */
+    public MinifyOptions bestEffort() {
+        return new MinifyOptions(timeout, cancellation, true, chunkChars);
+    }
+
+    /** Minify in slices of about 64K characters to bound peak memory. */
+    public MinifyOptions boundedMemory() {
+        return boundedMemory(ChunkedMinifier.DEFAULT_CHUNK_CHARS);
+    }
+
+    /** Minify in slices of at least this many characters (whole top-level rules) to bound peak memory. */
+    public MinifyOptions boundedMemory(int chunkChars) {
+        if (chunkChars <= 0) throw new IllegalArgumentException("Slice size must be positive: " + chunkChars);
+        return new MinifyOptions(timeout, cancellation, bestEffort, chunkChars);
+    }
+
+    /** The budget of each call, or null for none. */
+    public Duration timeout() {
+        return timeout;
+    }
+
+    /** The token checked for cancellation, or null for none. */
+    public CancellationToken cancellation() {
+        return cancellation;
+    }
+
+    public boolean isBestEffort() {
+        return bestEffort;
+    }
+
+    /** The slice size of bounded-memory mode, or 0 when the input is minified in one piece. */
+    public int chunkChars() {
+        return chunkChars;
+    }
+
+    /** Cancels the calls it was passed to; once cancelled it stays cancelled. */
+    public static final class CancellationToken {
+        private final CancellationToken parent;
+        private volatile boolean cancelled;
+
+        public CancellationToken() {
+            this(null);
+        }
+
+        /** A token that is also cancelled when the parent is, or null for none. */
+        CancellationToken(CancellationToken parent) {
+            this.parent = parent;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled || (parent != null && parent.isCancelled());
+        }
+    }
+}
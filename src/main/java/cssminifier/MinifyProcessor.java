@@ -0,0 +1,213 @@
+package cssminifier;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minifies a stream of UTF-8 bytes as it arrives, for reactive pipelines: an HTTP request body,
+ * a file read in chunks. Every top-level rule is minified once the next one completes (the last
+ * complete rule is held back so that it can still merge with a twin that follows), so output
+ * flows while input does, and besides the pending output only the incomplete trailing rule and
+ * that one held-back rule are buffered. The output is the same as {@link CssMinifier#minify}'s,
+ * with the exceptions described in {@link ChunkedMinifier}.
+ *
+ * <p>With {@link MinifyOptions#boundedMemory(int)} output comes instead in slices of about that
+ * many characters, which costs less per byte than running the passes rule by rule. A timeout in
+ * the options counts from the construction of the processor; running out of it, cancellation
+ * through the token and malformed UTF-8 all end the stream with {@code onError}.
+ *
+ * <p>Backpressure: one buffer at a time is requested from upstream, and only while the subscriber
+ * has outstanding demand and all output of the previous buffer has been delivered. One
+ * subscriber; a second one is rejected with {@code onError}.
+ */
+public final class MinifyProcessor implements Flow.Processor<ByteBuffer, ByteBuffer> {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ChunkedMinifier chunked;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+    private ByteBuffer carry = EMPTY; // the start of a character split across buffers
+
+    private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private volatile Flow.Subscriber<? super ByteBuffer> downstream; // set once onSubscribe returned
+    private volatile Flow.Subscription upstream;
+    private volatile boolean requested;   // a buffer is requested from upstream and has not arrived
+    private volatile boolean upstreamDone;
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+    private boolean terminated;           // guarded by wip
+
+    public MinifyProcessor() {
+        this(MinifyOptions.defaults());
+    }
+
+    public MinifyProcessor(MinifyOptions options) {
+        int chunkChars = options.chunkChars() > 0 ? options.chunkChars() : 1;
+        this.chunked = new ChunkedMinifier(chunkChars, CssMinifier.slicePipeline(options), part -> {
+            if (!part.isEmpty()) pending.add(ByteBuffer.wrap(part.getBytes(StandardCharsets.UTF_8)));
+        });
+    }
+
+    // ==================== Downstream ====================
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        Objects.requireNonNull(subscriber);
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {}
+
+                @Override
+                public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("MinifyProcessor supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("Non-positive request: " + n));
+                    return;
+                }
+                demand.getAndAccumulate(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                Flow.Subscription up = upstream;
+                if (up != null) up.cancel();
+                drain();
+            }
+        });
+        downstream = subscriber;
+        drain();
+    }
+
+    // ==================== Upstream ====================
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        if (cancelled) subscription.cancel();
+        drain();
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+        if (cancelled || error != null) return;
+        try {
+            decode(item, false);
+        } catch (CharacterCodingException | RuntimeException e) {
+            fail(e);
+            return;
+        }
+        requested = false;
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (error == null) error = throwable;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        if (cancelled || error != null) return;
+        try {
+            decode(EMPTY, true);
+            chunked.finish();
+        } catch (CharacterCodingException | RuntimeException e) {
+            error = e;
+        }
+        upstreamDone = true;
+        drain();
+    }
+
+    private void decode(ByteBuffer item, boolean endOfInput) throws CharacterCodingException {
+        ByteBuffer in = item;
+        if (carry.hasRemaining()) {
+            in = ByteBuffer.allocate(carry.remaining() + item.remaining()).put(carry).put(item).flip();
+        }
+        // UTF-8 never decodes to more chars than it has bytes
+        CharBuffer chars = CharBuffer.allocate(in.remaining());
+        CoderResult result = decoder.decode(in, chars, endOfInput);
+        if (result.isError()) result.throwException();
+        if (endOfInput) {
+            result = decoder.flush(chars);
+            if (result.isError()) result.throwException();
+        }
+        carry = in.hasRemaining() ? ByteBuffer.allocate(in.remaining()).put(in).flip() : EMPTY;
+        chunked.append(chars.flip());
+    }
+
+    private void fail(Throwable e) {
+        if (error == null) error = e;
+        Flow.Subscription up = upstream;
+        if (up != null) up.cancel();
+        drain();
+    }
+
+    /**
+     * Delivers pending output and terminal signals, and requests more input when all output is
+     * delivered and there is demand for more. Runs on whichever thread signalled last; a signal
+     * that arrives meanwhile (a request from inside onNext, say) makes the running drain loop once
+     * more instead of recursing.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            Flow.Subscriber<? super ByteBuffer> subscriber = downstream;
+            if (subscriber != null && !terminated) {
+                if (cancelled) {
+                    terminated = true;
+                    pending.clear();
+                } else if (error != null) {
+                    terminated = true;
+                    pending.clear();
+                    subscriber.onError(error);
+                } else {
+                    ByteBuffer next;
+                    while (demand.get() > 0 && (next = pending.poll()) != null) {
+                        if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                        subscriber.onNext(next);
+                    }
+                    if (pending.isEmpty()) {
+                        Flow.Subscription up = upstream;
+                        if (upstreamDone) {
+                            terminated = true;
+                            subscriber.onComplete();
+                        } else if (demand.get() > 0 && !requested && up != null) {
+                            requested = true;
+                            up.request(1);
+                        }
+                    }
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+}
@@ -0,0 +1,299 @@
+package cssminifier;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Minification over HTTP, for running the minifier as a long-lived sidecar instead of one JVM per
+ * file. POST a stylesheet to any path and get the minified stylesheet back.
+ *
+ * <p>Responses carry an ETag derived from the SHA-256 of the request body, with a {@code -gzip}
+ * suffix on gzipped responses so that the two codings never share a strong validator. A client
+ * that sends the same CSS with If-None-Match (either tag) gets 304 without the server minifying
+ * again. The request
+ * body is read whole for that hash, but on a cache miss the response is streamed with chunked
+ * encoding, each slice of top-level rules sent as it is minified (see
+ * {@link CssMinifier#minify(Reader, Writer, MinifyOptions)}), and gzipped on the
+ * way for clients accepting gzip. Minified output is kept in an LRU cache keyed by the same hash,
+ * together with a gzip copy made on first request; hits are sent from there with their length.
+ * Each exchange runs on its own virtual thread. A failure after a streamed response has started
+ * drops the connection before the terminating chunk, so that the client sees a truncated response
+ * rather than a complete-looking 200.
+ */
+public final class MinifyServer {
+
+    static final int DEFAULT_PORT = 8080;
+    static final long DEFAULT_CACHE_BYTES = 64L << 20;
+    static final int MAX_REQUEST_BYTES = 16 << 20;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final OutputCache cache;
+    private final StreamMinifier minifier;
+
+    /** What streams a cache miss; tests substitute one that fails. */
+    interface StreamMinifier {
+        void minify(Reader in, Writer out) throws IOException;
+    }
+
+    private MinifyServer(HttpServer server, ExecutorService executor, OutputCache cache, StreamMinifier minifier) {
+        this.server = server;
+        this.executor = executor;
+        this.cache = cache;
+        this.minifier = minifier;
+    }
+
+    /** Starts a server on the given address; port 0 picks a free port. */
+    public static MinifyServer start(InetSocketAddress address, long cacheBytes) throws IOException {
+        return start(address, cacheBytes, (in, out) -> CssMinifier.minify(in, out, MinifyOptions.defaults()));
+    }
+
+    static MinifyServer start(InetSocketAddress address, long cacheBytes, StreamMinifier minifier) throws IOException {
+        HttpServer server = HttpServer.create(address, 0);
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        MinifyServer minifyServer = new MinifyServer(server, executor, new OutputCache(cacheBytes), minifier);
+        server.createContext("/", minifyServer::handle);
+        server.setExecutor(executor);
+        server.start();
+        return minifyServer;
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /** Stops accepting requests, waits up to the given number of seconds for running ones, then shuts down. */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            respond(exchange);
+        } catch (IOException | RuntimeException e) {
+            if (exchange.getResponseCode() < 0) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+            // Otherwise the exchange stays open: closing it would end a streamed body with its
+            // terminating chunk (and gzip trailer). Rethrown, the server drops the connection.
+            throw e;
+        }
+        exchange.close();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        byte[] body = readBody(exchange.getRequestBody());
+        if (body == null) {
+            exchange.sendResponseHeaders(413, -1);
+            return;
+        }
+
+        String hash = sha256(body);
+        boolean gzip = acceptsGzip(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        Headers response = exchange.getResponseHeaders();
+        response.set("ETag", etag(hash, gzip));
+        response.set("Vary", "Accept-Encoding");
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), hash)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        response.set("Content-Type", "text/css; charset=utf-8");
+        if (gzip) response.set("Content-Encoding", "gzip");
+        Output output = cache.get(hash);
+        if (output != null) {
+            MinifierMetrics.recordCacheHit();
+            byte[] bytes = gzip ? output.gzipped() : output.plain;
+            // A length of 0 would mean chunked encoding; -1 means no body
+            exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+            return;
+        }
+
+        MinifierMetrics.recordCacheMiss();
+        exchange.sendResponseHeaders(200, 0);
+        CopyingStream copy = new CopyingStream(gzip ? new GZIPOutputStream(exchange.getResponseBody())
+            : exchange.getResponseBody(), cache.maxBytes);
+        Writer out = new OutputStreamWriter(copy, StandardCharsets.UTF_8);
+        minifier.minify(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8), out);
+        out.close(); // only once complete: see handle
+        byte[] plain = copy.copy();
+        if (plain != null) cache.put(hash, new Output(plain));
+    }
+
+    /** The request body, or null when it exceeds MAX_REQUEST_BYTES. */
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) >= 0; ) {
+            if (body.size() + n > MAX_REQUEST_BYTES) return null;
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JDK has SHA-256
+        }
+    }
+
+    private static String etag(String hash, boolean gzip) {
+        return '"' + hash + (gzip ? "-gzip\"" : "\"");
+    }
+
+    /** Whether If-None-Match names either coding of the output for this hash. */
+    private static boolean matches(String ifNoneMatch, String hash) {
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.strip();
+            if (tag.startsWith("W/")) tag = tag.substring(2);
+            if (tag.equals(etag(hash, false)) || tag.equals(etag(hash, true)) || tag.equals("*")) return true;
+        }
+        return false;
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.strip().split(";");
+            if (!parts[0].strip().equalsIgnoreCase("gzip")) continue;
+            // "gzip;q=0" explicitly refuses gzip
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].strip();
+                if (param.matches("q=0(\\.0{0,3})?")) return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /** Passes bytes on and keeps a copy of them, until they are more than the cache could hold. */
+    private static final class CopyingStream extends FilterOutputStream {
+        private final long maxBytes;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CopyingStream(OutputStream out, long maxBytes) {
+            super(out);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy == null) return;
+            if (copy.size() + len > maxBytes) {
+                copy = null;
+            } else {
+                copy.write(b, off, len);
+            }
+        }
+
+        /** The bytes written, or null when they outgrew the cache. */
+        byte[] copy() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+
+    /** Minified bytes and, once requested, their gzip encoding. */
+    static final class Output {
+        final byte[] plain;
+        private volatile byte[] gzipped;
+
+        Output(byte[] plain) {
+            this.plain = plain;
+        }
+
+        byte[] gzipped() throws IOException {
+            byte[] result = gzipped;
+            if (result == null) {
+                // Racing threads may both compress; either result is the same bytes
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(plain.length / 4 + 64);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(buffer)) {
+                    gzip.write(plain);
+                }
+                result = buffer.toByteArray();
+                gzipped = result;
+            }
+            return result;
+        }
+    }
+
+    /** LRU map from ETag to output, bounded by the total size of the plain outputs. */
+    static final class OutputCache {
+        final long maxBytes;
+        private final LinkedHashMap<String, Output> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        OutputCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized Output get(String key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(String key, Output output) {
+            if (output.plain.length > maxBytes) return;
+            Output previous = entries.put(key, output);
+            if (previous != null) bytes -= previous.plain.length;
+            bytes += output.plain.length;
+            var eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Output> entry = eldest.next();
+                bytes -= entry.getValue().plain.length;
+                eldest.remove();
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    /** {@code css-minifier serve [port]}: serves until the process is killed. */
+    static void run(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        MinifierMetrics.register();
+        MinifyServer server = start(new InetSocketAddress(port), DEFAULT_CACHE_BYTES);
+        System.err.printf("Serving on http://localhost:%d/ (POST CSS to minify)%n", server.port());
+    }
+}
@@ -0,0 +1,27 @@
+package cssminifier;
+
+import java.time.Duration;
+
+/** Thrown when a call runs out of the timeout of its {@link MinifyOptions}. */
+public class MinifyTimeoutException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CssMinifier.Stage stage;
+    private final Duration timeout;
+
+    public MinifyTimeoutException(CssMinifier.Stage stage, Duration timeout) {
+        super("Minification exceeded its " + timeout.toMillis() + " ms budget in " + stage);
+        this.stage = stage;
+        this.timeout = timeout;
+    }
+
+    /** The stage that was running when the budget ran out. */
+    public CssMinifier.Stage stage() {
+        return stage;
+    }
+
+    public Duration timeout() {
+        return timeout;
+    }
+}
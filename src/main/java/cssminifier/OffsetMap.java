@@ -0,0 +1,193 @@
+package cssminifier;
+
+import java.util.Arrays;
+
+/**
+ * Where the text a pass wrote came from in the text it read, for source maps. The output is a
+ * sequence of runs, each starting at an output offset: a copied run is the input from an offset
+ * on, character for character; a written run (a rewritten value, a collapsed shorthand) stands
+ * as a whole for the input at one offset. Runs are two int arrays, and a copy that continues the
+ * run before it adds nothing, so a pass records one run per edit it makes.
+ *
+ * <p>A pass records into an empty map as it appends to its output, with offsets into its own
+ * input, and the pipeline then {@link #follow}s it: the map of the pipeline so far, from the
+ * pass's input to the original input, becomes one from the pass's output. The pass's runs are
+ * kept as a level of their own rather than composed with the levels before, so a pass costs its
+ * recording and a copy, and only the offsets looked up at the end ({@link #mapAll}) go through
+ * the levels. A pass that rewrites a block on its own, or a segment in several steps, builds the
+ * block's map the same way and {@link #append}s it, which composes the block's levels into one.
+ */
+final class OffsetMap {
+
+    private int[] outs; // output offset where each run starts, ascending
+    private int[] ins;  // input offset of the run's first character, or ~offset for a written run
+    private int size;
+    private int cursor; // run of the last lookup, where the next one usually is
+    private OffsetMap before; // from this level's input on to the original; null when that is the original
+
+    OffsetMap() {
+        this(new int[16], new int[16], 0, null);
+    }
+
+    private OffsetMap(int[] outs, int[] ins, int size, OffsetMap before) {
+        this.outs = outs;
+        this.ins = ins;
+        this.size = size;
+        this.before = before;
+    }
+
+    /** The map of a text no pass has changed yet. */
+    static OffsetMap identity() {
+        OffsetMap map = new OffsetMap();
+        map.copy(0, 0);
+        return map;
+    }
+
+    /** Output from offset at on is the input from offset from on, up to the next run. */
+    void copy(int at, int from) {
+        add(at, from);
+    }
+
+    /** Output from offset at on was written for the input at offset from, up to the next run. */
+    void write(int at, int from) {
+        add(at, ~from);
+    }
+
+    private void add(int at, int in) {
+        if (size > 0 && outs[size - 1] == at) size--; // the run before was empty
+        if (size > 0 && in >= 0 && ins[size - 1] >= 0 && in - ins[size - 1] == at - outs[size - 1]) return;
+        if (size == outs.length) {
+            outs = Arrays.copyOf(outs, Math.max(16, size * 2));
+            ins = Arrays.copyOf(ins, outs.length);
+        }
+        outs[size] = at;
+        ins[size] = in;
+        size++;
+    }
+
+    /** Drops the runs from an output offset on, where the pass took back what it had written. */
+    void truncate(int length) {
+        while (size > 0 && outs[size - 1] >= length) size--;
+    }
+
+    /** Drops the first count characters of the output, which the pass trimmed. */
+    void trimStart(int count) {
+        if (size == 0) return;
+        int k = run(count);
+        int first = ins[k] >= 0 ? ins[k] + (count - outs[k]) : ins[k];
+        int n = size - k;
+        System.arraycopy(outs, k, outs, 0, n);
+        System.arraycopy(ins, k, ins, 0, n);
+        size = n;
+        cursor = 0;
+        for (int i = 0; i < n; i++) outs[i] -= count;
+        outs[0] = 0;
+        ins[0] = first;
+    }
+
+    /** Records part, the map of text written at output offset at for the input from offset from. */
+    void append(OffsetMap part, int at, int from) {
+        part.flatten();
+        for (int k = 0; k < part.size; k++) {
+            int in = part.ins[k];
+            add(at + part.outs[k], in >= 0 ? from + in : ~(from + ~in));
+        }
+    }
+
+    void clear() {
+        size = 0;
+        cursor = 0;
+        before = null;
+    }
+
+    /** The original input offset an output offset came from. */
+    int map(int offset) {
+        int k = run(offset);
+        int in = ins[k];
+        int mapped = in >= 0 ? in + (offset - outs[k]) : ~in;
+        return before == null ? mapped : before.map(mapped);
+    }
+
+    /**
+     * Maps the first count offsets in place to the original input offsets they came from, a level
+     * at a time; cheapest in ascending order, as a parse of the output yields them.
+     */
+    void mapAll(int[] offsets, int count) {
+        for (OffsetMap level = this; level != null; level = level.before) {
+            int k = 0;
+            for (int i = 0; i < count; i++) {
+                int offset = offsets[i];
+                k = level.seek(k, offset);
+                int in = level.ins[k];
+                offsets[i] = in >= 0 ? in + (offset - level.outs[k]) : ~in;
+            }
+        }
+    }
+
+    /** Index of the run an output offset is in, looking on from run k first. */
+    private int seek(int k, int offset) {
+        if (k >= size || outs[k] > offset) return run(offset);
+        while (k + 1 < size && outs[k + 1] <= offset) k++;
+        return k;
+    }
+
+    /** Index of the run an output offset is in; the first run for one before it. */
+    private int run(int offset) {
+        // Lookups mostly come in order, a run or two on from the last
+        int k = cursor;
+        if (k < size && outs[k] <= offset) {
+            int stop = Math.min(size, k + 4);
+            while (k + 1 < stop && outs[k + 1] <= offset) k++;
+            if (k + 1 == size || outs[k + 1] > offset) return cursor = k;
+        }
+        k = Arrays.binarySearch(outs, 0, size, offset);
+        return cursor = k >= 0 ? k : Math.max(0, -k - 2);
+    }
+
+    /**
+     * Makes this map, from a text to the original input, one from the output of a pass over that
+     * text, given step from the pass's output to the text. The step's runs are copied into a new
+     * top level, so the pass can clear the step and record into it again.
+     */
+    void follow(OffsetMap step) {
+        if (step.before != null) follow(step.before);
+        boolean identity = before == null && size == 1 && outs[0] == 0 && ins[0] == 0;
+        if (!identity) before = new OffsetMap(outs, ins, size, before);
+        outs = Arrays.copyOf(step.outs, step.size);
+        ins = Arrays.copyOf(step.ins, step.size);
+        size = step.size;
+        cursor = 0;
+    }
+
+    /** Composes the levels into one, as a part needs to be before its runs are appended. */
+    private void flatten() {
+        if (before == null) return;
+        before.flatten();
+        OffsetMap composed = new OffsetMap();
+        int j = 0; // run of the level before that this level's run starts in
+        for (int k = 0; k < size; k++) {
+            int at = outs[k];
+            int in = ins[k];
+            int first = in >= 0 ? in : ~in;
+            j = before.seek(j, first);
+            if (in < 0) {
+                int mine = before.ins[j];
+                composed.add(at, ~(mine >= 0 ? mine + (first - before.outs[j]) : ~mine));
+                continue;
+            }
+            // A copied run is split where the runs before start within it
+            int end = k + 1 < size ? in + (outs[k + 1] - at) : Integer.MAX_VALUE;
+            for (; j < before.size && before.outs[j] < end; j++) {
+                int from = Math.max(in, before.outs[j]);
+                int mine = before.ins[j];
+                composed.add(at + (from - in), mine >= 0 ? mine + (from - before.outs[j]) : mine);
+            }
+            j = Math.max(0, j - 1);
+        }
+        outs = composed.outs;
+        ins = composed.ins;
+        size = composed.size;
+        cursor = 0;
+        before = null;
+    }
+}
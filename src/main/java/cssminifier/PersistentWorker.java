@@ -0,0 +1,329 @@
+package cssminifier;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistent worker for Bazel and build systems with the same protocol, started with
+ * {@code --persistent_worker}. Reads JSON WorkRequests from stdin and writes one JSON
+ * WorkResponse per request to stdout (the {@code requires-worker-protocol: json} variant).
+ *
+ * <p>A request's {@code arguments} are a css-minifier command line, with {@code @file} arguments
+ * expanded one argument per line. Requests with a {@code requestId} of 0 (singleplex) are run
+ * one at a time in arrival order; others (multiplex) run concurrently and their responses are
+ * tagged with the id and may come back in any order. The time each request took goes to the
+ * worker log (stderr), and into the response output when {@code verbosity} is above 0.
+ */
+final class PersistentWorker {
+
+    private final InputStream in;
+    private final Writer out;
+    private final PrintStream log;
+    private final int threads;
+
+    PersistentWorker(InputStream in, OutputStream out, PrintStream log, int threads) {
+        this.in = in;
+        this.out = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        this.log = log;
+        this.threads = threads;
+    }
+
+    /** Serves requests until stdin is closed, then waits for the ones still running. */
+    void run() throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            while (true) {
+                Object request;
+                try {
+                    request = reader.read();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (!(request instanceof Map<?, ?> fields)) throw new IOException("WorkRequest is not an object: " + request);
+                long requestId = fields.get("requestId") instanceof Number n ? n.longValue() : 0;
+                if (requestId == 0) {
+                    respond(process(fields));
+                } else {
+                    pool.execute(() -> {
+                        try {
+                            respond(process(fields));
+                        } catch (IOException e) {
+                            log.println("Cannot write WorkResponse " + requestId + ": " + e);
+                        }
+                    });
+                }
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(1, TimeUnit.HOURS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private String process(Map<?, ?> request) {
+        long start = System.nanoTime();
+        long requestId = request.get("requestId") instanceof Number n ? n.longValue() : 0;
+        int verbosity = request.get("verbosity") instanceof Number n ? n.intValue() : 0;
+        Path cwd = request.get("sandboxDir") instanceof String dir && !dir.isEmpty() ? Path.of(dir) : Path.of("");
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+        int exitCode;
+        try (PrintStream outStream = new PrintStream(stdout, true, StandardCharsets.UTF_8);
+             PrintStream errStream = new PrintStream(stderr, true, StandardCharsets.UTF_8)) {
+            try {
+                String[] args = expandArguments(request.get("arguments"), cwd);
+                exitCode = CssMinifier.run(args, cwd, new ByteArrayInputStream(new byte[0]), outStream, errStream);
+            } catch (IOException | RuntimeException e) {
+                errStream.println(e);
+                exitCode = 1;
+            }
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        log.printf("request %d: exit %d in %.3f ms%n", requestId, exitCode, millis);
+
+        // The "Minified: ..." summary is only worth showing when asked for or when something failed
+        StringBuilder output = new StringBuilder();
+        if (exitCode != 0 || verbosity > 0) output.append(stdout.toString(StandardCharsets.UTF_8));
+        output.append(stderr.toString(StandardCharsets.UTF_8));
+        if (verbosity > 0) output.append(String.format("css-minifier: %.3f ms%n", millis));
+
+        StringBuilder response = new StringBuilder(output.length() + 64);
+        response.append("{\"exitCode\":").append(exitCode).append(",\"output\":");
+        JsonReader.quote(output, response);
+        return response.append(",\"requestId\":").append(requestId).append("}\n").toString();
+    }
+
+    private static String[] expandArguments(Object arguments, Path cwd) throws IOException {
+        List<String> expanded = new ArrayList<>();
+        if (arguments instanceof List<?> list) {
+            for (Object argument : list) {
+                String arg = String.valueOf(argument);
+                if (arg.startsWith("@") && !arg.startsWith("@@")) {
+                    for (String line : Files.readAllLines(cwd.resolve(arg.substring(1)))) {
+                        if (!line.isEmpty()) expanded.add(line);
+                    }
+                } else {
+                    expanded.add(arg.startsWith("@@") ? arg.substring(1) : arg);
+                }
+            }
+        }
+        return expanded.toArray(new String[0]);
+    }
+
+    private void respond(String response) throws IOException {
+        synchronized (out) {
+            out.write(response);
+            out.flush();
+        }
+    }
+
+    /**
+     * Just enough JSON for WorkRequests: reads one value at a time from a stream, so requests may
+     * span lines or share one. Objects become LinkedHashMaps, arrays Lists, numbers Long or Double.
+     */
+    static final class JsonReader {
+        private final Reader in;
+        private int peeked = -2; // -2: nothing peeked
+
+        JsonReader(Reader in) {
+            this.in = in;
+        }
+
+        /** The next value; EOFException when the stream ends before one starts. */
+        Object read() throws IOException {
+            int c = skipWhitespace();
+            if (c < 0) throw new EOFException();
+            return readValue();
+        }
+
+        private int peek() throws IOException {
+            if (peeked == -2) peeked = in.read();
+            return peeked;
+        }
+
+        private int next() throws IOException {
+            int c = peek();
+            peeked = -2;
+            return c;
+        }
+
+        private int skipWhitespace() throws IOException {
+            while (peek() == ' ' || peek() == '\t' || peek() == '\n' || peek() == '\r') next();
+            return peek();
+        }
+
+        private void expect(char expected) throws IOException {
+            int c = next();
+            if (c != expected) throw new IOException("Expected '" + expected + "' but found " + describe(c));
+        }
+
+        private static String describe(int c) {
+            return c < 0 ? "end of input" : "'" + (char) c + "'";
+        }
+
+        private Object readValue() throws IOException {
+            int c = skipWhitespace();
+            switch (c) {
+                case '{' -> {
+                    next();
+                    Map<String, Object> object = new LinkedHashMap<>();
+                    if (skipWhitespace() == '}') {
+                        next();
+                        return object;
+                    }
+                    while (true) {
+                        skipWhitespace();
+                        String key = readString();
+                        skipWhitespace();
+                        expect(':');
+                        object.put(key, readValue());
+                        int separator = skipWhitespace();
+                        next();
+                        if (separator == '}') return object;
+                        if (separator != ',') throw new IOException("Expected ',' or '}' but found " + describe(separator));
+                    }
+                }
+                case '[' -> {
+                    next();
+                    List<Object> array = new ArrayList<>();
+                    if (skipWhitespace() == ']') {
+                        next();
+                        return array;
+                    }
+                    while (true) {
+                        array.add(readValue());
+                        int separator = skipWhitespace();
+                        next();
+                        if (separator == ']') return array;
+                        if (separator != ',') throw new IOException("Expected ',' or ']' but found " + describe(separator));
+                    }
+                }
+                case '"' -> {
+                    return readString();
+                }
+                case 't' -> {
+                    readLiteral("true");
+                    return Boolean.TRUE;
+                }
+                case 'f' -> {
+                    readLiteral("false");
+                    return Boolean.FALSE;
+                }
+                case 'n' -> {
+                    readLiteral("null");
+                    return null;
+                }
+                default -> {
+                    if (c == '-' || (c >= '0' && c <= '9')) return readNumber();
+                    throw new IOException("Unexpected " + describe(c));
+                }
+            }
+        }
+
+        private void readLiteral(String literal) throws IOException {
+            for (int i = 0; i < literal.length(); i++) expect(literal.charAt(i));
+        }
+
+        private Object readNumber() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            boolean integral = true;
+            for (int c = peek(); c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'); c = peek()) {
+                if (c == '.' || c == 'e' || c == 'E') integral = false;
+                sb.append((char) next());
+            }
+            try {
+                return integral ? (Object) Long.parseLong(sb.toString()) : (Object) Double.parseDouble(sb.toString());
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad number " + sb, e);
+            }
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int c = next();
+                if (c < 0) throw new IOException("Unterminated string");
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append((char) c);
+                    continue;
+                }
+                int escape = next();
+                switch (escape) {
+                    case '"', '\\', '/' -> sb.append((char) escape);
+                    case 'b' -> sb.append('\b');
+                    case 'f' -> sb.append('\f');
+                    case 'n' -> sb.append('\n');
+                    case 'r' -> sb.append('\r');
+                    case 't' -> sb.append('\t');
+                    case 'u' -> {
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(next(), 16);
+                            if (digit < 0) throw new IOException("Bad \\u escape");
+                            code = code * 16 + digit;
+                        }
+                        sb.append((char) code);
+                    }
+                    default -> throw new IOException("Bad escape \\" + describe(escape));
+                }
+            }
+        }
+
+        /** Appends s as a JSON string literal. */
+        static void quote(CharSequence s, StringBuilder out) {
+            out.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '"' -> out.append("\\\"");
+                    case '\\' -> out.append("\\\\");
+                    case '\n' -> out.append("\\n");
+                    case '\r' -> out.append("\\r");
+                    case '\t' -> out.append("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            out.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.append(c);
+                        }
+                    }
+                }
+            }
+            out.append('"');
+        }
+    }
+
+    /** {@code --persistent_worker}: serves WorkRequests on stdin until it is closed. */
+    static void run(String[] args) throws IOException {
+        // stdout carries the protocol; anything else printed there would corrupt it
+        PrintStream protocol = System.out;
+        System.setOut(System.err);
+        new PersistentWorker(System.in, protocol, System.err, Runtime.getRuntime().availableProcessors()).run();
+    }
+}
@@ -0,0 +1,147 @@
+package cssminifier;
+
+import java.util.Arrays;
+
+/**
+ * Builds a Source Map v3 from a stylesheet, its minified output and the {@link OffsetMap} the
+ * passes recorded as they wrote it. Every rule, at-rule and declaration of the output maps to the
+ * input offset its first character came from: the same character when the passes copied it, or
+ * the start of what they rewrote when they wrote it, as for a keyframe selector ({@code from}
+ * written as {@code 0%}) or a collapsed shorthand, which maps to the first longhand it took a
+ * value from. The nodes are those the last pass left, the {@link Stylesheet} of the output.
+ *
+ * <p>Nothing is inferred after the fact, so a change to a pass changes the map only through what
+ * the pass records. The cost over minification is the recording (a run per edit), mapping the
+ * node starts back a pass at a time and the VLQ encoding, written straight into the map's buffer.
+ */
+final class SourceMapGenerator {
+
+    private static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private SourceMapGenerator() {}
+
+    /**
+     * The Source Map v3 JSON for anchors, the parsed output minified from input with offsets
+     * recorded from output to input.
+     */
+    static String generate(String input, Stylesheet anchors, OffsetMap offsets, String sourceName) {
+        String output = anchors.source();
+        int[] sources = Arrays.copyOf(anchors.starts, anchors.size);
+        offsets.mapAll(sources, sources.length);
+        int[] lineStarts = lineStarts(input);
+
+        StringBuilder header = new StringBuilder("{\"version\":3,\"sources\":[");
+        appendString(header, sourceName);
+        header.append("],\"names\":[],\"mappings\":\"");
+        // A segment is 4 to about 12 digits plus a separator; growing a char[] by hand keeps the
+        // per-digit cost to a store, where a StringBuilder checks capacity and coder on each append
+        Mappings json = new Mappings(header.length() + anchors.size * 8 + 16);
+        json.append(header);
+
+        int outLineStart = 0;
+        int nextNewline = output.indexOf('\n');
+        int prevColumn = 0;          // generated column of the previous segment on this line
+        int prevSourceLine = 0;
+        int prevSourceColumn = 0;
+        boolean firstOnLine = true;
+        int sourceLine = 0;
+        for (int n = 0; n < anchors.size; n++) {
+            int offset = anchors.starts[n];
+            while (nextNewline >= 0 && nextNewline < offset) {
+                json.append(';');
+                outLineStart = nextNewline + 1;
+                prevColumn = 0;
+                firstOnLine = true;
+                nextNewline = output.indexOf('\n', outLineStart);
+            }
+            int sourceOffset = sources[n];
+            // Sources mostly move forward, a line or none at a time
+            if (sourceOffset < lineStarts[sourceLine] || sourceLine + 8 < lineStarts.length
+                    && sourceOffset >= lineStarts[sourceLine + 8]) {
+                sourceLine = lineOf(lineStarts, sourceOffset);
+            } else {
+                while (sourceLine + 1 < lineStarts.length && lineStarts[sourceLine + 1] <= sourceOffset) sourceLine++;
+            }
+            int sourceColumn = sourceOffset - lineStarts[sourceLine];
+            int column = offset - outLineStart;
+
+            if (!firstOnLine) json.append(',');
+            firstOnLine = false;
+            json.appendVlq(column - prevColumn);
+            json.appendVlq(0); // the only source
+            json.appendVlq(sourceLine - prevSourceLine);
+            json.appendVlq(sourceColumn - prevSourceColumn);
+            prevColumn = column;
+            prevSourceLine = sourceLine;
+            prevSourceColumn = sourceColumn;
+        }
+        json.append("\"}");
+        return json.toString();
+    }
+
+    /** The map's text, with the VLQ digits written straight into its char array. */
+    static final class Mappings {
+        private char[] chars;
+        private int length;
+
+        Mappings(int capacity) {
+            chars = new char[capacity];
+        }
+
+        void append(char c) {
+            if (length == chars.length) chars = Arrays.copyOf(chars, length * 2);
+            chars[length++] = c;
+        }
+
+        void append(CharSequence s) {
+            for (int i = 0; i < s.length(); i++) append(s.charAt(i));
+        }
+
+        void appendVlq(int value) {
+            if (length + 7 > chars.length) chars = Arrays.copyOf(chars, Math.max(length + 7, chars.length * 2));
+            int vlq = value < 0 ? ((-value) << 1) | 1 : value << 1;
+            do {
+                int digit = vlq & 31;
+                vlq >>>= 5;
+                if (vlq != 0) digit |= 32;
+                chars[length++] = BASE64[digit];
+            } while (vlq != 0);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    private static int[] lineStarts(String text) {
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+            starts[count++] = i + 1;
+        }
+        return Arrays.copyOf(starts, count);
+    }
+
+    private static int lineOf(int[] lineStarts, int offset) {
+        int i = Arrays.binarySearch(lineStarts, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
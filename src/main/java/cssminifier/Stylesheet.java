@@ -0,0 +1,610 @@
+package cssminifier;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parsed stylesheet, read-only, for downstream tools that would otherwise each lex the same
+ * CSS: a linter, a critical-CSS extractor, a bundler reporting rule counts. The minifier shares it:
+ * its early passes rewrite the text, while duplicate removal and rule merging work from the nodes
+ * and derive those of their output from them, which source maps and
+ * {@link CssMinifier#minify(Stylesheet)} hand on; the chunked minifier finds its cuts with the
+ * same parser.
+ *
+ * <p>The parse keeps no object per node: rules, at-rules and declarations are rows of a few int
+ * arrays (kind, offsets, parent, end of subtree), and a {@link Node} is a small view created on
+ * access. The text a node exposes is a {@link CharSequence} over the source, not a copy; its
+ * {@code toString()} copies.
+ *
+ * <p>The grammar is the minifier's: a segment ended by '{' opens a rule, or an at-rule when it
+ * starts with '@'; one ended by ';' or '}' is a declaration, or a statement at-rule such as
+ * {@code @import}. Strings, comments and a ';' inside parentheses ({@code url(data:...;...)}) do
+ * not end a segment. Comments belong to no node. Nothing is validated: a declaration at the top
+ * level, or a block never closed, is kept as written, so that a linter can report it.
+ */
+public final class Stylesheet {
+
+    static final byte RULE = 0;
+    static final byte AT_RULE = 1;
+    static final byte DECLARATION = 2;
+
+    final String source;
+    final int size;
+    final byte[] kinds;
+    final int[] starts;      // first character of the node
+    final int[] mids;        // '{' of a block, the terminator of a statement, ':' of a declaration or -1
+    final int[] ends;        // after the '}' of a block; the terminator of a statement or declaration
+    final int[] parents;     // -1 at the top level
+    final int[] subtreeEnds; // index after the node's last descendant
+
+    /** The arrays are taken as they are, and may be longer than {@code size}. */
+    Stylesheet(String source, int size, byte[] kinds, int[] starts, int[] mids, int[] ends, int[] parents,
+            int[] subtreeEnds) {
+        this.source = source;
+        this.size = size;
+        this.kinds = kinds;
+        this.starts = starts;
+        this.mids = mids;
+        this.ends = ends;
+        this.parents = parents;
+        this.subtreeEnds = subtreeEnds;
+    }
+
+    /** Parses a stylesheet; never fails, whatever the input. */
+    public static Stylesheet parse(String css) {
+        return parse(css, null);
+    }
+
+    /** Parses for a pass of the minifier, which checks its budget as it goes. */
+    static Stylesheet parse(String css, CssMinifier.Budget budget) {
+        Parser p = new Parser(css.length() / 24);
+        p.run(css, 0, -1, budget);
+        return p.finish(css);
+    }
+
+    /**
+     * Writes the binary form described in {@link StylesheetFormat}, which {@link #read} turns back
+     * into an equal stylesheet without parsing. The stream is not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        StylesheetFormat.write(this, out, 0, 0, 0);
+    }
+
+    /**
+     * Reads a stylesheet written by {@link #writeTo}, from a heap or direct buffer. Returns
+     * null when the data is of another format version, truncated or corrupt, or holds node
+     * offsets that do not form a tree over its source; the caller then parses the source again.
+     */
+    public static Stylesheet read(ByteBuffer data) {
+        return StylesheetFormat.read(data, 0, 0);
+    }
+
+    /**
+     * The stylesheet of a source file, from a cache file written by an earlier call when that
+     * cache is of this format version, intact and was written for the source's current content
+     * (its size and CRC32C); otherwise the source is parsed and the cache rewritten. A cache that
+     * cannot be written, say in a read-only directory, is skipped and the parse returned.
+     */
+    public static Stylesheet load(Path cache, Path source) throws IOException {
+        return StylesheetFormat.load(cache, source, false);
+    }
+
+    /**
+     * As {@link #load}, but for the source minified: the cache holds the nodes
+     * {@link CssMinifier#minify(Stylesheet)} returned for the source, which it takes back without
+     * parsing them again, so a build that reloads a file it has not changed neither parses nor
+     * lexes it. A cache of the parse, written by {@link #load}, is replaced.
+     */
+    public static Stylesheet loadMinified(Path cache, Path source) throws IOException {
+        return StylesheetFormat.load(cache, source, true);
+    }
+
+    public String source() {
+        return source;
+    }
+
+    /** Number of nodes, at all depths. */
+    public int size() {
+        return size;
+    }
+
+    /** The node at an index in document order, 0 to {@link #size()} - 1, for flat walks. */
+    public Node node(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        return switch (kinds[index]) {
+            case RULE -> new Rule(this, index);
+            case AT_RULE -> new AtRule(this, index);
+            default -> new Declaration(this, index);
+        };
+    }
+
+    /** The top-level nodes. */
+    public List<Node> children() {
+        return new Children(this, 0, size);
+    }
+
+    /** Whether a node is a rule or at-rule with a block, rather than a statement or declaration. */
+    boolean hasBlock(int node) {
+        int mid = mids[node];
+        return kinds[node] != DECLARATION && mid < source.length() && source.charAt(mid) == '{';
+    }
+
+    /** Whether a block holds another, at any depth. */
+    boolean hasNestedBlock(int node) {
+        for (int n = node + 1; n < subtreeEnds[node]; n++) {
+            if (hasBlock(n)) return true;
+        }
+        return false;
+    }
+
+    /** End of a block's body: its '}', or the end of the source for a block never closed. */
+    int bodyEnd(int node) {
+        int end = ends[node];
+        return end > mids[node] + 1 && source.charAt(end - 1) == '}' ? end - 1 : end;
+    }
+
+    private CharSequence view(int start, int end) {
+        while (start < end && source.charAt(start) <= ' ') start++;
+        while (end > start && source.charAt(end - 1) <= ' ') end--;
+        return CharBuffer.wrap(source, start, end);
+    }
+
+    /** A rule, at-rule or declaration of a {@link Stylesheet}. */
+    public abstract static sealed class Node permits Rule, AtRule, Declaration {
+        final Stylesheet sheet;
+        final int index;
+
+        Node(Stylesheet sheet, int index) {
+            this.sheet = sheet;
+            this.index = index;
+        }
+
+        /** Position in document order, for {@link Stylesheet#node(int)}. */
+        public int index() {
+            return index;
+        }
+
+        /** Offset of the node's first character in the source. */
+        public int start() {
+            return sheet.starts[index];
+        }
+
+        /** Offset after the node: after the '}' of a block, at the ';' or '}' ending a statement. */
+        public int end() {
+            return sheet.ends[index];
+        }
+
+        /** The node's text as written, comments included. */
+        public CharSequence text() {
+            return CharBuffer.wrap(sheet.source, start(), end());
+        }
+
+        /** The rule or at-rule containing this node, or null at the top level. */
+        public Node parent() {
+            int parent = sheet.parents[index];
+            return parent < 0 ? null : sheet.node(parent);
+        }
+
+        /** The nodes inside this one's block; empty for declarations and statements. */
+        public List<Node> children() {
+            return new Children(sheet, index + 1, sheet.subtreeEnds[index]);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Node other && other.sheet == sheet && other.index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(sheet) * 31 + index;
+        }
+
+        @Override
+        public String toString() {
+            return text().toString();
+        }
+    }
+
+    /** A style rule: {@code selector { ... }}. */
+    public static final class Rule extends Node {
+        Rule(Stylesheet sheet, int index) {
+            super(sheet, index);
+        }
+
+        /** The selector list as written, trimmed. */
+        public CharSequence selector() {
+            return sheet.view(start(), sheet.mids[index]);
+        }
+
+        /** The selectors of the list, split at commas outside parentheses, brackets and strings. */
+        public List<CharSequence> selectors() {
+            List<CharSequence> selectors = new ArrayList<>();
+            String css = sheet.source;
+            int end = sheet.mids[index];
+            int from = start();
+            int nesting = 0;
+            for (int i = from; i < end; i++) {
+                char c = css.charAt(i);
+                if (c == '"' || c == '\'') {
+                    i = Math.min(end, Parser.skipString(css, i));
+                } else if (c == '(' || c == '[') {
+                    nesting++;
+                } else if (c == ')' || c == ']') {
+                    nesting--;
+                } else if (c == ',' && nesting == 0) {
+                    selectors.add(sheet.view(from, i));
+                    from = i + 1;
+                }
+            }
+            selectors.add(sheet.view(from, end));
+            return selectors;
+        }
+    }
+
+    /** An at-rule, with a block ({@code @media}) or without ({@code @import}). */
+    public static final class AtRule extends Node {
+        AtRule(Stylesheet sheet, int index) {
+            super(sheet, index);
+        }
+
+        /** The name without '@', as in {@code media}. */
+        public CharSequence name() {
+            return CharBuffer.wrap(sheet.source, start() + 1, nameEnd());
+        }
+
+        /** What follows the name up to the block or the terminator, trimmed. */
+        public CharSequence prelude() {
+            return sheet.view(nameEnd(), sheet.mids[index]);
+        }
+
+        public boolean hasBlock() {
+            return sheet.hasBlock(index);
+        }
+
+        private int nameEnd() {
+            String css = sheet.source;
+            int end = sheet.mids[index];
+            int i = start() + 1;
+            while (i < end && isNameChar(css.charAt(i))) i++;
+            return i;
+        }
+
+        private static boolean isNameChar(char c) {
+            return c == '-' || c == '_' || c >= 0x80 || Character.isLetterOrDigit(c);
+        }
+    }
+
+    /** A declaration: {@code property: value}, with or without {@code !important}. */
+    public static final class Declaration extends Node {
+        Declaration(Stylesheet sheet, int index) {
+            super(sheet, index);
+        }
+
+        /** The property name as written, trimmed; the whole text when there is no ':'. */
+        public CharSequence property() {
+            int colon = sheet.mids[index];
+            return sheet.view(start(), colon < 0 ? end() : colon);
+        }
+
+        /** The value as written, trimmed, {@code !important} included; empty when there is no ':'. */
+        public CharSequence value() {
+            int colon = sheet.mids[index];
+            return colon < 0 ? CharBuffer.wrap("") : sheet.view(colon + 1, end());
+        }
+
+        public boolean important() {
+            CharSequence value = value();
+            int i = value.length();
+            String keyword = "important";
+            if (i < keyword.length() + 1) return false;
+            for (int k = keyword.length() - 1; k >= 0; k--) {
+                if (Character.toLowerCase(value.charAt(--i)) != keyword.charAt(k)) return false;
+            }
+            while (i > 0 && value.charAt(i - 1) <= ' ') i--;
+            return i > 0 && value.charAt(i - 1) == '!';
+        }
+    }
+
+    /**
+     * The table of a text a pass made from the source by edits, given in source order: a range
+     * replaced with new text drops the nodes that start in it and gains those of the text, and a
+     * merge drops the block whose '}' and selector it removed, its children and end going to the
+     * block before. The other rows are copied with their offsets moved, so that a pass which edits
+     * a few blocks costs a copy of the table rather than a parse of its output.
+     */
+    static final class Editor {
+        private final Stylesheet sheet;
+        private int count;
+        private int[] froms = new int[16];
+        private int[] tos = new int[16];
+        private int[] lengths = new int[16];
+        private int[] parents = new int[16]; // of the nodes of the new text
+        private int[] intos = new int[16];   // block taking the children of the node dropped, or -1
+        private String[] texts = new String[16];
+
+        Editor(Stylesheet sheet) {
+            this.sheet = sheet;
+        }
+
+        /** Source[from, to), the body of a block with no block inside, becomes text. */
+        void replace(int from, int to, String text, int block) {
+            add(from, to, text.length(), text, block, -1);
+        }
+
+        /**
+         * Source[from, to), from the '}' of block into to the '{' of the next, node, becomes length
+         * characters that are no node.
+         */
+        void merge(int from, int to, int length, int into) {
+            add(from, to, length, null, -1, into);
+        }
+
+        private void add(int from, int to, int length, String text, int parent, int into) {
+            if (count == froms.length) {
+                int capacity = count * 2;
+                froms = Arrays.copyOf(froms, capacity);
+                tos = Arrays.copyOf(tos, capacity);
+                lengths = Arrays.copyOf(lengths, capacity);
+                parents = Arrays.copyOf(parents, capacity);
+                intos = Arrays.copyOf(intos, capacity);
+                texts = Arrays.copyOf(texts, capacity);
+            }
+            froms[count] = from;
+            tos[count] = to;
+            lengths[count] = length;
+            texts[count] = text;
+            parents[count] = parent;
+            intos[count] = into;
+            count++;
+        }
+
+        /** The stylesheet of the edited text. */
+        Stylesheet apply(String edited) {
+            Parser out = new Parser(sheet.size);
+            int[] index = new int[sheet.size]; // row of each node, or of the block that took its children
+            int e = 0;     // first edit not wholly before the node
+            int delta = 0; // what the edits before it added to the length
+            for (int n = 0; n < sheet.size; n++) {
+                int start = sheet.starts[n];
+                while (e < count && tos[e] <= start) delta = insert(out, e++, delta, index);
+                if (e < count && froms[e] <= start) {
+                    int into = intos[e];
+                    if (into >= 0) {
+                        index[n] = index[into];
+                        out.ends[index[into]] = moved(sheet.ends[n], e, delta);
+                    }
+                    continue;
+                }
+                int mid = sheet.mids[n];
+                int parent = sheet.parents[n];
+                index[n] = out.add(sheet.kinds[n], start + delta, mid < 0 ? -1 : moved(mid, e, delta),
+                    moved(sheet.ends[n], e, delta));
+                out.parents[index[n]] = parent < 0 ? -1 : index[parent];
+            }
+            while (e < count) delta = insert(out, e++, delta, index);
+            out.subtrees();
+            return out.finish(edited);
+        }
+
+        /** Adds the nodes of edit e's text, and returns delta with the edit's. */
+        private int insert(Parser out, int e, int delta, int[] index) {
+            if (texts[e] != null) out.run(texts[e], froms[e] + delta, index[parents[e]], null);
+            return delta + lengths[e] - (tos[e] - froms[e]);
+        }
+
+        /** Where an offset at or after edit e's start went, given delta before that edit. */
+        private int moved(int offset, int e, int delta) {
+            for (; e < count && tos[e] <= offset; e++) delta += lengths[e] - (tos[e] - froms[e]);
+            return offset + delta;
+        }
+    }
+
+    /** Siblings from a first index, stepping over each one's descendants. */
+    private static final class Children extends AbstractList<Node> {
+        private final Stylesheet sheet;
+        private final int[] indexes;
+
+        Children(Stylesheet sheet, int from, int to) {
+            this.sheet = sheet;
+            int count = 0;
+            for (int i = from; i < to; i = sheet.subtreeEnds[i]) count++;
+            indexes = new int[count];
+            count = 0;
+            for (int i = from; i < to; i = sheet.subtreeEnds[i]) indexes[count++] = i;
+        }
+
+        @Override
+        public Node get(int i) {
+            return sheet.node(indexes[i]);
+        }
+
+        @Override
+        public int size() {
+            return indexes.length;
+        }
+    }
+
+    /**
+     * The rows of a table being built: by one pass over a source, or, for an {@link Editor}, by
+     * copying another table's and parsing the text edits put in.
+     */
+    static final class Parser {
+        /** ASCII characters that mean nothing to the grammar but text: not whitespace nor one of "'/(){};: */
+        private static final boolean[] PLAIN = new boolean[128];
+
+        static {
+            for (char c = 0; c < PLAIN.length; c++) PLAIN[c] = !Character.isWhitespace(c) && "\"'/(){};:".indexOf(c) < 0;
+        }
+
+        int size;
+        byte[] kinds;
+        int[] starts;
+        int[] mids;
+        int[] ends;
+        int[] parents;
+        int[] subtreeEnds;
+        int unclosed;         // blocks the last run found no '}' for
+
+        private String css;   // of the run in progress
+        private int shift;    // added to the offsets of its nodes
+        private int root;     // parent of the nodes at its top level
+        private int[] open = new int[16]; // blocks not yet closed, innermost last
+        private int depth;
+
+        Parser(int capacity) {
+            capacity = Math.max(16, capacity);
+            kinds = new byte[capacity];
+            starts = new int[capacity];
+            mids = new int[capacity];
+            ends = new int[capacity];
+            parents = new int[capacity];
+            subtreeEnds = new int[capacity];
+        }
+
+        Stylesheet finish(String source) {
+            return new Stylesheet(source, size, kinds, starts, mids, ends, parents, subtreeEnds);
+        }
+
+        /**
+         * Adds the nodes of css as if it stood at offset shift of the source, its top-level nodes
+         * as children of node parent (or -1). The budget, if any, is checked as for a pass.
+         */
+        void run(String css, int shift, int parent, CssMinifier.Budget budget) {
+            this.css = css;
+            this.shift = shift;
+            this.root = parent;
+            int len = css.length();
+            int segment = -1; // start of the segment being read, or -1 between segments
+            int colon = -1;
+            int parens = 0;   // open parentheses inside the segment
+            int checkAt = budget == null ? Integer.MAX_VALUE : 0;
+            for (int i = 0; i < len; i++) {
+                char c = css.charAt(i);
+                if (c < PLAIN.length ? PLAIN[c] : !Character.isWhitespace(c)) {
+                    // Most of a stylesheet: a character that can only start or continue a segment
+                    if (segment < 0) {
+                        segment = i;
+                        colon = -1;
+                        parens = 0;
+                    }
+                    continue;
+                }
+                if (i >= checkAt) checkAt = budget.check(i);
+                if (c == '"' || c == '\'') {
+                    if (segment < 0) {
+                        segment = i;
+                        colon = -1;
+                        parens = 0;
+                    }
+                    i = skipString(css, i);
+                    continue;
+                }
+                if (c == '/' && i + 1 < len && css.charAt(i + 1) == '*') {
+                    int close = css.indexOf("*/", i + 2);
+                    i = close < 0 ? len : close + 1;
+                    continue;
+                }
+                if (Character.isWhitespace(c)) continue;
+
+                if (c == '(') parens++;
+                else if (c == ')') parens--;
+
+                if (c == '{') {
+                    int start = segment < 0 ? i : segment;
+                    open(add(css.charAt(start) == '@' ? AT_RULE : RULE, start + shift, i + shift, i + 1 + shift));
+                    segment = -1;
+                    parens = 0;
+                } else if (c == ';' && parens <= 0) {
+                    if (segment >= 0) statement(segment, i, colon);
+                    segment = -1;
+                    parens = 0;
+                } else if (c == '}') {
+                    if (segment >= 0) statement(segment, i, colon);
+                    segment = -1;
+                    parens = 0;
+                    close(i + 1);
+                } else if (segment < 0) {
+                    segment = i;
+                    colon = c == ':' ? i : -1;
+                    parens = c == '(' ? 1 : 0;
+                } else if (c == ':' && colon < 0) {
+                    colon = i;
+                }
+            }
+            if (segment >= 0) statement(segment, len, colon);
+            unclosed = depth;
+            while (depth > 0) close(len);
+            this.css = null;
+        }
+
+        private void statement(int start, int end, int colon) {
+            int node = css.charAt(start) == '@'
+                ? add(AT_RULE, start + shift, end + shift, end + shift)
+                : add(DECLARATION, start + shift, colon < 0 ? -1 : colon + shift, end + shift);
+            subtreeEnds[node] = size; // after add, which may have grown the arrays
+        }
+
+        int add(byte kind, int start, int mid, int end) {
+            if (size == kinds.length) {
+                int capacity = size * 2;
+                kinds = Arrays.copyOf(kinds, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                mids = Arrays.copyOf(mids, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                parents = Arrays.copyOf(parents, capacity);
+                subtreeEnds = Arrays.copyOf(subtreeEnds, capacity);
+            }
+            kinds[size] = kind;
+            starts[size] = start;
+            mids[size] = mid;
+            ends[size] = end;
+            parents[size] = depth == 0 ? root : open[depth - 1];
+            return size++;
+        }
+
+        /** Sets each row's end of subtree from the parents, for rows not all added by one run. */
+        void subtrees() {
+            for (int n = 0; n < size; n++) subtreeEnds[n] = n + 1;
+            for (int n = size - 1; n >= 0; n--) {
+                int parent = parents[n];
+                if (parent >= 0 && subtreeEnds[n] > subtreeEnds[parent]) subtreeEnds[parent] = subtreeEnds[n];
+            }
+        }
+
+        private void open(int node) {
+            if (depth == open.length) open = Arrays.copyOf(open, depth * 2);
+            open[depth++] = node;
+        }
+
+        /** Closes the innermost block at a '}' (or the end of the source); a stray '}' closes none. */
+        private void close(int end) {
+            if (depth == 0) return;
+            int node = open[--depth];
+            ends[node] = end + shift;
+            subtreeEnds[node] = size;
+        }
+
+        /** Index of the quote closing the string opened at i, or the length of the source. */
+        static int skipString(String css, int i) {
+            char quote = css.charAt(i);
+            int len = css.length();
+            for (int j = i + 1; j < len; j++) {
+                char c = css.charAt(j);
+                if (c == '\\') {
+                    j++;
+                } else if (c == quote) {
+                    return j;
+                }
+            }
+            return len;
+        }
+    }
+}
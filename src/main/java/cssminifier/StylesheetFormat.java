@@ -0,0 +1,203 @@
+package cssminifier;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32C;
+
+/**
+ * The binary form of a {@link Stylesheet}, laid out so that reading it is a handful of bulk copies
+ * rather than a parse:
+ * <pre>
+ *  0  magic "CSST"
+ *  4  format version
+ *  8  flags: {@link #MINIFIED} in a cache of the source minified, other bits 0
+ * 12  node count n
+ * 16  string pool length in bytes
+ * 20  CRC32C of every other byte of the file
+ * 24  size of the source file, or 0 when not written for a file
+ * 32  CRC32C of the source file's bytes, or 0 when not written for a file
+ * 36  reserved, 0
+ * 40  node table: n kind bytes padded to a multiple of 4, then n ints each of start, mid,
+ *     end, parent and end of subtree, little-endian
+ *  .  string pool: the source in UTF-8, which the node offsets index as chars
+ * </pre>
+ * Columns of fixed-width ints cost some size against varint deltas (about 21 bytes a node,
+ * roughly the size of the source again) but read straight into the arrays the stylesheet keeps.
+ * Any layout change bumps {@link #VERSION}; data of another version reads as null, and
+ * {@link #load} then parses the source again, so a cache written by an older release is simply
+ * replaced.
+ *
+ * <p>A cache is for the content of its source, not for a timestamp: {@link #load} reads the
+ * source and checks its size and CRC32C, which costs a small fraction of a parse, and so also
+ * catches an edit that keeps the size within the timestamp granularity of the file system. A cache
+ * holds either the source's parse or, for {@link Stylesheet#loadMinified}, the nodes
+ * {@link CssMinifier#minify(Stylesheet)} returned for it, and is read only for the form asked for.
+ */
+final class StylesheetFormat {
+
+    static final int MAGIC = 'C' | 'S' << 8 | 'S' << 16 | 'T' << 24;
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 40;
+    static final int MINIFIED = 1;
+
+    private static final int CRC_OFFSET = 20;
+    private static final int COLUMNS = 5;
+
+    private StylesheetFormat() {}
+
+    static void write(Stylesheet sheet, OutputStream out, int flags, long sourceSize, int sourceHash)
+            throws IOException {
+        ByteBuffer data = encode(sheet, flags, sourceSize, sourceHash);
+        out.write(data.array(), 0, data.limit());
+    }
+
+    static ByteBuffer encode(Stylesheet sheet, int flags, long sourceSize, int sourceHash) {
+        int n = sheet.size;
+        byte[] pool = sheet.source.getBytes(StandardCharsets.UTF_8);
+        int total = HEADER_BYTES + align(n) + COLUMNS * 4 * n + pool.length;
+        ByteBuffer data = ByteBuffer.allocate(total).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(MAGIC).putInt(VERSION).putInt(flags).putInt(n).putInt(pool.length)
+            .putInt(0) // CRC, below
+            .putLong(sourceSize).putInt(sourceHash).putInt(0);
+        data.put(sheet.kinds, 0, n).position(HEADER_BYTES + align(n));
+        for (int[] column : columns(sheet)) {
+            data.asIntBuffer().put(column, 0, n);
+            data.position(data.position() + 4 * n);
+        }
+        data.put(pool).flip();
+        data.putInt(CRC_OFFSET, crc(data));
+        return data;
+    }
+
+    /**
+     * The stylesheet in data, or null unless it is of this version, intact, for the given source,
+     * and a tree the accessors can walk. The CRC catches damage, not a buffer built wrong.
+     */
+    static Stylesheet read(ByteBuffer data, long sourceSize, int sourceHash) {
+        ByteBuffer b = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (b.remaining() < HEADER_BYTES || b.getInt(0) != MAGIC || b.getInt(4) != VERSION) return null;
+        int n = b.getInt(12);
+        int poolBytes = b.getInt(16);
+        if (n < 0 || poolBytes < 0
+                || (long) HEADER_BYTES + align(n) + (long) COLUMNS * 4 * n + poolBytes != b.remaining()) {
+            return null;
+        }
+        if (b.getLong(24) != sourceSize || b.getInt(32) != sourceHash) return null;
+        if (b.getInt(CRC_OFFSET) != crc(b)) return null;
+
+        byte[] kinds = new byte[n];
+        b.get(HEADER_BYTES, kinds);
+        int[][] columns = new int[COLUMNS][n];
+        int position = HEADER_BYTES + align(n);
+        for (int[] column : columns) {
+            b.position(position);
+            b.asIntBuffer().get(column);
+            position += 4 * n;
+        }
+        byte[] pool = new byte[poolBytes];
+        b.get(position, pool);
+        String source = new String(pool, StandardCharsets.UTF_8);
+        if (!isTree(n, kinds, columns, source.length())) return null;
+        return new Stylesheet(source, n, kinds, columns[0], columns[1], columns[2], columns[3], columns[4]);
+    }
+
+    /**
+     * Whether the columns hold what a parse would give: offsets within the source, parents before
+     * their children, and each subtree ending after its node and within its parent's. Without
+     * that a child walk may never end and the accessors throw.
+     */
+    private static boolean isTree(int n, byte[] kinds, int[][] columns, int length) {
+        int[] starts = columns[0], mids = columns[1], ends = columns[2], parents = columns[3], subtreeEnds = columns[4];
+        for (int i = 0; i < n; i++) {
+            if (kinds[i] != Stylesheet.RULE && kinds[i] != Stylesheet.AT_RULE && kinds[i] != Stylesheet.DECLARATION) {
+                return false;
+            }
+            if (starts[i] < 0 || starts[i] > ends[i] || ends[i] > length) return false;
+            boolean noMid = mids[i] == -1 && kinds[i] == Stylesheet.DECLARATION;
+            if (!noMid && (mids[i] < starts[i] || mids[i] > ends[i])) return false;
+            if (subtreeEnds[i] <= i || subtreeEnds[i] > n) return false;
+            int parent = parents[i];
+            if (parent < -1 || parent >= i) return false;
+            if (parent >= 0 && (kinds[parent] == Stylesheet.DECLARATION || subtreeEnds[i] > subtreeEnds[parent]
+                    || i >= subtreeEnds[parent])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The cache is read into the heap rather than mapped: a mapping stays open until it is
+     * garbage collected, and on Windows an open mapping keeps {@link #save} from replacing the
+     * file. A cache that cannot be written costs the next call a parse, nothing more.
+     */
+    static Stylesheet load(Path cache, Path source, boolean minified) throws IOException {
+        byte[] bytes = Files.readAllBytes(source);
+        int hash = crc32c(bytes);
+        int flags = minified ? MINIFIED : 0;
+        try {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(cache)).order(ByteOrder.LITTLE_ENDIAN);
+            Stylesheet sheet = data.limit() >= HEADER_BYTES && data.getInt(8) == flags ? read(data, bytes.length, hash) : null;
+            if (sheet != null) return sheet;
+        } catch (IOException e) {
+            // No cache yet, or not one we can read: parse and write it below
+        }
+        // Decoded as Files.readString would, failing on malformed input, but from the bytes hashed
+        String css = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+        Stylesheet sheet = Stylesheet.parse(css);
+        if (minified) sheet = CssMinifier.minify(sheet);
+        try {
+            save(sheet, cache, flags, bytes.length, hash);
+        } catch (IOException e) {
+            // Read-only or missing cache directory: the parse is still good
+        }
+        return sheet;
+    }
+
+    static int crc32c(byte[] bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    /** Writes a sibling temporary file and moves it over the cache, so readers never see half of one. */
+    private static void save(Stylesheet sheet, Path cache, int flags, long sourceSize, int sourceHash)
+            throws IOException {
+        Path temp = DirectoryMinifier.createTempSibling(cache);
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                write(sheet, out, flags, sourceSize, sourceHash);
+            }
+            try {
+                Files.move(temp, cache, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, cache, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static int[][] columns(Stylesheet sheet) {
+        return new int[][] {sheet.starts, sheet.mids, sheet.ends, sheet.parents, sheet.subtreeEnds};
+    }
+
+    private static int align(int n) {
+        return (n + 3) & ~3;
+    }
+
+    /** CRC32C of the whole buffer except the CRC field itself. */
+    private static int crc(ByteBuffer b) {
+        CRC32C crc = new CRC32C();
+        crc.update(b.slice(0, CRC_OFFSET));
+        crc.update(b.slice(CRC_OFFSET + 4, b.limit() - CRC_OFFSET - 4));
+        return (int) crc.getValue();
+    }
+}
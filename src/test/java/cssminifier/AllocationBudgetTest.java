@@ -0,0 +1,152 @@
+package cssminifier;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Bytes allocated per input byte, for each pass and for the whole pipeline, measured with the
+ * per-thread allocation counter. A budget failure means a change started copying more than
+ * before, e.g. a substring per declaration.
+ *
+ * <p>Budgets can be overridden with {@code -Dcssminifier.allocBudget.<pass>=<bytes per input byte>}
+ * or scaled with {@code -Dcssminifier.allocBudget.scale=<factor>}.
+ */
+class AllocationBudgetTest {
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    private static String raw;
+    private static String uncommented;
+    private static String collapsed;
+    private static int features;
+    private static String valuesOptimized;
+    private static String quotesOptimized;
+    private static String shorthandCollapsed;
+    private static Stylesheet deduplicated;
+
+    @BeforeAll
+    static void setUp() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                && bean.isThreadAllocatedMemorySupported()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+            threads = bean;
+        }
+
+        raw = stylesheet(200_000);
+        uncommented = CssMinifier.stripComments(raw);
+        collapsed = CssMinifier.collapseWhitespace(uncommented);
+        features = CssMinifier.scanFeatures(collapsed);
+        valuesOptimized = CssMinifier.optimizeValues(collapsed, features);
+        quotesOptimized = CssMinifier.optimizeQuotedTokens(valuesOptimized);
+        shorthandCollapsed = CssMinifier.collapseShorthand(quotesOptimized);
+        // Deduplication parses its input, and merging works from the nodes of the result
+        deduplicated = Stylesheet.parse(CssMinifier.removeDuplicateProperties(shorthandCollapsed));
+    }
+
+    private static String stylesheet(int targetLength) {
+        StringBuilder sb = new StringBuilder(targetLength + 1024);
+        for (int n = 0; sb.length() < targetLength; n++) {
+            sb.append("/* Component ").append(n).append(" */\n");
+            sb.append(".btn-").append(n).append(" {\n")
+              .append("    padding-top: 0.375rem;\n    padding-right: 0.75rem;\n")
+              .append("    padding-bottom: 0.375rem;\n    padding-left: 0.75rem;\n")
+              .append("    font-weight: bold;\n    color: #FFFFFF;\n    margin: 0px auto;\n")
+              .append("    background: url(\"img/btn-").append(n).append(".png\") no-repeat;\n")
+              .append("}\n");
+            sb.append(".btn-").append(n).append(":hover { color: #eeeeee; color: #dddddd; outline: none; }\n");
+            sb.append(".btn-").append(n).append(":hover { opacity: 0.5; }\n");
+            sb.append("[data-icon=\"i").append(n).append("\"]::before { content: \"\\f101 ; {x}\"; }\n");
+            sb.append("@media (min-width: 768px) {\n    .col-").append(n).append(" { width: 50%; width: 100%; }\n}\n");
+        }
+        return sb.toString();
+    }
+
+    /** Lowest allocation of several runs, so one-off JIT or class-init noise doesn't count. */
+    private static double bytesPerInputByte(Supplier<?> pass, String input) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            Object result = pass.get();
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+            assertNotNull(result);
+            best = Math.min(best, allocated);
+        }
+        return (double) best / input.length();
+    }
+
+    private static void assertWithinBudget(String pass, double defaultBudget, Supplier<?> run, String input) {
+        assumeTrue(threads != null, "Thread allocation counter not available on this JVM");
+        double scale = Double.parseDouble(System.getProperty("cssminifier.allocBudget.scale", "1"));
+        double budget = Double.parseDouble(System.getProperty("cssminifier.allocBudget." + pass,
+            Double.toString(defaultBudget))) * scale;
+        double actual = bytesPerInputByte(run, input);
+        assertTrue(actual <= budget, String.format(
+            "%s allocated %.2f bytes per input byte, budget is %.2f", pass, actual, budget));
+    }
+
+    // Budgets are roughly 1.5x the measured allocation. A pass that copies its input once costs
+    // about 2 bytes per input byte (builder plus final String).
+
+    @Test
+    void isAlreadyMinified() {
+        assertWithinBudget("isAlreadyMinified", 0.01, () -> CssMinifier.isAlreadyMinified(raw), raw);
+    }
+
+    @Test
+    void stripComments() {
+        assertWithinBudget("stripComments", 3.0, () -> CssMinifier.stripComments(raw), raw);
+    }
+
+    @Test
+    void collapseWhitespace() {
+        assertWithinBudget("collapseWhitespace", 3.0, () -> CssMinifier.collapseWhitespace(uncommented), uncommented);
+    }
+
+    @Test
+    void scanFeatures() {
+        assertWithinBudget("scanFeatures", 0.01, () -> CssMinifier.scanFeatures(collapsed), collapsed);
+    }
+
+    @Test
+    void optimizeValues() {
+        assertWithinBudget("optimizeValues", 18.0, () -> CssMinifier.optimizeValues(collapsed, features), collapsed);
+    }
+
+    @Test
+    void optimizeQuotedTokens() {
+        assertWithinBudget("optimizeQuotedTokens", 3.0, () -> CssMinifier.optimizeQuotedTokens(valuesOptimized), valuesOptimized);
+    }
+
+    @Test
+    void collapseShorthand() {
+        assertWithinBudget("collapseShorthand", 12.0, () -> CssMinifier.collapseShorthand(quotesOptimized), quotesOptimized);
+    }
+
+    @Test
+    void removeDuplicateProperties() {
+        assertWithinBudget("removeDuplicateProperties", 24.0,
+            () -> CssMinifier.removeDuplicateProperties(shorthandCollapsed), shorthandCollapsed);
+    }
+
+    @Test
+    void mergeAdjacentRules() {
+        assertWithinBudget("mergeAdjacentRules", 3.0, () -> CssMinifier.mergeAdjacentRules(deduplicated), deduplicated.source());
+    }
+
+    @Test
+    void minify() {
+        assertWithinBudget("minify", 45.0, () -> CssMinifier.minify(raw), raw);
+    }
+
+    @Test
+    void minifyOfMinifiedInput() {
+        String minified = CssMinifier.minify(raw);
+        assertWithinBudget("minifyOfMinified", 10.0, () -> CssMinifier.minify(minified), minified);
+    }
+}
@@ -0,0 +1,165 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ArchiveMinifierTest {
+
+    @TempDir
+    Path dir;
+
+    private static final long TIME = 1_600_000_000_000L;
+
+    private final PrintStream err = new PrintStream(OutputStream.nullOutputStream());
+
+    private Path archive(String name, Map<String, String> entries) throws IOException {
+        Path file = dir.resolve(name);
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                ZipEntry e = new ZipEntry(entry.getKey());
+                e.setTime(TIME);
+                zip.putNextEntry(e);
+                zip.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    private static Map<String, String> entries(Path file) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(file))) {
+            for (ZipEntry e; (e = zip.getNextEntry()) != null; ) {
+                entries.put(e.getName(), new String(zip.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        }
+        return entries;
+    }
+
+    private Path webapp() throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n\r\n");
+        for (int i = 0; i < 40; i++) {
+            entries.put("static/css/page" + i + ".css", ".page" + i + " { color: #FFFFFF; margin: 0px; }");
+            entries.put("static/js/page" + i + ".js", "console.log(" + i + ");");
+        }
+        entries.put("static/css/already.min.css", "a{color:red}");
+        entries.put("index.html", "<html></html>");
+        return archive("app.war", entries);
+    }
+
+    @Test
+    void minifiesCssEntriesOnly() throws IOException {
+        Path output = dir.resolve("out/app.war");
+        BatchMinifier.Summary summary = ArchiveMinifier.minify(webapp(), output, 4, err);
+        assertEquals(41, summary.files());
+        assertEquals(40, summary.written());
+        assertEquals(1, summary.unchanged());
+        assertEquals(0, summary.failed());
+
+        Map<String, String> before = entries(dir.resolve("app.war"));
+        Map<String, String> after = entries(output);
+        assertEquals(new ArrayList<>(before.keySet()), new ArrayList<>(after.keySet()), "entry order is kept");
+        assertEquals(".page7{color:#fff;margin:0}", after.get("static/css/page7.css"));
+        assertEquals(before.get("static/js/page7.js"), after.get("static/js/page7.js"));
+        assertEquals(before.get("META-INF/MANIFEST.MF"), after.get("META-INF/MANIFEST.MF"));
+    }
+
+    @Test
+    void outputDoesNotDependOnThreads() throws IOException {
+        Path input = webapp();
+        Path one = dir.resolve("one.war");
+        Path many = dir.resolve("many.war");
+        ArchiveMinifier.minify(input, one, 1, err);
+        ArchiveMinifier.minify(input, many, 8, err);
+        assertArrayEquals(Files.readAllBytes(one), Files.readAllBytes(many));
+    }
+
+    @Test
+    void keepsEntryTimes() throws IOException {
+        Path output = dir.resolve("out.zip");
+        ArchiveMinifier.minify(archive("in.zip", Map.of("a.css", "a { color: red; }")), output, 1, err);
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(output))) {
+            ZipEntry e = zip.getNextEntry();
+            assertEquals(FileTime.fromMillis(TIME).toMillis() / 2000, e.getLastModifiedTime().toMillis() / 2000);
+        }
+    }
+
+    @Test
+    void archiveWithoutChangesIsCopied() throws IOException {
+        Path input = archive("in.jar", Map.of("a.css", "a{color:red}", "b.txt", "x"));
+        Path output = dir.resolve("out.jar");
+        ArchiveMinifier.minify(input, output, 2, err);
+        assertArrayEquals(Files.readAllBytes(input), Files.readAllBytes(output));
+    }
+
+    @Test
+    void reportsInvalidEntryAndKeepsIt() throws IOException {
+        Path input = dir.resolve("in.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(input))) {
+            zip.putNextEntry(new ZipEntry("bad.css"));
+            zip.write(new byte[] {(byte) 0xff});
+            zip.putNextEntry(new ZipEntry("good.css"));
+            zip.write("a { color: red; }".getBytes(StandardCharsets.UTF_8));
+        }
+        Path output = dir.resolve("out.zip");
+        BatchMinifier.Summary summary = ArchiveMinifier.minify(input, output, 2, err);
+        assertEquals(1, summary.failed());
+        assertEquals("a{color:red}", entries(output).get("good.css"));
+    }
+
+    @Test
+    void commandLine() throws IOException {
+        webapp();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = CssMinifier.run(new String[] {"--threads", "2", "app.war", "app-min.war"}, dir,
+            new ByteArrayInputStream(new byte[0]), new PrintStream(out, true, StandardCharsets.UTF_8), err);
+        assertEquals(0, status);
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("Minified 41 files (40 written, 1 unchanged, 0 failed)"));
+        assertEquals("a{color:red}", entries(dir.resolve("app-min.war")).get("static/css/already.min.css"));
+        try (var files = Files.list(dir)) {
+            assertEquals(List.of("app-min.war", "app.war"), files.map(p -> p.getFileName().toString()).sorted().toList());
+        }
+    }
+
+    @Test
+    void outputGetsTheUmaskPermissions() throws IOException {
+        org.junit.jupiter.api.Assumptions.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path input = webapp();
+        Files.setPosixFilePermissions(input, java.nio.file.attribute.PosixFilePermissions.fromString("rw-------"));
+        Path output = dir.resolve("out.war");
+        ArchiveMinifier.minify(input, output, 2, err);
+        Path fresh = Files.createFile(dir.resolve("fresh"));
+        assertEquals(Files.getPosixFilePermissions(fresh), Files.getPosixFilePermissions(output));
+    }
+
+    @Test
+    void commandLineRejectsStats() throws IOException {
+        webapp();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        int status = CssMinifier.run(new String[] {"--stats", "app.war", "app-min.war"}, dir,
+            new ByteArrayInputStream(new byte[0]), err, new PrintStream(errors, true, StandardCharsets.UTF_8));
+        assertEquals(1, status);
+        assertTrue(errors.toString(StandardCharsets.UTF_8).contains("--stats reports on a single file"));
+        assertFalse(Files.exists(dir.resolve("app-min.war")));
+    }
+}
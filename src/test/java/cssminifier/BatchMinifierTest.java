@@ -0,0 +1,259 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchMinifierTest {
+
+    @TempDir
+    Path dir;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    private void write(String relative, String content) throws IOException {
+        Path file = dir.resolve(relative);
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content);
+    }
+
+    private int run(String... args) throws IOException {
+        out.reset();
+        err.reset();
+        return CssMinifier.run(args, dir, new ByteArrayInputStream(new byte[0]),
+            new PrintStream(out, true, StandardCharsets.UTF_8), new PrintStream(err, true, StandardCharsets.UTF_8));
+    }
+
+    private String read(String relative) throws IOException {
+        return Files.readString(dir.resolve(relative));
+    }
+
+    @Test
+    void mirrorsDirectory() throws IOException {
+        write("src/a.css", "a { color: #FFFFFF; }");
+        write("src/theme/b.css", "b { margin: 0px; }");
+        write("src/theme/notes.txt", "x");
+        assertEquals(0, run("src", "--out", "dist"));
+        assertEquals("a{color:#fff}", read("dist/a.css"));
+        assertEquals("b{margin:0}", read("dist/theme/b.css"));
+        assertFalse(Files.exists(dir.resolve("dist/theme/notes.txt")));
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("Minified 2 files (2 written, 0 unchanged, 0 failed)"));
+    }
+
+    @Test
+    void expandsGlobRelativeToLiteralPrefix() throws IOException {
+        write("src/a.css", "a{}");
+        write("src/deep/b.css", "b{}");
+        write("src/deep/b.min.css", "b{}");
+        write("other/c.css", "c{}");
+        assertEquals(0, run("src/**/*.css", "--out", "dist"));
+        assertTrue(Files.exists(dir.resolve("dist/a.css")), "**/ also matches no directory");
+        assertTrue(Files.exists(dir.resolve("dist/deep/b.css")));
+        assertFalse(Files.exists(dir.resolve("dist/c.css")));
+        assertFalse(Files.exists(dir.resolve("dist/other")));
+    }
+
+    @Test
+    void globWithoutDirectory() throws IOException {
+        write("a.css", "a{}");
+        write("sub/b.css", "b{}");
+        assertEquals(0, run("*.css", "--out", "dist"));
+        assertTrue(Files.exists(dir.resolve("dist/a.css")));
+        assertFalse(Files.exists(dir.resolve("dist/sub/b.css")));
+    }
+
+    @Test
+    void keepsUnchangedOutputs() throws IOException {
+        write("src/a.css", "a { color: red; }");
+        write("src/b.css", "b { color: red; }");
+        assertEquals(0, run("src", "--out", "dist"));
+        FileTime old = FileTime.fromMillis(1_000_000);
+        Files.setLastModifiedTime(dir.resolve("dist/a.css"), old);
+        write("src/b.css", "b { color: blue; }");
+
+        assertEquals(0, run("src", "--out", "dist"));
+        assertEquals(old, Files.getLastModifiedTime(dir.resolve("dist/a.css")));
+        assertEquals("b{color:blue}", read("dist/b.css"));
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("(1 written, 1 unchanged, 0 failed)"));
+    }
+
+    @Test
+    void skipsOutputTreeInsideInput() throws IOException {
+        write("a.css", "a{}");
+        assertEquals(0, run(".", "--out", "dist"));
+        assertEquals(0, run(".", "--out", "dist"));
+        assertFalse(Files.exists(dir.resolve("dist/dist")));
+    }
+
+    @Test
+    void reportsFailuresAndContinues() throws IOException {
+        write("src/a.css", "a{}");
+        Files.write(dir.resolve("src/bad.css"), new byte[] {(byte) 0xff});
+        assertEquals(1, run("src", "--out", "dist"));
+        assertTrue(Files.exists(dir.resolve("dist/a.css")));
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("bad.css"));
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("1 failed"));
+    }
+
+    @Test
+    void timeoutIsPerFile() throws IOException {
+        write("src/a.css", "a { color: red; }");
+        write("src/b.css", "b { color: red; }");
+        assertEquals(1, run("src", "--out", "dist", "--timeout", "0"));
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("MinifyTimeoutException"));
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("(0 written, 0 unchanged, 2 failed)"));
+
+        assertEquals(0, run("src", "--out", "dist", "--timeout", "60000"));
+        assertEquals("b{color:red}", read("dist/b.css"));
+    }
+
+    @Test
+    void malformedNumbersPrintUsage() throws IOException {
+        write("src/a.css", "a { color: red; }");
+        for (String[] args : new String[][] {{"--timeout", "abc"}, {"--timeout", "-5"}, {"--threads", "abc"},
+                {"--threads", "0"}}) {
+            assertEquals(1, run(args[0], args[1], "src", "--out", "dist"), String.join(" ", args));
+            assertTrue(err.toString(StandardCharsets.UTF_8).startsWith("Usage:"), String.join(" ", args));
+        }
+        assertFalse(Files.exists(dir.resolve("dist")));
+    }
+
+    private String gunzip(String relative) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(Files.newInputStream(dir.resolve(relative)))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    void gzipWritesCompressedSiblings() throws IOException {
+        write("src/a.css", "a { color: #FFFFFF; }");
+        write("src/theme/b.css", "b { margin: 0px; }");
+        assertEquals(0, run("--gzip", "src", "--out", "dist"));
+        assertEquals(read("dist/a.css"), gunzip("dist/a.css.gz"));
+        assertEquals("b{margin:0}", gunzip("dist/theme/b.css.gz"));
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("gzipped)"));
+    }
+
+    @Test
+    void gzipOutputIsReproducible() throws IOException {
+        write("src/a.css", "a { color: red; }");
+        assertEquals(0, run("--gzip", "src", "--out", "dist"));
+        byte[] first = Files.readAllBytes(dir.resolve("dist/a.css.gz"));
+        FileTime old = FileTime.fromMillis(1_000_000);
+        Files.setLastModifiedTime(dir.resolve("dist/a.css.gz"), old);
+
+        assertEquals(0, run("--gzip", "src", "--out", "dist"));
+        assertArrayEquals(first, Files.readAllBytes(dir.resolve("dist/a.css.gz")));
+        assertEquals(old, Files.getLastModifiedTime(dir.resolve("dist/a.css.gz")));
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("(0 written, 1 unchanged, 0 failed)"));
+    }
+
+    @Test
+    void filesLargerThanPooledBuffers() throws IOException {
+        StringBuilder css = new StringBuilder();
+        for (int i = 0; css.length() < 2 * BatchPipeline.BUFFER_BYTES; i++) {
+            css.append(".rule-").append(i).append(" { content: \"").append(Integer.toHexString(i * 7919)).append("\"; }\n");
+        }
+        write("src/big.css", css.toString());
+        assertEquals(0, run("--gzip", "src", "--out", "dist"));
+        assertEquals(CssMinifier.minify(css.toString()), read("dist/big.css"));
+        assertEquals(read("dist/big.css"), gunzip("dist/big.css.gz"));
+    }
+
+    @Test
+    void manyFilesThroughFewWorkers() throws IOException {
+        for (int i = 0; i < 200; i++) write("src/d" + (i % 7) + "/f" + i + ".css", ".f" + i + " { margin: 0px " + i + "px; }");
+        assertEquals(0, run("--threads", "2", "--gzip", "src", "--out", "dist"));
+        for (int i = 0; i < 200; i++) {
+            String relative = "dist/d" + (i % 7) + "/f" + i + ".css";
+            assertEquals(CssMinifier.minify(".f" + i + " { margin: 0px " + i + "px; }"), read(relative));
+            assertEquals(read(relative), gunzip(relative + ".gz"));
+        }
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("Minified 200 files (200 written, 0 unchanged, 0 failed)"));
+    }
+
+    @Test
+    void gzipNeedsBatchMode() throws IOException {
+        write("a.css", "a{}");
+        assertEquals(1, run("--gzip", "a.css", "b.css"));
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("batch mode"));
+        assertFalse(Files.exists(dir.resolve("b.css")));
+    }
+
+    @Test
+    void outputsGetTheUmaskPermissions() throws IOException {
+        org.junit.jupiter.api.Assumptions.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        write("src/a.css", "a { color: red; }");
+        assertEquals(0, run("--gzip", "src", "--out", "dist"));
+        Path fresh = Files.createFile(dir.resolve("fresh"));
+        assertEquals(Files.getPosixFilePermissions(fresh), Files.getPosixFilePermissions(dir.resolve("dist/a.css")));
+        assertEquals(Files.getPosixFilePermissions(fresh), Files.getPosixFilePermissions(dir.resolve("dist/a.css.gz")));
+    }
+
+    @Test
+    void statsNeedsASingleFile() throws IOException {
+        write("src/a.css", "a{}");
+        assertEquals(1, run("--stats", "src", "--out", "dist"));
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("--stats reports on a single file"));
+        assertFalse(Files.exists(dir.resolve("dist")));
+    }
+
+    @Test
+    void directoryNeedsOutputDirectory() throws IOException {
+        write("src/a.css", "a{}");
+        assertEquals(1, run("src"));
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("--out"));
+    }
+
+    @Test
+    void singleFileModeIsUnchanged() throws IOException {
+        write("a.css", "a { color: red; }");
+        assertEquals(0, run("a.css", "b.css"));
+        assertEquals("a{color:red}", read("b.css"));
+    }
+
+    @Test
+    void literalPrefix() {
+        assertEquals("src/theme", BatchMinifier.literalPrefix("src/theme/**/*.css"));
+        assertEquals(".", BatchMinifier.literalPrefix("*.css"));
+        assertEquals("/", BatchMinifier.literalPrefix("/*.css"));
+        assertEquals("src", BatchMinifier.literalPrefix("src/a?.css"));
+    }
+
+    @Test
+    void deduplicatesFilesNamedTwice() throws IOException {
+        write("src/a.css", "a{}");
+        List<BatchMinifier.Job> jobs = BatchMinifier.expand(List.of("src", "src/*.css", "src/a.css"), Path.of("dist"), dir);
+        assertEquals(1, jobs.size());
+    }
+
+    @Test
+    void failsWhenTwoSourcesShareAnOutput() throws IOException {
+        write("a/x.css", "a{}");
+        write("b/x.css", "b{}");
+        write("b/y.css", "c{}");
+        for (String[] args : new String[][] {{"a/x.css", "b/x.css", "--out", "dist"}, {"a/*.css", "b/*.css", "--out", "dist"},
+                {"a", "b", "--out", "dist"}}) {
+            assertEquals(1, run(args), String.join(" ", args));
+            String message = err.toString(StandardCharsets.UTF_8);
+            assertTrue(message.contains("a" + java.io.File.separator + "x.css") && message.contains("b" + java.io.File.separator + "x.css")
+                && message.contains("would both be written to"), message);
+            assertFalse(Files.exists(dir.resolve("dist")));
+        }
+        assertEquals(0, run("a/x.css", "b/y.css", "--out", "dist"));
+        assertEquals("a{}", read("dist/x.css"));
+    }
+}
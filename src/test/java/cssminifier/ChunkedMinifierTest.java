@@ -0,0 +1,237 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedMinifierTest {
+
+    /** Rules of every kind that a slice boundary could fall next to or inside. */
+    private static String stylesheet(int rules) {
+        StringBuilder sb = new StringBuilder("@charset \"UTF-8\";\n/*! license */\n");
+        sb.append("@import url(data:text/css;base64,YXtjb2xvcjpyZWR9);\n");
+        // Whole-stylesheet merging takes everything since the last '}' as the selector, so the
+        // first rule after a statement never merges there; slicing at the ';' lets it merge
+        sb.append("body { color: black; }\n");
+        for (int i = 0; i < rules; i++) {
+            sb.append("/* rule ").append(i).append(" { ; } */\n");
+            switch (i % 5) {
+                case 0 -> sb.append(".a").append(i).append(" { color: #FFFFFF; margin: 0px 0px; }\n")
+                    .append(".a").append(i).append(" { padding: 0.50em; }\n");
+                case 1 -> sb.append(".b").append(i).append("::after { content: \"} ; { \\\" '\"; font-weight: bold; }\n");
+                case 2 -> sb.append("@media (min-width: ").append(i).append("px) {\n  .c").append(i)
+                    .append(" { margin-top: 0px; margin-right: 1px; margin-bottom: 0px; margin-left: 1px; }\n}\n");
+                case 3 -> sb.append("@keyframes k").append(i).append(" { 0% { opacity: 0 } 100% { opacity: 1 } }\n");
+                default -> sb.append("a[href='x").append(i).append("'] { background: url(\"i").append(i)
+                    .append(".png\"); color: red; color: blue; }\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /** The pipeline of a slice, as CssMinifier runs it: the output with its nodes. */
+    private static Stylesheet minify(String chunk) {
+        return CssMinifier.minify(Stylesheet.parse(chunk));
+    }
+
+    @Test
+    void sameOutputAsWholeStylesheet() {
+        String css = stylesheet(500);
+        String whole = CssMinifier.minify(css);
+        for (int chunk : new int[] {1, 7, 100, 1000, 64 * 1024}) {
+            assertEquals(whole, CssMinifier.minify(css, MinifyOptions.defaults().boundedMemory(chunk)), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void sameOutputWhenInputArrivesInPieces() {
+        String css = stylesheet(200);
+        for (int piece : new int[] {1, 2, 13, 4096}) {
+            StringBuilder out = new StringBuilder();
+            ChunkedMinifier chunked = new ChunkedMinifier(50, ChunkedMinifierTest::minify, out::append);
+            for (int i = 0; i < css.length(); i += piece) {
+                chunked.append(css.substring(i, Math.min(css.length(), i + piece)));
+            }
+            chunked.finish();
+            assertEquals(CssMinifier.minify(css), out.toString(), "piece " + piece);
+        }
+    }
+
+    @Test
+    void mergesRulesAcrossSlices() {
+        String css = "a { color: red; }\nb { margin: 0; }\nb { padding: 0; }\nb { border: 0; }";
+        assertEquals("a{color:red}b{margin:0;padding:0;border:0}",
+            CssMinifier.minify(css, MinifyOptions.defaults().boundedMemory(1)));
+    }
+
+    @Test
+    void ruleAfterStatementMergesInSlices() {
+        String css = "@import url(a.css);\na { color: red; }\na { margin: 0; }";
+        assertEquals("@import url(a.css);a{color:red}a{margin:0}", CssMinifier.minify(css));
+        assertEquals("@import url(a.css);a{color:red;margin:0}", CssMinifier.minify(css, MinifyOptions.defaults().boundedMemory(1)));
+    }
+
+    @Test
+    void slicesAreBounded() {
+        String css = stylesheet(2000);
+        List<Integer> lengths = new ArrayList<>();
+        String output = ChunkedMinifier.minify(css, 4096, chunk -> {
+            lengths.add(chunk.length());
+            return minify(chunk);
+        });
+        assertEquals(CssMinifier.minify(css), output);
+        assertTrue(lengths.size() > 10);
+        // A slice is chunkChars plus at most one rule over, plus the rule held back from the last one
+        assertTrue(lengths.stream().allMatch(n -> n < 4096 + 1024), lengths.toString());
+    }
+
+    @Test
+    void ruleLargerThanSliceIsOneSlice() {
+        String big = "@keyframes k{" + "1%{opacity:0}".repeat(1000) + "}";
+        List<String> chunks = new ArrayList<>();
+        ChunkedMinifier.minify("a{color:red}" + big + "b{color:red}", 100, chunk -> {
+            chunks.add(chunk);
+            return minify(chunk);
+        });
+        assertTrue(chunks.stream().anyMatch(c -> c.endsWith(big)));
+    }
+
+    @Test
+    void groupingBlockLargerThanSliceIsSplitBetweenItsRules() {
+        StringBuilder rules = new StringBuilder();
+        for (int i = 0; i < 1000; i++) rules.append("\n  .x").append(i).append(" { color: #FF0000; }");
+        for (String prelude : new String[] {"@media print", "@supports (display: grid)", "@layer base", "@container (min-width: 1px)"}) {
+            String css = "a { color: red; }\n" + prelude + " {" + rules + "\n}\nb { color: red; }";
+            List<Integer> lengths = new ArrayList<>();
+            String output = ChunkedMinifier.minify(css, 1000, chunk -> {
+                lengths.add(chunk.length());
+                return minify(chunk);
+            });
+            assertTrue(lengths.size() > 10, prelude);
+            assertTrue(lengths.stream().allMatch(n -> n < 1000 + 100), prelude + ": " + lengths);
+            // Split blocks repeat the prelude; nothing else differs, and no block is left empty
+            String reopened = "}" + CssMinifier.minify(prelude + "{a{}}").replace("a{}}", "");
+            assertTrue(output.contains(reopened), prelude);
+            assertFalse(output.contains("{}"), prelude);
+            assertEquals(CssMinifier.minify(css).replace(reopened, ""), output.replace(reopened, ""), prelude);
+        }
+
+        // Two of these are not the same as one
+        for (String prelude : new String[] {"@layer", "@keyframes k", "@font-face", "@media-x print"}) {
+            String css = prelude + " {" + rules + "}";
+            List<String> chunks = new ArrayList<>();
+            ChunkedMinifier.minify(css, 1000, chunk -> {
+                chunks.add(chunk);
+                return minify(chunk);
+            });
+            assertEquals(List.of(css), chunks, prelude);
+        }
+    }
+
+    @Test
+    void splitsGroupingBlocksWhenInputArrivesInPieces() {
+        StringBuilder css = new StringBuilder("@media print {");
+        for (int i = 0; i < 300; i++) css.append(" /* c */ .x").append(i).append(" { color: red; }");
+        css.append(" }");
+        String whole = ChunkedMinifier.minify(css.toString(), 200, ChunkedMinifierTest::minify);
+        for (int piece : new int[] {1, 2, 13, 4096}) {
+            StringBuilder out = new StringBuilder();
+            ChunkedMinifier chunked = new ChunkedMinifier(200, ChunkedMinifierTest::minify, out::append);
+            for (int i = 0; i < css.length(); i += piece) {
+                chunked.append(css.substring(i, Math.min(css.length(), i + piece)));
+            }
+            chunked.finish();
+            assertEquals(whole, out.toString(), "piece " + piece);
+        }
+        assertEquals(CssMinifier.minify(css.toString()), whole.replace("}@media print{", ""));
+    }
+
+    /** Minifies a file in a JVM of its own, so that a test can cap its heap. */
+    static final class Child {
+        public static void main(String[] args) throws IOException {
+            Path input = Path.of(args[1]);
+            if (args[0].equals("string")) {
+                // Reads an ASCII file into a string of the file's size, with no second copy
+                String css = Files.readString(input);
+                System.out.println(CssMinifier.minify(css, MinifyOptions.defaults().boundedMemory()).length());
+            } else {
+                try (Reader in = Files.newBufferedReader(input);
+                     Writer out = Files.newBufferedWriter(input.resolveSibling("out.css"))) {
+                    CssMinifier.minify(in, out, MinifyOptions.defaults());
+                }
+            }
+        }
+    }
+
+    private static void minifyWithHeap(String mode, Path input, long heapBytes) throws Exception {
+        Process child = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+            "-Xmx" + heapBytes, "-XX:+UseSerialGC", "-cp", System.getProperty("java.class.path"),
+            Child.class.getName(), mode, input.toString()).redirectErrorStream(true).start();
+        String log = new String(child.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertTrue(child.waitFor(5, TimeUnit.MINUTES));
+        assertEquals(0, child.exitValue(), mode + " with " + (heapBytes >> 20) + "M of heap:\n" + log);
+    }
+
+    @Test
+    void heapStaysWithinTheBound(@TempDir Path dir) throws Exception {
+        // The input, twice the output, a few slices: this CSS minifies to about half its size
+        Path input = dir.resolve("in.css");
+        Files.writeString(input, stylesheet(190_000));
+        long size = Files.size(input);
+        assertTrue(size > 16 << 20);
+        minifyWithHeap("string", input, size * 5 / 2);
+
+        // A stream needs a few slices, whatever the input; here all of it is one @media block
+        Files.writeString(input, "@media screen {\n" + stylesheet(50_000) + "}\n");
+        assertTrue(Files.size(input) > 4 << 20);
+        minifyWithHeap("stream", input, 4 << 20);
+    }
+
+    @Test
+    void lastRuleStart() {
+        assertEquals(0, ChunkedMinifier.lastRuleStart(Stylesheet.parse("a{color:red}")));
+        assertEquals(12, ChunkedMinifier.lastRuleStart(Stylesheet.parse("a{color:red}b{content:\"}\"}")));
+        assertEquals(21, ChunkedMinifier.lastRuleStart(Stylesheet.parse("@import url(a;b.css);/**/b{}")));
+        assertEquals(19, ChunkedMinifier.lastRuleStart(Stylesheet.parse("@media x{a{}b{}c{}}d{}")));
+    }
+
+    @Test
+    void streamsReaderToWriter() throws IOException {
+        String css = stylesheet(300);
+        StringWriter out = new StringWriter();
+        CssMinifier.minify(new StringReader(css), out, MinifyOptions.defaults());
+        assertEquals(CssMinifier.minify(css), out.toString());
+    }
+
+    @Test
+    void commandLineStreamsStdin() throws IOException {
+        String css = stylesheet(50);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int status = CssMinifier.run(new String[] {"--bounded-memory", "-"}, Path.of(""),
+            new ByteArrayInputStream(css.getBytes(StandardCharsets.UTF_8)), new PrintStream(out, true, StandardCharsets.UTF_8),
+            new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8));
+        assertEquals(0, status);
+        assertEquals(CssMinifier.minify(css), out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void rejectsNonPositiveSlices() {
+        assertThrows(IllegalArgumentException.class, () -> MinifyOptions.defaults().boundedMemory(0));
+    }
+}
@@ -2165,6 +2165,12 @@ class CssMinifierTest {
                 CssMinifier.minify("a { color: red; } b { color: blue; }"));
         }
 
+        @Test
+        void deduplicatesWhereStringsHoldBraces() {
+            assertEquals("a{top:0;content:\"}\"}",
+                CssMinifier.minify("a { content: \"{\"; top: 0; content: \"}\" }"));
+        }
+
         @Test
         void handlesEmptyBlockAfterDedup() {
             // This shouldn't happen naturally but let's be safe
@@ -2348,6 +2354,12 @@ class CssMinifierTest {
                 CssMinifier.minify("a { color: red; } b { color: blue; }"));
         }
 
+        @Test
+        void mergesWhereStringsHoldBraces() {
+            assertEquals("a{content:\"}\";top:0}",
+                CssMinifier.minify("a { content: \"}\" } a { top: 0 }"));
+        }
+
         @Test
         void mergesThreeAdjacentRules() {
             assertEquals("a{color:red;font-size:12px;display:block}",
@@ -3169,4 +3181,416 @@ class CssMinifierTest {
             assertFalse(output.contains("\n"), "Minified output should contain no newlines");
         }
     }
+
+    // ==================== FEATURE DETECTION ====================
+
+    @Nested
+    class FeatureDetection {
+
+        @Test
+        void plainRuleHasNoValueTriggers() {
+            assertEquals(0, CssMinifier.scanFeatures("a{color:red}"));
+        }
+
+        @Test
+        void detectsEachTrigger() {
+            assertEquals(CssMinifier.HAS_HASH, CssMinifier.scanFeatures("a{color:#fff}"));
+            assertEquals(CssMinifier.HAS_ZERO, CssMinifier.scanFeatures("a{top:0}"));
+            assertEquals(CssMinifier.HAS_FONT_WEIGHT, CssMinifier.scanFeatures("a{font-weight:bold}"));
+            assertEquals(CssMinifier.HAS_TRANSLATE3D, CssMinifier.scanFeatures("a{transform:translate3d(1px,2px,3px)}"));
+            assertEquals(CssMinifier.HAS_SCALE3D, CssMinifier.scanFeatures("a{transform:scale3d(1,1,1)}"));
+            assertEquals(CssMinifier.HAS_URL, CssMinifier.scanFeatures("a{cursor:url(x.cur)}"));
+            assertEquals(CssMinifier.HAS_ATTRIBUTE, CssMinifier.scanFeatures("[type=text]{color:red}"));
+            assertEquals(CssMinifier.HAS_BOX_SIDES, CssMinifier.scanFeatures("a{margin-top:1px}"));
+            assertEquals(CssMinifier.HAS_OUTLINE, CssMinifier.scanFeatures("a{outline:none}"));
+            assertEquals(CssMinifier.HAS_BACKGROUND, CssMinifier.scanFeatures("a{background:none}"));
+        }
+
+        @Test
+        void detectsVendorPrefixedKeyframes() {
+            int features = CssMinifier.scanFeatures("@-webkit-keyframes a{from{opacity:1}}");
+            assertTrue((features & CssMinifier.HAS_KEYFRAMES) != 0);
+        }
+
+        @Test
+        void doesNotConvertFromOutsideKeyframes() {
+            assertEquals("a{color:red}from{color:blue}",
+                CssMinifier.minify("a { color: red; } from { color: blue; }"));
+        }
+
+        @Test
+        void rewritesStillFireWhenTriggerSplitByWhitespace() {
+            assertEquals("a{font-weight:700}", CssMinifier.minify("a { font-weight : bold; }"));
+        }
+
+        @Test
+        void rewritesStillFireWhenTriggerSplitByComment() {
+            assertEquals("a{font-weight:700}", CssMinifier.minify("a { font-weight/* x */: bold; }"));
+        }
+    }
+
+    // ==================== IDENTITY PRESERVATION ====================
+
+    @Nested
+    class IdentityPreservation {
+
+        @Test
+        void returnsSameInstanceForMinifiedInput() {
+            String css = "a{color:red}.b,.c>d{margin:0 auto;padding:1px 2px}@media (min-width:768px){a{top:0}}";
+            assertSame(css, CssMinifier.minify(css));
+        }
+
+        @Test
+        void returnsSameInstanceWithStringsAndUrls() {
+            String css = "a{content:\"x y\";background:url(\"a b.png\")}[title=\"1a\"]{color:red}";
+            assertSame(css, CssMinifier.minify(css));
+        }
+
+        @Test
+        void eachPassReturnsSameInstanceWhenUnchanged() {
+            String css = "a{color:red;margin:0}b{color:blue}";
+            assertSame(css, CssMinifier.stripComments(css));
+            assertSame(css, CssMinifier.collapseWhitespace(css));
+            assertSame(css, CssMinifier.optimizeValues(css));
+            assertSame(css, CssMinifier.optimizeQuotedTokens(css));
+            assertSame(css, CssMinifier.collapseShorthand(css));
+            assertSame(css, CssMinifier.removeDuplicateProperties(css));
+            assertSame(css, CssMinifier.mergeAdjacentRules(css));
+        }
+
+        @Test
+        void stillOptimizesValuesInMinifiedInput() {
+            assertEquals("a{color:#fff;top:0}", CssMinifier.minify("a{color:#ffffff;top:0px}"));
+        }
+
+        @Test
+        void stillMergesRulesInMinifiedInput() {
+            assertEquals("a{color:red;top:0}", CssMinifier.minify("a{color:red}a{top:0}"));
+        }
+
+        @Test
+        void detectsAlreadyMinifiedInput() {
+            assertTrue(CssMinifier.isAlreadyMinified("a{color:red}"));
+            assertTrue(CssMinifier.isAlreadyMinified("a b{margin:0 auto}"));
+            assertTrue(CssMinifier.isAlreadyMinified("a{content:\"  ;}\"}"));
+            assertTrue(CssMinifier.isAlreadyMinified(""));
+        }
+
+        @Test
+        void rejectsInputThatNeedsLexicalPasses() {
+            assertFalse(CssMinifier.isAlreadyMinified("a{color:red;}"));
+            assertFalse(CssMinifier.isAlreadyMinified("a{color: red}"));
+            assertFalse(CssMinifier.isAlreadyMinified("a{margin:0  auto}"));
+            assertFalse(CssMinifier.isAlreadyMinified("a{color:red}\n"));
+            assertFalse(CssMinifier.isAlreadyMinified("a{/*x*/color:red}"));
+            assertFalse(CssMinifier.isAlreadyMinified("a\tb{color:red}"));
+        }
+    }
+
+    // ==================== SCANNER REWRITE EDGE CASES ====================
+
+    @Nested
+    class ScannerRewriteEdgeCases {
+
+        @Test
+        void shortensMixedCaseHexPairs() {
+            assertEquals("a{color:#abc}", CssMinifier.minify("a { color: #AaBbCc; }"));
+        }
+
+        @Test
+        void keepsSevenDigitHex() {
+            assertEquals("a{color:#aabbccd}", CssMinifier.minify("a { color: #aabbccd; }"));
+        }
+
+        @Test
+        void shortensAdjacentHexColors() {
+            assertEquals("a{border-color:#fff #000}", CssMinifier.minify("a { border-color: #ffffff #000000; }"));
+        }
+
+        @Test
+        void keepsZeroFollowedByLongerIdentifier() {
+            assertEquals("a{width:0pxa}", CssMinifier.minify("a { width: 0pxa; }"));
+        }
+
+        @Test
+        void stripsLongestMatchingUnit() {
+            assertEquals("a{width:0}", CssMinifier.minify("a { width: 0vmin; }"));
+        }
+
+        @Test
+        void stripsLeadingZeroExposedByUnitRemoval() {
+            assertEquals("a{x:.5}", CssMinifier.minify("a { x: 0px.5; }"));
+        }
+
+        @Test
+        void stripsLeadingZeroAfterMinus() {
+            assertEquals("a{margin:-.5em -.25em}", CssMinifier.minify("a { margin: -0.5em -0.25em; }"));
+        }
+
+        @Test
+        void keepsFontWeightFollowedByOtherValue() {
+            assertEquals("a{font-weight:bolder}", CssMinifier.minify("a { font-weight: bolder; }"));
+        }
+
+        @Test
+        void shortensFontWeightAtBlockEnd() {
+            assertEquals("a{font-weight:400}", CssMinifier.minify("a { font-weight: normal }"));
+        }
+
+        @Test
+        void collapsesShorthandWithoutAllocatingForOtherBlocks() {
+            assertEquals("a{color:red}b{margin:0}",
+                CssMinifier.minify("a { color: red; } b { margin-top: 0; margin-right: 0; margin-bottom: 0; margin-left: 0; }"));
+        }
+    }
+
+    // ==================== STATISTICS ====================
+
+    @Nested
+    class Statistics {
+
+        private static final String CSS = "/* header */\n"
+            + "a { color: #FFFFFF; margin: 0px; transform: rotate3d(0, 0, 1, 45deg); }\n"
+            + "a { padding: 0em; }\n"
+            + "b { color: red; color: blue; }\n";
+
+        @Test
+        void outputMatchesMinify() {
+            assertEquals(CssMinifier.minify(CSS), CssMinifier.minifyWithStats(CSS).css());
+        }
+
+        @Test
+        void countsRewrites() {
+            CssMinifier.Stats stats = CssMinifier.minifyWithStats(CSS).stats();
+            assertEquals(1, stats.hexColorsShortened());
+            assertEquals(2, stats.zeroUnitsStripped());
+            assertEquals(1, stats.rotate3dSimplified());
+            assertEquals(1, stats.rulesMerged());
+            assertEquals(1, stats.declarationsDeduplicated());
+        }
+
+        @Test
+        void stageSavingsAddUpToTotal() {
+            CssMinifier.MinifyResult result = CssMinifier.minifyWithStats(CSS);
+            long removed = 0;
+            for (CssMinifier.Stage stage : CssMinifier.Stage.values()) removed += result.stats().bytesRemoved(stage);
+            assertEquals(CSS.length() - result.css().length(), removed);
+            assertEquals(CSS.length(), result.stats().inputLength());
+            assertEquals(result.css().length(), result.stats().outputLength());
+        }
+
+        @Test
+        void honoursOptions() {
+            String css = CSS.repeat(50);
+            MinifyOptions bounded = MinifyOptions.defaults().boundedMemory(256);
+            CssMinifier.MinifyResult result = CssMinifier.minifyWithStats(css, bounded);
+            assertEquals(CssMinifier.minify(css, bounded), result.css());
+            long removed = 0;
+            for (CssMinifier.Stage stage : CssMinifier.Stage.values()) removed += result.stats().bytesRemoved(stage);
+            assertEquals(css.length() - result.css().length(), removed, "summed over the slices");
+            assertEquals(50, result.stats().hexColorsShortened());
+
+            MinifyOptions expired = MinifyOptions.defaults().withTimeout(java.time.Duration.ZERO);
+            assertThrows(MinifyTimeoutException.class, () -> CssMinifier.minifyWithStats(css, expired));
+        }
+
+        @Test
+        void reportsSkippedStages() {
+            CssMinifier.Stats stats = CssMinifier.minifyWithStats("a{color:red}").stats();
+            assertFalse(stats.ran(CssMinifier.Stage.STRIP_COMMENTS));
+            assertFalse(stats.ran(CssMinifier.Stage.COLLAPSE_SHORTHAND));
+            assertTrue(stats.ran(CssMinifier.Stage.MERGE_ADJACENT_RULES));
+            assertEquals(0, stats.bytesRemoved(CssMinifier.Stage.STRIP_COMMENTS));
+            assertTrue(stats.toString().contains("skipped"));
+        }
+    }
+
+    // ==================== DEADLINES AND CANCELLATION ====================
+
+    @Nested
+    class DeadlinesAndCancellation {
+
+        private static final String CSS = "/* header */\n"
+            + "a { color: #FFFFFF; margin: 0px; }\n"
+            + "a { padding: 0em; }\n"
+            + "b { color: red; color: blue; }\n";
+
+        private static String large() {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; sb.length() < 2_000_000; i++) {
+                sb.append("/* rule ").append(i).append(" */\n.r").append(i)
+                    .append(" { color: #FFFFFF; margin-top: 0px; margin-right: 1px; margin-bottom: 0px; margin-left: 1px;")
+                    .append(" background: url(\"a.png\"); color: red; }\n.r").append(i).append(" { padding: 0.50em; }\n");
+            }
+            return sb.toString();
+        }
+
+        @Test
+        void withoutLimitsMatchesMinify() {
+            assertEquals(CssMinifier.minify(CSS), CssMinifier.minify(CSS, MinifyOptions.defaults()));
+            MinifyOptions generous = MinifyOptions.defaults().withTimeout(java.time.Duration.ofMinutes(1))
+                .withCancellation(new MinifyOptions.CancellationToken());
+            assertEquals(CssMinifier.minify(CSS), CssMinifier.minify(CSS, generous));
+        }
+
+        @Test
+        void expiredTimeoutThrows() {
+            MinifyOptions options = MinifyOptions.defaults().withTimeout(java.time.Duration.ZERO);
+            MinifyTimeoutException e = assertThrows(MinifyTimeoutException.class, () -> CssMinifier.minify(CSS, options));
+            assertEquals(CssMinifier.Stage.STRIP_COMMENTS, e.stage());
+            assertEquals(java.time.Duration.ZERO, e.timeout());
+        }
+
+        @Test
+        void timeoutStopsValueRewritesOnInputWithoutQuotes() {
+            // Already minified and quote-free: optimizeValues gets the whole stylesheet as one segment
+            String css = "a{b:" + "0px ".repeat(200_000).strip() + "}";
+            MinifyOptions options = MinifyOptions.defaults().withTimeout(java.time.Duration.ofMillis(20));
+            long start = System.nanoTime();
+            MinifyTimeoutException e = assertThrows(MinifyTimeoutException.class, () -> CssMinifier.minify(css, options));
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals(CssMinifier.Stage.OPTIMIZE_VALUES, e.stage());
+            assertTrue(millis < 1_000, "stopped after " + millis + " ms");
+        }
+
+        @Test
+        void expiredTimeoutReturnsInputWhenBestEffort() {
+            MinifyOptions options = MinifyOptions.defaults().withTimeout(java.time.Duration.ZERO).bestEffort();
+            assertEquals(CSS, CssMinifier.minify(CSS, options));
+        }
+
+        @Test
+        void bestEffortReturnsOutputOfACompletedStage() {
+            String css = large();
+            java.util.List<String> stages = new java.util.ArrayList<>();
+            stages.add(css);
+            stages.add(CssMinifier.stripComments(stages.getLast()));
+            stages.add(CssMinifier.collapseWhitespace(stages.getLast()));
+            stages.add(CssMinifier.optimizeValues(stages.getLast()));
+            stages.add(CssMinifier.optimizeQuotedTokens(stages.getLast()));
+            stages.add(CssMinifier.collapseShorthand(stages.getLast()));
+            stages.add(CssMinifier.removeDuplicateProperties(stages.getLast()));
+            stages.add(CssMinifier.mergeAdjacentRules(stages.getLast()));
+            assertEquals(CssMinifier.minify(css), stages.getLast());
+
+            // Wherever the budget runs out, the result is what some prefix of the pipeline produces
+            for (int millis : new int[] {1, 2, 5, 10, 20, 50, 100, 60_000}) {
+                MinifyOptions options = MinifyOptions.defaults().withTimeout(java.time.Duration.ofMillis(millis)).bestEffort();
+                String result = CssMinifier.minify(css, options);
+                assertTrue(stages.contains(result), "timeout " + millis + " ms");
+            }
+        }
+
+        @Test
+        void cancelledTokenThrows() {
+            MinifyOptions.CancellationToken token = new MinifyOptions.CancellationToken();
+            token.cancel();
+            MinifyOptions options = MinifyOptions.defaults().withCancellation(token).bestEffort();
+            assertThrows(java.util.concurrent.CancellationException.class, () -> CssMinifier.minify(CSS, options));
+        }
+
+        @Test
+        void cancellationStopsRunningCall() throws Exception {
+            String css = large();
+            MinifyOptions.CancellationToken token = new MinifyOptions.CancellationToken();
+            MinifyOptions options = MinifyOptions.defaults().withCancellation(token);
+            java.util.concurrent.CompletableFuture<String> call =
+                java.util.concurrent.CompletableFuture.supplyAsync(() -> CssMinifier.minify(css, options));
+            token.cancel();
+            java.util.concurrent.ExecutionException e = assertThrows(java.util.concurrent.ExecutionException.class,
+                () -> call.get(10, java.util.concurrent.TimeUnit.SECONDS));
+            assertInstanceOf(java.util.concurrent.CancellationException.class, e.getCause());
+        }
+
+        @Test
+        void rejectsNegativeTimeout() {
+            assertThrows(IllegalArgumentException.class,
+                () -> MinifyOptions.defaults().withTimeout(java.time.Duration.ofMillis(-1)));
+        }
+    }
+
+    // ==================== FLIGHT RECORDER EVENTS ====================
+
+    @Nested
+    class FlightRecorderEvents {
+
+        private java.util.List<jdk.jfr.consumer.RecordedEvent> record(String css, String... events) throws Exception {
+            return record(() -> CssMinifier.minify(css), events);
+        }
+
+        private java.util.List<jdk.jfr.consumer.RecordedEvent> record(org.junit.jupiter.api.function.Executable call,
+                String... events) throws Exception {
+            java.nio.file.Path file = java.nio.file.Files.createTempFile("minify", ".jfr");
+            try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+                for (String event : events) recording.enable(event).withoutThreshold();
+                recording.start();
+                try {
+                    call.execute();
+                } catch (Throwable e) {
+                    throw new AssertionError(e);
+                }
+                recording.stop();
+                recording.dump(file);
+                var names = java.util.List.of(events);
+                return jdk.jfr.consumer.RecordingFile.readAllEvents(file).stream()
+                    .filter(e -> names.contains(e.getEventType().getName()))
+                    .toList();
+            } finally {
+                java.nio.file.Files.deleteIfExists(file);
+            }
+        }
+
+        @Test
+        void recordsOneEventPerMinify() throws Exception {
+            var events = record("a { color: red; }", "cssminifier.Minify");
+            assertEquals(1, events.size());
+            assertEquals(17, events.get(0).getLong("inputLength"));
+            assertEquals(12, events.get(0).getLong("outputLength"));
+        }
+
+        @Test
+        void recordsOneEventPerCallAcrossSlices() throws Exception {
+            String css = "a { color: red; }\n".repeat(200);
+            MinifyOptions bounded = MinifyOptions.defaults().boundedMemory(256);
+            String expected = CssMinifier.minify(css, bounded);
+            var events = record(() -> CssMinifier.minify(css, bounded), "cssminifier.Minify");
+            assertEquals(1, events.size());
+            assertEquals(css.length(), events.get(0).getLong("inputLength"));
+            assertEquals(expected.length(), events.get(0).getLong("outputLength"));
+
+            events = record(() -> CssMinifier.minify(new java.io.StringReader(css), new java.io.StringWriter(), bounded),
+                "cssminifier.Minify");
+            assertEquals(1, events.size());
+            assertEquals(css.length(), events.get(0).getLong("inputLength"));
+            assertEquals(expected.length(), events.get(0).getLong("outputLength"));
+        }
+
+        @Test
+        void recordsCallsThatTimeOut() throws Exception {
+            MinifyOptions options = MinifyOptions.defaults().withTimeout(java.time.Duration.ZERO);
+            var events = record(() -> assertThrows(MinifyTimeoutException.class,
+                () -> CssMinifier.minify("a { color: red; }", options)), "cssminifier.Minify");
+            assertEquals(1, events.size());
+            assertEquals(17, events.get(0).getLong("inputLength"));
+            assertFalse(events.get(0).getBoolean("completed"));
+            assertTrue(record("a { color: red; }", "cssminifier.Minify").get(0).getBoolean("completed"));
+        }
+
+        @Test
+        void recordsPassEventsForStagesThatRan() throws Exception {
+            var events = record("a { margin: 0px; }", "cssminifier.Pass");
+            var stages = events.stream().map(e -> e.getString("stage")).toList();
+            assertEquals(java.util.List.of("stripComments", "collapseWhitespace", "optimizeValues",
+                "removeDuplicateProperties", "mergeAdjacentRules"), stages);
+        }
+
+        @Test
+        void recordsLargeRules() throws Exception {
+            String block = "color:red;".repeat(CssMinifier.LARGE_RULE_LENGTH / 10 + 1);
+            var events = record("a{x:1}.big{" + block + "}", "cssminifier.LargeRule");
+            assertEquals(1, events.size());
+            assertEquals(".big", events.get(0).getString("selector"));
+            assertEquals("color:red".length(), events.get(0).getLong("outputLength"));
+        }
+    }
 }
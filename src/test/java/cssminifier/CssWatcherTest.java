@@ -0,0 +1,99 @@
+package cssminifier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CssWatcherTest {
+
+    @TempDir
+    Path dir;
+
+    private Path src;
+    private Path dist;
+    private CssWatcher watcher;
+    private Thread watching;
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+    @BeforeEach
+    void setUp() throws IOException {
+        src = Files.createDirectories(dir.resolve("src"));
+        dist = dir.resolve("dist");
+        Files.writeString(src.resolve("initial.css"), "a { color: #FFFFFF; }");
+        watcher = new CssWatcher(src, dist, 2, Duration.ofMillis(50), new PrintStream(log, true, StandardCharsets.UTF_8));
+        watcher.start();
+        watching = Thread.ofPlatform().start(() -> {
+            try {
+                watcher.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        watcher.close();
+        watching.join(5000);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "timed out");
+            Thread.sleep(20);
+        }
+    }
+
+    private static String read(Path file) {
+        try {
+            return Files.exists(file) ? Files.readString(file) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Test
+    void minifiesExistingFilesOnStart() throws Exception {
+        await(() -> "a{color:#fff}".equals(read(dist.resolve("initial.css"))));
+    }
+
+    @Test
+    void minifiesChangedAndNewFiles() throws Exception {
+        await(() -> read(dist.resolve("initial.css")) != null);
+        Files.writeString(src.resolve("initial.css"), "a { margin: 0px; }");
+        Files.createDirectories(src.resolve("sub"));
+        Files.writeString(src.resolve("sub/new.css"), "b { color: #000000; }");
+        await(() -> "a{margin:0}".equals(read(dist.resolve("initial.css"))));
+        await(() -> "b{color:#000}".equals(read(dist.resolve("sub/new.css"))));
+    }
+
+    @Test
+    void removesOutputOfDeletedFile() throws Exception {
+        Path output = dist.resolve("initial.css");
+        await(() -> read(output) != null);
+        Files.delete(src.resolve("initial.css"));
+        await(() -> !Files.exists(output));
+    }
+
+    @Test
+    void ignoresOtherFiles() throws Exception {
+        await(() -> read(dist.resolve("initial.css")) != null);
+        Files.writeString(src.resolve("notes.txt"), "x");
+        Files.writeString(src.resolve("last.css"), "c{}");
+        await(() -> read(dist.resolve("last.css")) != null);
+        assertFalse(Files.exists(dist.resolve("notes.txt")));
+    }
+}
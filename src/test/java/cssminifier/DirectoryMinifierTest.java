@@ -0,0 +1,113 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.MalformedInputException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryMinifierTest {
+
+    @TempDir
+    Path dir;
+
+    private Path write(String relative, String content) throws IOException {
+        Path file = dir.resolve(relative);
+        Files.createDirectories(file.getParent());
+        return Files.writeString(file, content);
+    }
+
+    @Test
+    void mirrorsTree() throws IOException {
+        Path source = write("src/theme/buttons.css", "a { color: #FFFFFF; }");
+        DirectoryMinifier minifier = new DirectoryMinifier(dir.resolve("src"), dir.resolve("dist"));
+        DirectoryMinifier.Result result = minifier.minify(source);
+        assertEquals(DirectoryMinifier.Status.WRITTEN, result.status());
+        assertEquals(dir.resolve("dist/theme/buttons.css"), result.output());
+        assertEquals("a{color:#fff}", Files.readString(result.output()));
+    }
+
+    @Test
+    void skipsSourceWithSameContent() throws IOException {
+        Path source = write("src/a.css", "a { color: red; }");
+        DirectoryMinifier minifier = new DirectoryMinifier(dir.resolve("src"), dir.resolve("dist"));
+        minifier.minify(source);
+        Files.writeString(source, "a { color: red; }");
+        assertEquals(DirectoryMinifier.Status.SOURCE_UNCHANGED, minifier.minify(source).status());
+        Files.writeString(source, "a { color: blue; }");
+        assertEquals(DirectoryMinifier.Status.WRITTEN, minifier.minify(source).status());
+    }
+
+    @Test
+    void rewritesOutputThatWasDeleted() throws IOException {
+        Path source = write("src/a.css", "a { color: red; }");
+        DirectoryMinifier minifier = new DirectoryMinifier(dir.resolve("src"), dir.resolve("dist"));
+        Path output = minifier.minify(source).output();
+        Files.delete(output);
+        assertEquals(DirectoryMinifier.Status.WRITTEN, minifier.minify(source).status());
+        assertTrue(Files.exists(output));
+    }
+
+    @Test
+    void keepsOutputWithSameBytes() throws IOException {
+        Path source = write("src/a.css", "a { color: red; }");
+        Path output = write("dist/a.css", "a{color:red}");
+        FileTime old = FileTime.fromMillis(1_000_000);
+        Files.setLastModifiedTime(output, old);
+        DirectoryMinifier minifier = new DirectoryMinifier(dir.resolve("src"), dir.resolve("dist"));
+        assertEquals(DirectoryMinifier.Status.OUTPUT_UNCHANGED, minifier.minify(source).status());
+        assertEquals(old, Files.getLastModifiedTime(output));
+    }
+
+    @Test
+    void rejectsInvalidUtf8() throws IOException {
+        Path source = dir.resolve("a.css");
+        Files.write(source, new byte[] {'a', '{', (byte) 0xff, '}'});
+        DirectoryMinifier minifier = new DirectoryMinifier(dir, dir.resolve("dist"));
+        assertThrows(MalformedInputException.class, () -> minifier.minify(source));
+    }
+
+    @Test
+    void outputTreeInsideSourceTreeIsNotASource() throws IOException {
+        DirectoryMinifier minifier = new DirectoryMinifier(dir, dir.resolve("dist"));
+        assertTrue(minifier.isSource(dir.resolve("a.css")));
+        assertFalse(minifier.isSource(dir.resolve("dist/a.css")));
+        assertFalse(minifier.isSource(dir.resolve("a.scss")));
+        assertFalse(minifier.isSourceDirectory(dir.resolve("dist/sub")));
+    }
+
+    @Test
+    void deleteRemovesOutput() throws IOException {
+        Path source = write("src/a.css", "a{}");
+        DirectoryMinifier minifier = new DirectoryMinifier(dir.resolve("src"), dir.resolve("dist"));
+        Path output = minifier.minify(source).output();
+        Files.delete(source);
+        minifier.delete(source);
+        assertFalse(Files.exists(output));
+    }
+
+    @Test
+    void atomicWriteLeavesNoTemporaryFiles() throws IOException {
+        Path target = dir.resolve("out/a.css");
+        DirectoryMinifier.writeAtomically(target, new byte[] {'x'});
+        DirectoryMinifier.writeAtomically(target, new byte[] {'y'});
+        assertEquals("y", Files.readString(target));
+        try (var files = Files.list(target.getParent())) {
+            assertEquals(1, files.count());
+        }
+    }
+
+    @Test
+    void atomicWriteGivesTheUmaskPermissions() throws IOException {
+        org.junit.jupiter.api.Assumptions.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path target = dir.resolve("out/a.css");
+        DirectoryMinifier.writeAtomically(target, new byte[] {'x'});
+        Path fresh = Files.createFile(dir.resolve("fresh"));
+        assertEquals(Files.getPosixFilePermissions(fresh), Files.getPosixFilePermissions(target));
+    }
+}
@@ -0,0 +1,159 @@
+package cssminifier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MinifierMetricsTest {
+
+    @AfterEach
+    void tearDown() {
+        MinifierMetrics.unregister();
+    }
+
+    // ==================== REGISTRATION ====================
+
+    @Nested
+    class Registration {
+
+        @Test
+        void countsNothingUntilRegistered() {
+            CssMinifier.minify("a { color: red; }");
+            MinifierMetrics metrics = MinifierMetrics.register();
+            assertEquals(0, metrics.getCalls());
+        }
+
+        @Test
+        void registerIsIdempotent() {
+            assertSame(MinifierMetrics.register(), MinifierMetrics.register());
+        }
+
+        @Test
+        void exposesAttributesOverJmx() throws Exception {
+            MinifierMetrics.register();
+            CssMinifier.minify("a { color: red; }");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MinifierMetrics.OBJECT_NAME);
+            assertEquals(1L, server.getAttribute(name, "Calls"));
+            assertEquals(17L, server.getAttribute(name, "BytesIn"));
+            assertEquals(12L, server.getAttribute(name, "BytesOut"));
+            assertTrue((Double) server.getAttribute(name, "LatencyP99Micros") > 0);
+        }
+
+        @Test
+        void unregisterRemovesMBean() throws Exception {
+            MinifierMetrics.register();
+            MinifierMetrics.unregister();
+            assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(MinifierMetrics.OBJECT_NAME)));
+            assertNull(MinifierMetrics.current());
+        }
+    }
+
+    // ==================== COUNTERS ====================
+
+    @Nested
+    class Counters {
+
+        @Test
+        void countsErrors() {
+            MinifierMetrics metrics = MinifierMetrics.register();
+            assertThrows(NullPointerException.class, () -> CssMinifier.minify((String) null));
+            assertEquals(1, metrics.getErrors());
+            assertEquals(0, metrics.getCalls());
+        }
+
+        @Test
+        void countsConcurrentCalls() throws Exception {
+            MinifierMetrics metrics = MinifierMetrics.register();
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            for (int i = 0; i < 400; i++) pool.execute(() -> CssMinifier.minify("a{color:red}"));
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(400, metrics.getCalls());
+            assertEquals(400 * 12, metrics.getBytesIn());
+        }
+
+        @Test
+        void cacheHitRatio() {
+            MinifierMetrics metrics = MinifierMetrics.register();
+            assertEquals(0.0, metrics.getCacheHitRatio());
+            MinifierMetrics.recordCacheHit();
+            MinifierMetrics.recordCacheHit();
+            MinifierMetrics.recordCacheHit();
+            MinifierMetrics.recordCacheMiss();
+            assertEquals(0.75, metrics.getCacheHitRatio());
+        }
+
+        @Test
+        void resetZeroesCounters() {
+            MinifierMetrics metrics = MinifierMetrics.register();
+            CssMinifier.minify("a{color:red}");
+            MinifierMetrics.recordCacheMiss();
+            metrics.reset();
+            assertEquals(0, metrics.getCalls());
+            assertEquals(0, metrics.getCacheMisses());
+            assertEquals(0.0, metrics.getLatencyMaxMicros());
+        }
+    }
+
+    // ==================== HISTOGRAM ====================
+
+    @Nested
+    class Histogram {
+
+        @Test
+        void smallValuesHaveExactBuckets() {
+            for (int v = 0; v < 16; v++) {
+                int index = MinifierMetrics.LogHistogram.bucketIndex(v);
+                assertEquals(v, MinifierMetrics.LogHistogram.lowestValue(index));
+                assertEquals(v, MinifierMetrics.LogHistogram.highestValue(index));
+            }
+        }
+
+        @Test
+        void bucketsCoverValueWithinOneEighth() {
+            long[] values = {16, 17, 100, 1_000, 123_456, 9_999_999, 1L << 40, Long.MAX_VALUE};
+            for (long v : values) {
+                int index = MinifierMetrics.LogHistogram.bucketIndex(v);
+                long low = MinifierMetrics.LogHistogram.lowestValue(index);
+                long high = MinifierMetrics.LogHistogram.highestValue(index);
+                assertTrue(low <= v && v <= high, v + " not in [" + low + ", " + high + "]");
+                assertTrue(high - low <= low / 8, "bucket too wide for " + v);
+            }
+        }
+
+        @Test
+        void bucketsAreContiguous() {
+            for (int i = 0; i < MinifierMetrics.LogHistogram.BUCKETS - 1; i++) {
+                assertEquals(MinifierMetrics.LogHistogram.highestValue(i) + 1, MinifierMetrics.LogHistogram.lowestValue(i + 1));
+            }
+        }
+
+        @Test
+        void percentiles() {
+            MinifierMetrics.LogHistogram histogram = new MinifierMetrics.LogHistogram();
+            for (int v = 1; v <= 1000; v++) histogram.record(v * 1000L);
+            assertEquals(500_000, histogram.percentile(0.5), 500_000 / 8.0);
+            assertEquals(990_000, histogram.percentile(0.99), 990_000 / 8.0);
+            assertEquals(1_000_000, histogram.percentile(1.0));
+            assertEquals(500_500, histogram.mean(), 0.001);
+        }
+
+        @Test
+        void emptyHistogram() {
+            MinifierMetrics.LogHistogram histogram = new MinifierMetrics.LogHistogram();
+            assertEquals(0, histogram.percentile(0.99));
+            assertEquals(0.0, histogram.mean());
+        }
+    }
+}
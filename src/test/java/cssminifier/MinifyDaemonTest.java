@@ -0,0 +1,179 @@
+package cssminifier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MinifyDaemonTest {
+
+    @TempDir
+    Path dir;
+
+    private MinifyDaemon daemon;
+    private Thread serving;
+
+    private Path start(Duration idleTimeout) throws IOException {
+        Path socket = dir.resolve("d.sock");
+        daemon = MinifyDaemon.bind(socket, 2, idleTimeout);
+        serving = Thread.ofPlatform().start(() -> {
+            try {
+                daemon.serve();
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+        });
+        return socket;
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        if (daemon != null) daemon.close();
+        if (serving != null) serving.join(5000);
+    }
+
+    private record Result(int status, String out, String err) {}
+
+    private Result call(Path socket, String stdin, String... args) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = MinifyDaemon.client(SocketChannel.open(UnixDomainSocketAddress.of(socket)), args, dir,
+            new ByteArrayInputStream(stdin.getBytes(StandardCharsets.UTF_8)), out, err);
+        return new Result(status, out.toString(StandardCharsets.UTF_8), err.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void minifiesStdin() throws IOException {
+        Path socket = start(Duration.ofMinutes(1));
+        Result result = call(socket, "a { color: #FFFFFF; }", "-");
+        assertEquals(0, result.status());
+        assertEquals("a{color:#fff}", result.out());
+    }
+
+    @Test
+    void resolvesPathsAgainstClientDirectory() throws IOException {
+        Path socket = start(Duration.ofMinutes(1));
+        Files.writeString(dir.resolve("in.css"), "a { margin: 0px; }");
+        Result result = call(socket, "", "in.css", "out.css");
+        assertEquals(0, result.status());
+        assertTrue(result.out().startsWith("Minified:"));
+        assertEquals("a{margin:0}", Files.readString(dir.resolve("out.css")));
+    }
+
+    @Test
+    void forwardsStatsAndErrors() throws IOException {
+        Path socket = start(Duration.ofMinutes(1));
+        Result stats = call(socket, "a{b:c}", "--stats", "-");
+        assertTrue(stats.err().contains("mergeAdjacentRules"));
+
+        Result usage = call(socket, "");
+        assertEquals(1, usage.status());
+        assertTrue(usage.err().startsWith("Usage:"));
+
+        Result missing = call(socket, "", "missing.css");
+        assertEquals(1, missing.status());
+        assertTrue(missing.err().contains("NoSuchFileException"));
+    }
+
+    @Test
+    void servesConcurrentClients() throws Exception {
+        Path socket = start(Duration.ofMinutes(1));
+        var futures = new java.util.ArrayList<java.util.concurrent.Future<Result>>();
+        try (var clients = java.util.concurrent.Executors.newFixedThreadPool(8)) {
+            for (int i = 0; i < 32; i++) {
+                String css = ".c" + i + " { color: #FFFFFF; }";
+                futures.add(clients.submit(() -> call(socket, css, "-")));
+            }
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(".c" + i + "{color:#fff}", futures.get(i).get().out());
+        }
+    }
+
+    @Test
+    void exitsAndRemovesSocketWhenIdle() throws Exception {
+        Path socket = start(Duration.ofMillis(200));
+        call(socket, "a{}", "-");
+        serving.join(5000);
+        assertFalse(serving.isAlive());
+        assertFalse(Files.exists(socket));
+    }
+
+    @Test
+    void replacesStaleSocketButNotLiveOne() throws IOException {
+        Path socket = dir.resolve("d.sock");
+        Files.createFile(socket);
+        start(Duration.ofMinutes(1));
+        assertEquals("a{}", call(socket, "a{}", "-").out());
+        assertThrows(IOException.class, () -> MinifyDaemon.bind(socket, 1, Duration.ofMinutes(1)));
+    }
+
+    @Test
+    void defaultSocketIsInADirectoryOfTheUser() {
+        assertEquals(Path.of("/run/user/1000", "css-minifier.sock"), MinifyDaemon.defaultSocket("/run/user/1000"));
+        Path fallback = MinifyDaemon.defaultSocket(null);
+        assertEquals(Path.of(System.getProperty("java.io.tmpdir")), fallback.getParent().getParent());
+        assertEquals("css-minifier-" + System.getProperty("user.name"), fallback.getParent().getFileName().toString());
+    }
+
+    @Test
+    void createsAPrivateDirectoryForTheSocket() throws IOException {
+        org.junit.jupiter.api.Assumptions.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path socket = dir.resolve("run/d.sock");
+        try (MinifyDaemon bound = MinifyDaemon.bind(socket, 1, Duration.ofMinutes(1))) {
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(socket.getParent())));
+            assertNotNull(bound);
+        }
+    }
+
+    @Test
+    void refusesADirectoryOthersCanWrite() throws IOException {
+        org.junit.jupiter.api.Assumptions.assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Path socket = start(Duration.ofMinutes(1));
+        Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwxrwxrwx"));
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertNull(MinifyDaemon.connect(socket, new PrintStream(err, true, StandardCharsets.UTF_8)));
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("writable by other users"));
+
+        Path other = dir.resolve("other.sock");
+        IOException e = assertThrows(IOException.class, () -> MinifyDaemon.bind(other, 1, Duration.ofMinutes(1)));
+        assertTrue(e.getMessage().contains("writable by other users"));
+
+        Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+        try (SocketChannel channel = MinifyDaemon.connect(socket, new PrintStream(err, true, StandardCharsets.UTF_8))) {
+            assertNotNull(channel);
+        }
+    }
+
+    @Test
+    void clientRefusesASocketOfAnotherUser() throws IOException {
+        Path socket = start(Duration.ofMinutes(1));
+        try {
+            // Only possible with the privileges to give files away
+            Files.setOwner(socket, dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName("nobody"));
+        } catch (IOException | UnsupportedOperationException e) {
+            org.junit.jupiter.api.Assumptions.abort("cannot change the owner of the socket: " + e);
+        }
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        assertNull(MinifyDaemon.connect(socket, new PrintStream(err, true, StandardCharsets.UTF_8)));
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("belongs to nobody"));
+    }
+
+    @Test
+    void noDaemonMeansNoChannel() throws IOException {
+        assertNull(MinifyDaemon.connect(dir.resolve("none.sock"), new PrintStream(new ByteArrayOutputStream())));
+    }
+}
@@ -0,0 +1,198 @@
+package cssminifier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MinifyExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final Semaphore started = new Semaphore(0);
+    private final Semaphore cancelled = new Semaphore(0);
+    private MinifyExecutor executor;
+
+    /** Runs until released, checking the call's token like the real pipeline does. */
+    private String blocking(String css, MinifyOptions options) {
+        started.release();
+        try {
+            while (!release.await(1, TimeUnit.MILLISECONDS)) {
+                if (options.cancellation().isCancelled()) {
+                    cancelled.release();
+                    throw new CancellationException("Minification cancelled");
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return CssMinifier.minify(css, options);
+    }
+
+    private MinifyExecutor blockingExecutor(int workers, int queueCapacity, MinifyExecutor.Overload overload) {
+        executor = new MinifyExecutor(workers, queueCapacity, overload, this::blocking);
+        return executor;
+    }
+
+    @AfterEach
+    void close() {
+        release.countDown();
+        if (executor != null) executor.close();
+    }
+
+    @Test
+    void minifiesOnAWorker() throws Exception {
+        executor = new MinifyExecutor(2, 4, MinifyExecutor.Overload.REJECT);
+        StringBuilder css = new StringBuilder("a { color: #FFFFFF; }");
+        CompletableFuture<String> future = executor.minify(css, MinifyOptions.defaults());
+        css.setLength(0); // the input was copied
+        assertEquals("a{color:#fff}", future.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void sharedExecutorBehindMinifyAsync() throws Exception {
+        assertEquals("a{margin:0}", CssMinifier.minifyAsync("a { margin: 0px; }", MinifyOptions.defaults()).get(10, TimeUnit.SECONDS));
+        assertEquals(Runtime.getRuntime().availableProcessors(), MinifyExecutor.shared().workers());
+        try (MinifyExecutor shared = MinifyExecutor.shared()) {
+            assertSame(MinifyExecutor.shared(), shared);
+        }
+        assertEquals("a{}", CssMinifier.minifyAsync("a{}", MinifyOptions.defaults()).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void failuresCompleteTheFuture() {
+        executor = new MinifyExecutor(1, 1, MinifyExecutor.Overload.REJECT);
+        CompletableFuture<String> future = executor.minify("a{color:red}",
+            MinifyOptions.defaults().withTimeout(java.time.Duration.ZERO));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(MinifyTimeoutException.class, e.getCause());
+    }
+
+    @Test
+    void rejectsWhenQueueIsFull() throws Exception {
+        blockingExecutor(1, 1, MinifyExecutor.Overload.REJECT);
+        CompletableFuture<String> running = executor.minify("a{}", MinifyOptions.defaults());
+        assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+        CompletableFuture<String> queued = executor.minify("b{}", MinifyOptions.defaults());
+        CompletableFuture<String> rejected = executor.minify("c{}", MinifyOptions.defaults());
+
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+        assertEquals(1, executor.rejectedCalls());
+        assertEquals(1, executor.queueDepth());
+        assertEquals(1, executor.activeWorkers());
+
+        release.countDown();
+        assertEquals("a{}", running.get(10, TimeUnit.SECONDS));
+        assertEquals("b{}", queued.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void waitsForASlotWhenAskedTo() throws Exception {
+        blockingExecutor(1, 1, MinifyExecutor.Overload.QUEUE);
+        CompletableFuture<String> first = executor.minify("a{}", MinifyOptions.defaults());
+        assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+        CompletableFuture<String> second = executor.minify("b{}", MinifyOptions.defaults());
+        CompletableFuture<CompletableFuture<String>> third = CompletableFuture.supplyAsync(
+            () -> executor.minify("c{}", MinifyOptions.defaults()));
+        assertThrows(TimeoutException.class, () -> third.get(200, TimeUnit.MILLISECONDS), "waits while the queue is full");
+        assertEquals(1, executor.queueDepth());
+        assertEquals(0, executor.rejectedCalls());
+
+        release.countDown();
+        assertEquals("a{}", first.get(10, TimeUnit.SECONDS));
+        assertEquals("b{}", second.get(10, TimeUnit.SECONDS));
+        assertEquals("c{}", third.get(10, TimeUnit.SECONDS).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void interruptedWhileWaitingIsRejected() throws Exception {
+        blockingExecutor(1, 0, MinifyExecutor.Overload.QUEUE);
+        executor.minify("a{}", MinifyOptions.defaults());
+        assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+        Thread.currentThread().interrupt();
+        CompletableFuture<String> future = executor.minify("b{}", MinifyOptions.defaults());
+        assertTrue(Thread.interrupted());
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+        assertEquals(1, executor.rejectedCalls());
+    }
+
+    @Test
+    void cancellingTheFutureStopsTheRunningCall() throws Exception {
+        blockingExecutor(1, 1, MinifyExecutor.Overload.REJECT);
+        CompletableFuture<String> future = executor.minify("a{}", MinifyOptions.defaults());
+        assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+        assertTrue(cancelled.tryAcquire(10, TimeUnit.SECONDS), "the running call saw the cancellation");
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    void timingOutTheFutureStopsTheRunningCall() throws Exception {
+        blockingExecutor(1, 1, MinifyExecutor.Overload.REJECT);
+        CompletableFuture<String> future = executor.minify("a{}", MinifyOptions.defaults()).orTimeout(50, TimeUnit.MILLISECONDS);
+        assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+        assertTrue(cancelled.tryAcquire(10, TimeUnit.SECONDS), "the running call saw the timeout");
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertInstanceOf(TimeoutException.class, e.getCause());
+    }
+
+    @Test
+    void completingAQueuedCallFreesItsSlot() throws Exception {
+        blockingExecutor(1, 1, MinifyExecutor.Overload.REJECT);
+        executor.minify("a{}", MinifyOptions.defaults());
+        assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+        CompletableFuture<String> queued = executor.minify("b{}", MinifyOptions.defaults());
+        assertTrue(queued.complete("unminified"));
+        assertEquals(0, executor.queueDepth());
+        CompletableFuture<String> next = executor.minify("c{}", MinifyOptions.defaults());
+        release.countDown();
+        assertEquals("c{}", next.get(10, TimeUnit.SECONDS));
+        assertEquals("unminified", queued.get());
+        assertEquals(1, started.availablePermits(), "the completed call never ran");
+    }
+
+    @Test
+    void cancellingAQueuedCallFreesItsSlot() throws Exception {
+        blockingExecutor(1, 1, MinifyExecutor.Overload.REJECT);
+        executor.minify("a{}", MinifyOptions.defaults());
+        assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+        CompletableFuture<String> queued = executor.minify("b{}", MinifyOptions.defaults());
+        assertTrue(queued.cancel(true));
+        assertEquals(0, executor.queueDepth());
+
+        CompletableFuture<String> next = executor.minify("c{}", MinifyOptions.defaults());
+        release.countDown();
+        assertEquals("c{}", next.get(10, TimeUnit.SECONDS));
+        assertEquals(1, started.availablePermits(), "the cancelled call never ran");
+    }
+
+    @Test
+    void callerTokenStillCancels() throws Exception {
+        blockingExecutor(1, 1, MinifyExecutor.Overload.REJECT);
+        MinifyOptions.CancellationToken token = new MinifyOptions.CancellationToken();
+        CompletableFuture<String> future = executor.minify("a{}", MinifyOptions.defaults().withCancellation(token));
+        assertTrue(started.tryAcquire(10, TimeUnit.SECONDS));
+        token.cancel();
+        assertThrows(CancellationException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertTrue(cancelled.tryAcquire(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void rejectsAfterClose() {
+        executor = new MinifyExecutor(1, 1, MinifyExecutor.Overload.REJECT);
+        executor.close();
+        CompletableFuture<String> future = executor.minify("a{}", MinifyOptions.defaults());
+        assertTrue(future.isCompletedExceptionally());
+        assertEquals(1, executor.rejectedCalls());
+    }
+}
@@ -0,0 +1,279 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MinifyProcessorTest {
+
+    /** Stands in for the publisher upstream of the processor. */
+    private static final class Upstream implements Flow.Subscription {
+        long requested;
+        boolean cancelled;
+
+        @Override
+        public void request(long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private static final class Recorder implements Flow.Subscriber<ByteBuffer> {
+        final List<String> items = new ArrayList<>();
+        Flow.Subscription subscription;
+        Throwable error;
+        boolean completed;
+        private final long initialRequest;
+
+        Recorder(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) subscription.request(initialRequest);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            items.add(StandardCharsets.UTF_8.decode(item).toString());
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+
+        String output() {
+            return String.join("", items);
+        }
+    }
+
+    private static ByteBuffer utf8(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String stylesheet() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("/* rule ").append(i).append(" */\n");
+            sb.append(".a").append(i).append("::before { content: \"\u2192 \u00e9 \ud83d\ude00 }\"; margin: 0px 0px; }\n");
+            sb.append(".a").append(i).append("::before { color: #FFFFFF; }\n");
+            sb.append("@media (min-width: ").append(i).append("px) { .b { padding: 0.50em; } }\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    void sameOutputAsMinifyWhateverTheBufferSizes() {
+        String css = stylesheet();
+        byte[] bytes = css.getBytes(StandardCharsets.UTF_8);
+        // Sizes of 1 and 7 split the multi-byte characters between buffers
+        for (int size : new int[] {1, 7, 100, 8192}) {
+            MinifyProcessor processor = new MinifyProcessor();
+            Recorder recorder = new Recorder(Long.MAX_VALUE);
+            processor.subscribe(recorder);
+            processor.onSubscribe(new Upstream());
+            for (int i = 0; i < bytes.length; i += size) {
+                processor.onNext(ByteBuffer.wrap(Arrays.copyOfRange(bytes, i, Math.min(bytes.length, i + size))));
+            }
+            processor.onComplete();
+            assertTrue(recorder.completed, "size " + size);
+            assertEquals(CssMinifier.minify(css), recorder.output(), "size " + size);
+        }
+    }
+
+    @Test
+    void emitsRulesAsTheyComplete() {
+        MinifyProcessor processor = new MinifyProcessor();
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        processor.subscribe(recorder);
+        processor.onSubscribe(new Upstream());
+
+        processor.onNext(utf8("a { color: red; }\n"));
+        assertEquals("", recorder.output(), "held back: a twin may follow");
+        processor.onNext(utf8("b { margin: 0px; }\nc { pad"));
+        assertEquals("a{color:red}", recorder.output());
+        processor.onNext(utf8("ding: 0; }\nc { border: 0; }"));
+        assertEquals("a{color:red}b{margin:0}", recorder.output());
+        processor.onComplete();
+        assertEquals("a{color:red}b{margin:0}c{padding:0;border:0}", recorder.output());
+    }
+
+    @Test
+    void requestsInputOnlyForOutstandingDemand() {
+        MinifyProcessor processor = new MinifyProcessor();
+        Recorder recorder = new Recorder(0);
+        Upstream upstream = new Upstream();
+        processor.onSubscribe(upstream);
+        processor.subscribe(recorder);
+        assertEquals(0, upstream.requested);
+
+        recorder.subscription.request(1);
+        assertEquals(1, upstream.requested);
+        processor.onNext(utf8("a{color:red}"));
+        assertEquals(2, upstream.requested, "no output yet, so the demand is still open");
+        processor.onNext(utf8("b{color:red}c{color:red}d{color:red}"));
+        assertEquals(List.of("a{color:red}"), recorder.items);
+        assertEquals(2, upstream.requested, "output is pending, so no more input");
+
+        recorder.subscription.request(1);
+        assertEquals(List.of("a{color:red}", "b{color:red}"), recorder.items);
+        assertEquals(2, upstream.requested);
+        recorder.subscription.request(1);
+        assertEquals(List.of("a{color:red}", "b{color:red}", "c{color:red}"), recorder.items);
+        assertEquals(2, upstream.requested, "all output delivered, but no demand left");
+        recorder.subscription.request(1);
+        assertEquals(3, upstream.requested);
+        assertEquals(3, recorder.items.size(), "d is held back until the next rule or the end");
+    }
+
+    @Test
+    void worksWithSubmissionPublisher() throws Exception {
+        String css = stylesheet();
+        byte[] bytes = css.getBytes(StandardCharsets.UTF_8);
+        MinifyProcessor processor = new MinifyProcessor(MinifyOptions.defaults().boundedMemory(1024));
+        StringBuilder out = new StringBuilder();
+        java.util.concurrent.CompletableFuture<Void> done = new java.util.concurrent.CompletableFuture<>();
+        processor.subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                out.append(StandardCharsets.UTF_8.decode(item));
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(null);
+            }
+        });
+        try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+            publisher.subscribe(processor);
+            for (int i = 0; i < bytes.length; i += 500) {
+                publisher.submit(ByteBuffer.wrap(Arrays.copyOfRange(bytes, i, Math.min(bytes.length, i + 500))));
+            }
+        }
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(CssMinifier.minify(css), out.toString());
+    }
+
+    @Test
+    void malformedInputEndsWithError() {
+        MinifyProcessor processor = new MinifyProcessor();
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        Upstream upstream = new Upstream();
+        processor.subscribe(recorder);
+        processor.onSubscribe(upstream);
+        processor.onNext(ByteBuffer.wrap(new byte[] {'a', '{', '}', (byte) 0xff}));
+        assertInstanceOf(CharacterCodingException.class, recorder.error);
+        assertTrue(upstream.cancelled);
+    }
+
+    @Test
+    void truncatedCharacterAtEndIsAnError() {
+        MinifyProcessor processor = new MinifyProcessor();
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        processor.subscribe(recorder);
+        processor.onSubscribe(new Upstream());
+        processor.onNext(ByteBuffer.wrap(new byte[] {'a', '{', '}', (byte) 0xc3}));
+        processor.onComplete();
+        assertInstanceOf(CharacterCodingException.class, recorder.error);
+        assertFalse(recorder.completed);
+    }
+
+    @Test
+    void cancellationTokenEndsWithError() {
+        MinifyOptions.CancellationToken token = new MinifyOptions.CancellationToken();
+        MinifyProcessor processor = new MinifyProcessor(MinifyOptions.defaults().withCancellation(token));
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        Upstream upstream = new Upstream();
+        processor.subscribe(recorder);
+        processor.onSubscribe(upstream);
+        processor.onNext(utf8("a{color:red}"));
+        token.cancel();
+        processor.onNext(utf8("b{color:red}"));
+        assertInstanceOf(CancellationException.class, recorder.error);
+        assertTrue(upstream.cancelled);
+    }
+
+    @Test
+    void cancelCancelsUpstream() {
+        MinifyProcessor processor = new MinifyProcessor();
+        Recorder recorder = new Recorder(1);
+        Upstream upstream = new Upstream();
+        processor.subscribe(recorder);
+        processor.onSubscribe(upstream);
+        recorder.subscription.cancel();
+        assertTrue(upstream.cancelled);
+        processor.onNext(utf8("a{}b{}"));
+        processor.onComplete();
+        assertTrue(recorder.items.isEmpty());
+        assertFalse(recorder.completed);
+    }
+
+    @Test
+    void upstreamErrorIsPassedOn() {
+        MinifyProcessor processor = new MinifyProcessor();
+        Recorder recorder = new Recorder(1);
+        processor.subscribe(recorder);
+        processor.onSubscribe(new Upstream());
+        IllegalStateException failure = new IllegalStateException("disk gone");
+        processor.onError(failure);
+        assertSame(failure, recorder.error);
+    }
+
+    @Test
+    void nonPositiveRequestIsAnError() {
+        MinifyProcessor processor = new MinifyProcessor();
+        Recorder recorder = new Recorder(0);
+        Upstream upstream = new Upstream();
+        processor.subscribe(recorder);
+        processor.onSubscribe(upstream);
+        recorder.subscription.request(0);
+        assertInstanceOf(IllegalArgumentException.class, recorder.error);
+        assertTrue(upstream.cancelled);
+    }
+
+    @Test
+    void rejectsSecondSubscriber() {
+        MinifyProcessor processor = new MinifyProcessor();
+        processor.subscribe(new Recorder(1));
+        Recorder second = new Recorder(1);
+        processor.subscribe(second);
+        assertInstanceOf(IllegalStateException.class, second.error);
+    }
+}
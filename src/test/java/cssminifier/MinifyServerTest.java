@@ -0,0 +1,202 @@
+package cssminifier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MinifyServerTest {
+
+    private static final String CSS = "a { color: #FFFFFF; margin: 0px; }";
+
+    private MinifyServer server;
+    private HttpClient client;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = MinifyServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1 << 20);
+        client = HttpClient.newHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        MinifierMetrics.unregister();
+    }
+
+    private HttpRequest.Builder post(String body) {
+        return HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/"))
+            .POST(HttpRequest.BodyPublishers.ofString(body));
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest request) throws Exception {
+        return client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    @Test
+    void minifiesPostedCss() throws Exception {
+        HttpResponse<byte[]> response = send(post(CSS).build());
+        assertEquals(200, response.statusCode());
+        assertEquals(CssMinifier.minify(CSS), new String(response.body(), StandardCharsets.UTF_8));
+        assertEquals("text/css; charset=utf-8", response.headers().firstValue("Content-Type").orElseThrow());
+    }
+
+    @Test
+    void answersMatchingIfNoneMatchWithNotModified() throws Exception {
+        String etag = send(post(CSS).build()).headers().firstValue("ETag").orElseThrow();
+        HttpResponse<byte[]> response = send(post(CSS).header("If-None-Match", etag).build());
+        assertEquals(304, response.statusCode());
+        assertEquals(0, response.body().length);
+    }
+
+    @Test
+    void gzipHasItsOwnEtag() throws Exception {
+        String plain = send(post(CSS).build()).headers().firstValue("ETag").orElseThrow();
+        HttpResponse<byte[]> gzipped = send(post(CSS).header("Accept-Encoding", "gzip").build());
+        String gzip = gzipped.headers().firstValue("ETag").orElseThrow();
+        assertEquals(plain.substring(0, plain.length() - 1) + "-gzip\"", gzip);
+        // Either tag validates either coding: the content is the same
+        assertEquals(304, send(post(CSS).header("If-None-Match", gzip).build()).statusCode());
+        HttpResponse<byte[]> notModified = send(post(CSS).header("If-None-Match", plain).header("Accept-Encoding", "gzip").build());
+        assertEquals(304, notModified.statusCode());
+        assertEquals(gzip, notModified.headers().firstValue("ETag").orElseThrow());
+    }
+
+    @Test
+    void differentCssHasDifferentEtag() throws Exception {
+        String first = send(post(CSS).build()).headers().firstValue("ETag").orElseThrow();
+        String second = send(post("b{}").build()).headers().firstValue("ETag").orElseThrow();
+        assertNotEquals(first, second);
+        assertEquals(200, send(post("b{}").header("If-None-Match", first).build()).statusCode());
+    }
+
+    @Test
+    void servesGzipWhenAccepted() throws Exception {
+        HttpResponse<byte[]> response = send(post(CSS).header("Accept-Encoding", "br, gzip").build());
+        assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElseThrow());
+        byte[] plain = new GZIPInputStream(new ByteArrayInputStream(response.body())).readAllBytes();
+        assertEquals(CssMinifier.minify(CSS), new String(plain, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void servesIdentityWhenGzipRefused() throws Exception {
+        HttpResponse<byte[]> response = send(post(CSS).header("Accept-Encoding", "gzip;q=0").build());
+        assertTrue(response.headers().firstValue("Content-Encoding").isEmpty());
+        assertEquals(CssMinifier.minify(CSS), new String(response.body(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void countsCacheHits() throws Exception {
+        MinifierMetrics metrics = MinifierMetrics.register();
+        send(post(CSS).build());
+        send(post(CSS).build());
+        send(post(CSS).header("Accept-Encoding", "gzip").build());
+        assertEquals(1, metrics.getCacheMisses());
+        assertEquals(2, metrics.getCacheHits());
+        assertEquals(1, metrics.getCalls());
+    }
+
+    @Test
+    void streamsMissesAndSendsHitsWithTheirLength() throws Exception {
+        StringBuilder css = new StringBuilder();
+        for (int i = 0; css.length() < 300_000; i++) css.append(".c").append(i).append(" { color: #FFFFFF; margin: 0px; }\n");
+        StringWriter expected = new StringWriter();
+        CssMinifier.minify(new StringReader(css.toString()), expected, MinifyOptions.defaults());
+
+        HttpResponse<byte[]> miss = send(post(css.toString()).build());
+        assertEquals("chunked", miss.headers().firstValue("Transfer-Encoding").orElseThrow());
+        assertEquals(expected.toString(), new String(miss.body(), StandardCharsets.UTF_8));
+
+        HttpResponse<byte[]> hit = send(post(css.toString()).build());
+        assertEquals(miss.body().length, hit.headers().firstValueAsLong("Content-Length").orElseThrow());
+        assertArrayEquals(miss.body(), hit.body());
+
+        HttpResponse<byte[]> gzipped = send(post(css + "b{}").header("Accept-Encoding", "gzip").build());
+        assertEquals("chunked", gzipped.headers().firstValue("Transfer-Encoding").orElseThrow());
+        byte[] plain = new GZIPInputStream(new ByteArrayInputStream(gzipped.body())).readAllBytes();
+        assertEquals(expected + "b{}", new String(plain, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void outputLargerThanTheCacheIsServedButNotKept() throws Exception {
+        MinifyServer small = MinifyServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 8);
+        try {
+            String expected = CssMinifier.minify(CSS);
+            MinifierMetrics metrics = MinifierMetrics.register();
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + small.port() + "/"))
+                .POST(HttpRequest.BodyPublishers.ofString(CSS)).build();
+            assertEquals(expected, new String(send(request).body(), StandardCharsets.UTF_8));
+            assertEquals(expected, new String(send(request).body(), StandardCharsets.UTF_8));
+            assertEquals(2, metrics.getCacheMisses());
+            assertEquals(2, metrics.getCalls());
+        } finally {
+            small.stop(0);
+        }
+    }
+
+    @Test
+    void failureWhileStreamingTruncatesTheResponse() throws Exception {
+        MinifyServer failing = MinifyServer.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1 << 20,
+            (in, out) -> {
+                out.write("a{}".repeat(50_000));
+                out.flush();
+                throw new IllegalStateException("failed mid-stream");
+            });
+        try {
+            for (String coding : new String[] {"identity", "gzip"}) {
+                HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + failing.port() + "/"))
+                    .header("Accept-Encoding", coding).POST(HttpRequest.BodyPublishers.ofString(CSS)).build();
+                HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                assertEquals(200, response.statusCode());
+                try (InputStream body = response.body()) {
+                    assertThrows(IOException.class, body::readAllBytes, coding + ": no terminating chunk");
+                }
+            }
+        } finally {
+            failing.stop(0);
+        }
+    }
+
+    @Test
+    void rejectsOtherMethods() throws Exception {
+        HttpResponse<byte[]> response = send(HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/")).GET().build());
+        assertEquals(405, response.statusCode());
+        assertEquals("POST", response.headers().firstValue("Allow").orElseThrow());
+    }
+
+    @Test
+    void emptyBody() throws Exception {
+        HttpResponse<byte[]> response = send(post("").build());
+        assertEquals(200, response.statusCode());
+        assertEquals(0, response.body().length);
+    }
+
+    @Test
+    void cacheEvictsLeastRecentlyUsed() {
+        MinifyServer.OutputCache cache = new MinifyServer.OutputCache(10);
+        cache.put("a", new MinifyServer.Output(new byte[4]));
+        cache.put("b", new MinifyServer.Output(new byte[4]));
+        cache.get("a");
+        cache.put("c", new MinifyServer.Output(new byte[4]));
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        cache.put("huge", new MinifyServer.Output(new byte[11]));
+        assertEquals(2, cache.size());
+    }
+}
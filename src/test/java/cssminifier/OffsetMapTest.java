@@ -0,0 +1,109 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffsetMapTest {
+
+    @Test
+    void copiesMapCharacterForCharacterAndWritesToWhereTheyStand() {
+        // "a{top:0px}" -> "a{top:0}" -> ... with "0" written for "0px"
+        OffsetMap map = new OffsetMap();
+        map.copy(0, 0);
+        map.write(6, 6);
+        map.copy(7, 9);
+        assertEquals(0, map.map(0));
+        assertEquals(2, map.map(2));
+        assertEquals(6, map.map(6));
+        assertEquals(9, map.map(7));
+    }
+
+    @Test
+    void aCopyContinuingTheRunBeforeAddsNothing() {
+        OffsetMap map = new OffsetMap();
+        map.copy(0, 0);
+        map.copy(5, 5);
+        map.copy(5, 8); // the run at 5 was empty
+        assertEquals(4, map.map(4));
+        assertEquals(8, map.map(5));
+        assertEquals(10, map.map(7));
+    }
+
+    @Test
+    void followComposesPassesBackToTheOriginalInput() {
+        OffsetMap offsets = OffsetMap.identity();
+        OffsetMap step = new OffsetMap();
+        // Pass 1 drops input [1, 3) and [7, 9)
+        step.copy(0, 0);
+        step.copy(1, 3);
+        step.copy(5, 9);
+        offsets.follow(step);
+        // Pass 2 writes output [2, 4) for its input at 2, and drops its input [4, 6)
+        step = new OffsetMap();
+        step.copy(0, 0);
+        step.write(2, 2);
+        step.copy(4, 6);
+        offsets.follow(step);
+
+        assertEquals(0, offsets.map(0));
+        assertEquals(3, offsets.map(1));
+        assertEquals(4, offsets.map(2)); // written for pass 1's output at 2, the input at 4
+        assertEquals(4, offsets.map(3));
+        assertEquals(10, offsets.map(4)); // pass 1's output at 6 is the input at 10
+
+        int[] all = {0, 1, 2, 3, 4};
+        offsets.mapAll(all, all.length);
+        assertArrayEquals(new int[] {0, 3, 4, 4, 10}, all);
+    }
+
+    @Test
+    void aPartIsComposedIntoOneLevelWhenAppended() {
+        // A segment rewritten twice: "0px 0.5em" -> "0 0.5em" -> "0 .5em"
+        OffsetMap part = OffsetMap.identity();
+        OffsetMap step = new OffsetMap();
+        step.copy(0, 0);
+        step.copy(1, 3);
+        part.follow(step);
+        step = new OffsetMap();
+        step.copy(0, 0);
+        step.copy(2, 3);
+        part.follow(step);
+
+        OffsetMap map = new OffsetMap();
+        map.copy(0, 0);
+        map.append(part, 4, 4);
+        assertEquals(4, map.map(4));
+        assertEquals(7, map.map(5));  // the space after "0px"
+        assertEquals(9, map.map(6)); // ".5em" is "0.5em" from its '.'
+    }
+
+    @Test
+    void appendedPartsAreShifted() {
+        OffsetMap part = new OffsetMap();
+        part.copy(0, 0);
+        part.write(3, 5);
+        OffsetMap map = new OffsetMap();
+        map.copy(0, 0);
+        map.append(part, 10, 20);
+        map.copy(15, 40);
+        assertEquals(9, map.map(9));
+        assertEquals(22, map.map(12));
+        assertEquals(25, map.map(14));
+        assertEquals(41, map.map(16));
+    }
+
+    @Test
+    void truncateAndTrimStartDropWhatThePassTookBack() {
+        OffsetMap map = new OffsetMap();
+        map.copy(0, 0);
+        map.copy(4, 10);
+        map.truncate(4);
+        map.copy(4, 20);
+        assertEquals(20, map.map(4));
+
+        map.trimStart(2);
+        assertEquals(2, map.map(0));
+        assertEquals(20, map.map(2));
+    }
+}
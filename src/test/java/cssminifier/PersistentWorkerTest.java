@@ -0,0 +1,169 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentWorkerTest {
+
+    @TempDir
+    Path dir;
+
+    private List<Map<?, ?>> serve(String requests) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        new PersistentWorker(new ByteArrayInputStream(requests.getBytes(StandardCharsets.UTF_8)), out,
+            new PrintStream(log, true, StandardCharsets.UTF_8), 4).run();
+        PersistentWorker.JsonReader reader = new PersistentWorker.JsonReader(new StringReader(out.toString(StandardCharsets.UTF_8)));
+        List<Map<?, ?>> responses = new ArrayList<>();
+        while (true) {
+            try {
+                responses.add((Map<?, ?>) reader.read());
+            } catch (EOFException e) {
+                return responses;
+            }
+        }
+    }
+
+    private String request(long id, String... args) {
+        StringBuilder sb = new StringBuilder("{\"arguments\":[");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) sb.append(',');
+            PersistentWorker.JsonReader.quote(args[i], sb);
+        }
+        sb.append("],\"requestId\":").append(id).append(",\"sandboxDir\":");
+        PersistentWorker.JsonReader.quote(dir.toString(), sb);
+        return sb.append("}\n").toString();
+    }
+
+    // ==================== PROTOCOL ====================
+
+    @Nested
+    class Protocol {
+
+        @Test
+        void singleplexRequestsAnswerInOrder() throws IOException {
+            Files.writeString(dir.resolve("a.css"), "a { color: #FFFFFF; }");
+            Files.writeString(dir.resolve("b.css"), "b { margin: 0px; }");
+            List<Map<?, ?>> responses = serve(request(0, "a.css", "a.min.css") + request(0, "b.css", "b.min.css"));
+            assertEquals(2, responses.size());
+            for (Map<?, ?> response : responses) {
+                assertEquals(0L, response.get("exitCode"));
+                assertEquals("", response.get("output"));
+                assertEquals(0L, response.get("requestId"));
+            }
+            assertEquals("a{color:#fff}", Files.readString(dir.resolve("a.min.css")));
+            assertEquals("b{margin:0}", Files.readString(dir.resolve("b.min.css")));
+        }
+
+        @Test
+        void multiplexResponsesAreTagged() throws IOException {
+            StringBuilder requests = new StringBuilder();
+            for (int i = 1; i <= 20; i++) {
+                Files.writeString(dir.resolve(i + ".css"), ".c" + i + " { color: #FFFFFF; }");
+                requests.append(request(i, i + ".css", i + ".min.css"));
+            }
+            List<Map<?, ?>> responses = serve(requests.toString());
+            assertEquals(20, responses.size());
+            java.util.Set<Object> ids = new java.util.HashSet<>();
+            for (Map<?, ?> response : responses) {
+                assertEquals(0L, response.get("exitCode"));
+                ids.add(response.get("requestId"));
+            }
+            assertEquals(20, ids.size());
+            for (int i = 1; i <= 20; i++) {
+                assertEquals(".c" + i + "{color:#fff}", Files.readString(dir.resolve(i + ".min.css")));
+            }
+        }
+
+        @Test
+        void expandsArgumentFiles() throws IOException {
+            Files.writeString(dir.resolve("a.css"), "a { color: red; }");
+            Files.writeString(dir.resolve("args.params"), "a.css\na.min.css\n");
+            List<Map<?, ?>> responses = serve(request(0, "@args.params"));
+            assertEquals(0L, responses.get(0).get("exitCode"));
+            assertEquals("a{color:red}", Files.readString(dir.resolve("a.min.css")));
+        }
+
+        @Test
+        void reportsFailuresInOutput() throws IOException {
+            Map<?, ?> response = serve(request(7, "missing.css", "out.css")).get(0);
+            assertEquals(1L, response.get("exitCode"));
+            assertEquals(7L, response.get("requestId"));
+            assertTrue(((String) response.get("output")).contains("NoSuchFileException"));
+        }
+
+        @Test
+        void acceptsRequestsSpanningLines() throws IOException {
+            Files.writeString(dir.resolve("a.css"), "a{}");
+            String request = request(3, "a.css", "out.css").replace(",", ",\n  ").replace("{", "{\n");
+            Map<?, ?> response = serve(request + "\n\n").get(0);
+            assertEquals(0L, response.get("exitCode"));
+            assertEquals(3L, response.get("requestId"));
+        }
+
+        @Test
+        void verbosityAddsTiming() throws IOException {
+            Files.writeString(dir.resolve("a.css"), "a{}");
+            String request = request(0, "a.css", "out.css").replace("\"requestId\"", "\"verbosity\":10,\"requestId\"");
+            String output = (String) serve(request).get(0).get("output");
+            assertTrue(output.startsWith("Minified:"), output);
+            assertTrue(output.contains(" ms"), output);
+        }
+    }
+
+    // ==================== JSON ====================
+
+    @Nested
+    class Json {
+
+        private Object parse(String json) throws IOException {
+            return new PersistentWorker.JsonReader(new StringReader(json)).read();
+        }
+
+        @Test
+        void parsesValues() throws IOException {
+            assertEquals(Map.of("a", List.of(1L, -2.5, true, false), "b", "x"), parse(" {\"a\": [1, -2.5, true, false], \"b\": \"x\"} "));
+            assertNull(parse("null"));
+            assertEquals(List.of(), parse("[]"));
+            assertEquals(Map.of(), parse("{}"));
+        }
+
+        @Test
+        void parsesEscapes() throws IOException {
+            assertEquals("q\"b\\s/\n\t\u00e9", parse("\"q\\\"b\\\\s\\/\\n\\t\\u00e9\""));
+        }
+
+        @Test
+        void quoteRoundTrips() throws IOException {
+            String s = "a \"b\" \\c\n\r\t\u0001 é";
+            StringBuilder sb = new StringBuilder();
+            PersistentWorker.JsonReader.quote(s, sb);
+            assertEquals(s, parse(sb.toString()));
+        }
+
+        @Test
+        void rejectsMalformedInput() {
+            assertThrows(IOException.class, () -> parse("{\"a\" 1}"));
+            assertThrows(IOException.class, () -> parse("[1 2]"));
+            assertThrows(IOException.class, () -> parse("\"open"));
+            assertThrows(IOException.class, () -> parse("tru"));
+            assertThrows(EOFException.class, () -> parse("   "));
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SourceMapGeneratorTest {
+
+    @TempDir
+    Path dir;
+
+    /** A decoded segment: generated line and column, original line and column. */
+    private record Segment(int line, int column, int sourceLine, int sourceColumn) {}
+
+    private static List<Segment> decode(String map) {
+        String mappings = map.substring(map.indexOf("\"mappings\":\"") + 12, map.lastIndexOf('"'));
+        List<Segment> segments = new ArrayList<>();
+        int line = 0;
+        int[] state = new int[4]; // column, source, source line, source column
+        int[] field = new int[1];
+        int i = 0;
+        while (i < mappings.length()) {
+            char c = mappings.charAt(i);
+            if (c == ';') {
+                line++;
+                state[0] = 0;
+                i++;
+                continue;
+            }
+            if (c == ',') {
+                i++;
+                continue;
+            }
+            for (int f = 0; f < 4; f++) {
+                i = readVlq(mappings, i, field);
+                state[f] += field[0];
+            }
+            segments.add(new Segment(line, state[0], state[2], state[3]));
+        }
+        return segments;
+    }
+
+    private static int readVlq(String s, int i, int[] out) {
+        int value = 0;
+        int shift = 0;
+        int digit;
+        do {
+            digit = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".indexOf(s.charAt(i++));
+            value |= (digit & 31) << shift;
+            shift += 5;
+        } while ((digit & 32) != 0);
+        out[0] = (value & 1) != 0 ? -(value >>> 1) : value >>> 1;
+        return i;
+    }
+
+    /** The text at a line and column, up to the next structural character. */
+    private static String tokenAt(String text, int line, int column) {
+        return tokenAt(text, lineStarts(text), line, column);
+    }
+
+    private static String tokenAt(String text, List<Integer> lineStarts, int line, int column) {
+        int from = lineStarts.get(line) + column;
+        int end = from;
+        while (end < text.length() && "{};:".indexOf(text.charAt(end)) < 0) end++;
+        return text.substring(from, end).replaceAll("\\s+", "");
+    }
+
+    private static List<Integer> lineStarts(String text) {
+        List<Integer> starts = new ArrayList<>(List.of(0));
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) starts.add(i + 1);
+        return starts;
+    }
+
+    private static List<String> pairs(String css) {
+        CssMinifier.SourceMapResult result = CssMinifier.minifyWithSourceMap(css, "in.css");
+        String output = result.css();
+        List<String> pairs = new ArrayList<>();
+        for (Segment s : decode(result.sourceMap())) {
+            pairs.add(tokenAt(output, s.line(), s.column()) + " <- " + tokenAt(css, s.sourceLine(), s.sourceColumn())
+                + "@" + s.sourceLine() + ":" + s.sourceColumn());
+        }
+        return pairs;
+    }
+
+    @Test
+    void vlqEncoding() {
+        SourceMapGenerator.Mappings mappings = new SourceMapGenerator.Mappings(1);
+        for (int v : new int[] {0, 1, -1, 15, 16, -16, 123, 1 << 20}) {
+            mappings.appendVlq(v);
+            mappings.append(' ');
+        }
+        assertEquals("A C D e gB hB 2H ggggC ", mappings.toString());
+    }
+
+    @Test
+    void mapsRulesAndDeclarations() {
+        String css = "/* header */\n.nav > li {\n  color: #FFFFFF;\n  margin: 0px;\n}\n\n@media print {\n  a[href='x'] { display: none; }\n}\n";
+        assertEquals(List.of(
+            ".nav>li <- .nav>li@1:0",
+            "color <- color@2:2",
+            "margin <- margin@3:2",
+            "@mediaprint <- @mediaprint@6:0",
+            "a[href=x] <- a[href='x']@7:2",
+            "display <- display@7:16"), pairs(css));
+    }
+
+    @Test
+    void mergedRulesMapToTheirOwnDeclarations() {
+        String css = "a { color: red; }\na { margin: 0; }\nb { padding: 0; }";
+        assertEquals(List.of(
+            "a <- a@0:0",
+            "color <- color@0:4",
+            "margin <- margin@1:4",
+            "b <- b@2:0",
+            "padding <- padding@2:4"), pairs(css));
+    }
+
+    @Test
+    void droppedDuplicatesAreSkipped() {
+        String css = "a {\n  color: red;\n  margin: 0;\n  color: blue;\n}\nb { top: 0; }";
+        List<String> pairs = pairs(css);
+        assertTrue(pairs.contains("margin <- margin@2:2"), pairs.toString());
+        assertEquals("b <- b@5:0", pairs.get(pairs.size() - 2));
+    }
+
+    @Test
+    void shorthandMapsToItsFirstLonghand() {
+        String css = "a {\n  margin-top: 0;\n  margin-right: 1px;\n  margin-bottom: 0;\n  margin-left: 1px;\n  color: red;\n}";
+        assertEquals(List.of(
+            "a <- a@0:0",
+            "color <- color@5:2",
+            "margin <- margin-top@1:2"), pairs(css));
+    }
+
+    @Test
+    void everyShorthandOfARuleMapsToItsLonghands() {
+        String css = "a {\n  margin-top: 1px; margin-right: 2px; margin-bottom: 3px; margin-left: 4px;\n  display: block;\n"
+            + "  margin-top: 5px; margin-right: 6px; margin-bottom: 7px; margin-left: 8px;\n  display: flex;\n  opacity: .5;\n"
+            + "  padding-top: 0; padding-right: 0; padding-bottom: 0; padding-left: 0;\n}";
+        assertEquals(List.of(
+            "a <- a@0:0",
+            "display <- display@4:2",
+            "opacity <- opacity@5:2",
+            "margin <- margin-top@3:2",
+            "padding <- padding-top@6:2"), pairs(css));
+    }
+
+    @Test
+    void mergedRulesDropDuplicatesEachOnItsOwn() {
+        String css = ".k {\n  flex: 1;\n  font: a;\n  flex: 2;\n}\n.k {\n  flex: 3;\n  width: -webkit-fill-available;\n  width: 5px;\n}";
+        assertEquals(List.of(
+            ".k <- .k@0:0",
+            "font <- font@2:2",
+            "flex <- flex@3:2",
+            "flex <- flex@6:2",
+            "width <- width@7:2",
+            "width <- width@8:2"), pairs(css));
+    }
+
+    @Test
+    void keyframeSelectorsMapToWhatTheyBecame() {
+        String css = "@keyframes k {\n  from { top: 0 }\n  100% { top: 1px }\n}";
+        assertEquals(List.of(
+            "@keyframesk <- @keyframesk@0:0",
+            "0% <- from@1:2",
+            "top <- top@1:9",
+            "to <- 100%@2:2",
+            "top <- top@2:9"), pairs(css));
+    }
+
+    @Test
+    void rewrittenPreludeMapsToItsSource() {
+        String css = "@media (min-width: 0px) {\n  .a { color: red; }\n}\n.b { color: blue; }";
+        assertEquals(List.of(
+            "@media(min-width <- @media(min-width@0:0",
+            ".a <- .a@1:2",
+            "color <- color@1:7",
+            ".b <- .b@3:0",
+            "color <- color@3:5"), pairs(css));
+    }
+
+    @Test
+    void licenseCommentsAreNotAnchors() {
+        String css = "/*! license { ; } */\na { color: red; }";
+        CssMinifier.SourceMapResult result = CssMinifier.minifyWithSourceMap(css, "in.css");
+        List<Segment> segments = decode(result.sourceMap());
+        assertEquals(new Segment(0, result.css().indexOf("a{"), 1, 0), segments.get(0));
+    }
+
+    @Test
+    void generatedLinesAreCounted() {
+        CssMinifier.SourceMapResult result = CssMinifier.minifyWithSourceMap("a { top: 0 }\nb { content: 'one\ntwo'; top: 0 }", "in.css");
+        assertEquals("a{top:0}b{content:'one\ntwo';top:0}", result.css());
+        assertEquals(List.of(new Segment(0, 0, 0, 0), new Segment(0, 2, 0, 4), new Segment(0, 8, 1, 0), new Segment(0, 10, 1, 4),
+            new Segment(1, 5, 2, 6)), decode(result.sourceMap()));
+    }
+
+    @Test
+    void everyOutputAnchorIsMappedOnALargeStylesheet() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            sb.append(".c").append(i % 97).append(" {\n  color: #FFFFFF;\n  padding: 0px 1px 0px 1px;\n}\n");
+            if (i % 10 == 0) sb.append("@media (max-width: ").append(i).append("px) { .m { top: 0; } }\n");
+        }
+        String css = sb.toString();
+        CssMinifier.SourceMapResult result = CssMinifier.minifyWithSourceMap(css, "big.css");
+        assertEquals(CssMinifier.minify(css), result.css());
+        assertEquals(Stylesheet.parse(result.css()).size(), decode(result.sourceMap()).size());
+        List<Integer> outputLines = lineStarts(result.css());
+        List<Integer> inputLines = lineStarts(css);
+        for (Segment s : decode(result.sourceMap())) {
+            assertEquals(tokenAt(result.css(), outputLines, s.line(), s.column()).replace("px", ""),
+                tokenAt(css, inputLines, s.sourceLine(), s.sourceColumn()).replace("px", ""));
+        }
+    }
+
+    @Test
+    void jsonShape() {
+        String map = CssMinifier.minifyWithSourceMap("a{}", "dir/\"odd\".css").sourceMap();
+        assertEquals("{\"version\":3,\"sources\":[\"dir/\\\"odd\\\".css\"],\"names\":[],\"mappings\":\"AAAA\"}", map);
+    }
+
+    @Test
+    void commandLineWritesMapNextToOutput() throws IOException {
+        Files.createDirectories(dir.resolve("src"));
+        Files.writeString(dir.resolve("src/in.css"), "a {\n  color: red;\n}");
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Files.createDirectories(dir.resolve("dist"));
+        int status = CssMinifier.run(new String[] {"--source-map", "src/in.css", "dist/out.css"}, dir,
+            new ByteArrayInputStream(new byte[0]), new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8),
+            new PrintStream(err, true, StandardCharsets.UTF_8));
+        assertEquals(0, status);
+        assertEquals("a{color:red}\n/*# sourceMappingURL=out.css.map */", Files.readString(dir.resolve("dist/out.css")));
+        assertTrue(Files.readString(dir.resolve("dist/out.css.map")).contains("\"sources\":[\"../src/in.css\"]"));
+    }
+
+    @Test
+    void commandLineNeedsSingleFiles() throws IOException {
+        Files.createDirectories(dir.resolve("src"));
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int status = CssMinifier.run(new String[] {"--source-map", "src", "--out", "dist"}, dir,
+            new ByteArrayInputStream(new byte[0]), new PrintStream(new ByteArrayOutputStream(), true, StandardCharsets.UTF_8),
+            new PrintStream(err, true, StandardCharsets.UTF_8));
+        assertEquals(1, status);
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("--source-map needs an input and an output file"));
+    }
+}
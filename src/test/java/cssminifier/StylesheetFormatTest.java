@@ -0,0 +1,214 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StylesheetFormatTest {
+
+    @TempDir
+    Path dir;
+
+    private static final String CSS = "/* \u00e9 */\n@import url(a.css);\n.a, .b > li { content: \"\u2192\ud83d\ude00\"; margin: 0 !important }\n"
+        + "@media (min-width: 10px) {\n  .c { top: 0 }\n}\nstray: 1; } d { e: f";
+
+    private static byte[] bytes(Stylesheet sheet) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        sheet.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private static void assertSameTree(Stylesheet expected, Stylesheet actual) {
+        assertEquals(expected.source(), actual.source());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Stylesheet.Node e = expected.node(i);
+            Stylesheet.Node a = actual.node(i);
+            assertEquals(e.getClass(), a.getClass());
+            assertEquals(e.start(), a.start());
+            assertEquals(e.end(), a.end());
+            assertEquals(e.children().size(), a.children().size());
+            assertEquals(e.parent() == null ? -1 : e.parent().index(), a.parent() == null ? -1 : a.parent().index());
+            if (e instanceof Stylesheet.Declaration d) {
+                assertEquals(d.value().toString(), ((Stylesheet.Declaration) a).value().toString());
+            }
+        }
+    }
+
+    @Test
+    void roundTrips() throws IOException {
+        for (String css : new String[] {CSS, "", CssMinifier.minify(CSS)}) {
+            Stylesheet sheet = Stylesheet.parse(css);
+            byte[] data = bytes(sheet);
+            assertSameTree(sheet, Stylesheet.read(ByteBuffer.wrap(data)));
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length).put(data).flip();
+            assertSameTree(sheet, Stylesheet.read(direct));
+        }
+    }
+
+    @Test
+    void layout() throws IOException {
+        Stylesheet sheet = Stylesheet.parse("a{b:c}");
+        ByteBuffer data = ByteBuffer.wrap(bytes(sheet)).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("CSST", new String(data.array(), 0, 4, StandardCharsets.US_ASCII));
+        assertEquals(StylesheetFormat.VERSION, data.getInt(4));
+        assertEquals(0, data.getInt(8), "reserved flags");
+        assertEquals(2, data.getInt(12));
+        assertEquals(6, data.getInt(16));
+        assertEquals(StylesheetFormat.HEADER_BYTES + 4 + 5 * 4 * 2 + 6, data.limit());
+    }
+
+    @Test
+    void otherVersionsAndDamageReadAsNull() throws IOException {
+        byte[] data = bytes(Stylesheet.parse(CSS));
+
+        byte[] otherVersion = data.clone();
+        otherVersion[4]++;
+        assertNull(Stylesheet.read(ByteBuffer.wrap(otherVersion)));
+
+        for (int i = 0; i < data.length; i += 7) {
+            if (i >= 4 && i < 8) continue;
+            byte[] damaged = data.clone();
+            damaged[i] ^= 0x10;
+            assertNull(Stylesheet.read(ByteBuffer.wrap(damaged)), "flipped byte " + i);
+        }
+        assertNull(Stylesheet.read(ByteBuffer.wrap(data, 0, data.length - 1)));
+        assertNull(Stylesheet.read(ByteBuffer.wrap(new byte[3])));
+    }
+
+    @Test
+    void treesThatDoNotHoldTogetherReadAsNull() {
+        // a{b:c} d{}: a rule holding a declaration, then an empty rule
+        String css = "a{b:c} d{}";
+        byte[] kinds = {Stylesheet.RULE, Stylesheet.DECLARATION, Stylesheet.RULE};
+        int[][] valid = {{0, 2, 7}, {1, 3, 8}, {6, 5, 10}, {-1, 0, -1}, {2, 2, 3}};
+        assertSameTree(Stylesheet.parse(css), read(css, kinds, valid));
+
+        int[][][] broken = {
+            {{0, 2, 7}, {1, 3, 8}, {6, 5, 10}, {-1, 0, -1}, {2, 1, 3}},  // a subtree ending at its own node
+            {{0, 2, 7}, {1, 3, 8}, {6, 5, 10}, {-1, 0, -1}, {0, 2, 3}},  // ... or before it
+            {{0, 2, 7}, {1, 3, 8}, {6, 5, 10}, {-1, 0, -1}, {2, 2, 4}},  // past the last node
+            {{0, 2, 7}, {1, 3, 8}, {6, 5, 10}, {-1, 0, -1}, {1, 2, 3}},  // a child outside its parent's subtree
+            {{0, 2, 7}, {1, 3, 8}, {6, 5, 10}, {-1, 1, -1}, {2, 2, 3}},  // its own parent
+            {{0, 2, 7}, {1, 3, 8}, {6, 5, 10}, {-1, 0, 1}, {2, 2, 3}},   // a declaration as parent
+            {{0, 2, 7}, {1, 3, 8}, {6, 5, 10}, {-2, 0, -1}, {2, 2, 3}},
+            {{0, -1, 7}, {1, 3, 8}, {6, 5, 10}, {-1, 0, -1}, {2, 2, 3}}, // a negative start
+            {{0, 2, 7}, {1, 3, 8}, {6, 5, 11}, {-1, 0, -1}, {2, 2, 3}},  // an end past the source
+            {{0, 6, 7}, {1, 3, 8}, {6, 5, 10}, {-1, 0, -1}, {2, 2, 3}},  // a start after the end
+            {{0, 2, 7}, {-1, 3, 8}, {6, 5, 10}, {-1, 0, -1}, {2, 2, 3}}, // a rule without '{'
+            {{0, 2, 7}, {1, 3, 11}, {6, 5, 10}, {-1, 0, -1}, {2, 2, 3}}, // ... or with it past the end
+        };
+        for (int k = 0; k < broken.length; k++) {
+            assertNull(read(css, kinds, broken[k]), "case " + k);
+        }
+        assertNull(read(css, new byte[] {Stylesheet.RULE, 7, Stylesheet.RULE}, valid), "unknown kind");
+    }
+
+    /** Encodes the columns as given, with a valid CRC, and reads them back. */
+    private static Stylesheet read(String css, byte[] kinds, int[][] c) {
+        Stylesheet sheet = new Stylesheet(css, kinds.length, kinds, c[0], c[1], c[2], c[3], c[4]);
+        return Stylesheet.read(StylesheetFormat.encode(sheet, 0, 0, 0));
+    }
+
+    @Test
+    void loadWritesTheCacheThenReadsIt() throws IOException {
+        Path source = dir.resolve("a.css");
+        Path cache = dir.resolve("a.css.bin");
+        Files.writeString(source, CSS);
+        Stylesheet parsed = Stylesheet.load(cache, source);
+        assertSameTree(Stylesheet.parse(CSS), parsed);
+        assertTrue(Files.exists(cache));
+
+        // A cache stamped for the source but holding other text proves the second load reads it rather than parsing
+        byte[] bytes = Files.readAllBytes(source);
+        String other = CSS.replace(".a", ".x");
+        ByteBuffer forged = StylesheetFormat.encode(Stylesheet.parse(other), 0, bytes.length, StylesheetFormat.crc32c(bytes));
+        Files.write(cache, forged.array());
+        assertEquals(other, Stylesheet.load(cache, source).source());
+    }
+
+    @Test
+    void loadSeesAnEditThatKeepsSizeAndTimestamp() throws IOException {
+        Path source = dir.resolve("a.css");
+        Path cache = dir.resolve("a.css.bin");
+        Files.writeString(source, "a { top: 0 }");
+        FileTime modified = Files.getLastModifiedTime(source);
+        Stylesheet.load(cache, source);
+
+        // As a second edit within a coarse file system's timestamp granularity would look
+        Files.writeString(source, "b { top: 1 }");
+        Files.setLastModifiedTime(source, modified);
+        assertEquals("b { top: 1 }", Stylesheet.load(cache, source).source());
+        assertEquals("b { top: 1 }", Stylesheet.load(cache, source).source());
+    }
+
+    @Test
+    void loadReturnsTheParseWhenTheCacheCannotBeWritten() throws IOException {
+        Path source = dir.resolve("a.css");
+        Files.writeString(source, CSS);
+        Path cache = dir.resolve("missing").resolve("a.css.bin");
+        assertSameTree(Stylesheet.parse(CSS), Stylesheet.load(cache, source));
+        assertFalse(Files.exists(cache.getParent()));
+
+        Path notADirectory = dir.resolve("file");
+        Files.writeString(notADirectory, "");
+        assertSameTree(Stylesheet.parse(CSS), Stylesheet.load(notADirectory.resolve("a.css.bin"), source));
+    }
+
+    @Test
+    void loadParsesAgainWhenTheSourceChangedOrTheCacheIsStale() throws IOException {
+        Path source = dir.resolve("a.css");
+        Path cache = dir.resolve("a.css.bin");
+        Files.writeString(source, CSS);
+        Stylesheet.load(cache, source);
+
+        Files.writeString(source, "b { top: 0 }");
+        Files.setLastModifiedTime(source, FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() + 2000));
+        assertEquals("b { top: 0 }", Stylesheet.load(cache, source).source());
+
+        byte[] data = Files.readAllBytes(cache);
+        data[4]++; // written by another format version
+        Files.write(cache, data);
+        assertEquals("b { top: 0 }", Stylesheet.load(cache, source).source());
+        assertEquals(StylesheetFormat.VERSION, ByteBuffer.wrap(Files.readAllBytes(cache)).order(ByteOrder.LITTLE_ENDIAN).getInt(4),
+            "the cache was rewritten");
+        try (var files = Files.list(dir)) {
+            assertEquals(2, files.count(), "no temporary files left behind");
+        }
+    }
+
+    @Test
+    void theMinifiedFormGoesBackIntoTheMinifierWithoutAParse() throws IOException {
+        Stylesheet minified = CssMinifier.minify(Stylesheet.parse(CSS));
+        Stylesheet read = Stylesheet.read(ByteBuffer.wrap(bytes(minified)));
+        assertSameTree(minified, read);
+        assertSame(read, CssMinifier.minify(read));
+    }
+
+    @Test
+    void loadMinifiedCachesTheMinifiedForm() throws IOException {
+        Path source = dir.resolve("a.css");
+        Path cache = dir.resolve("a.css.bin");
+        Files.writeString(source, CSS);
+        Stylesheet minified = Stylesheet.loadMinified(cache, source);
+        assertSameTree(CssMinifier.minify(Stylesheet.parse(CSS)), minified);
+        assertEquals(StylesheetFormat.MINIFIED, ByteBuffer.wrap(Files.readAllBytes(cache)).order(ByteOrder.LITTLE_ENDIAN).getInt(8));
+        Stylesheet reloaded = Stylesheet.loadMinified(cache, source);
+        assertSameTree(minified, reloaded);
+        assertSame(reloaded, CssMinifier.minify(reloaded));
+
+        // Each form replaces a cache of the other rather than reading it
+        assertSameTree(Stylesheet.parse(CSS), Stylesheet.load(cache, source));
+        assertSameTree(minified, Stylesheet.loadMinified(cache, source));
+    }
+}
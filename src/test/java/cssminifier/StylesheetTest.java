@@ -0,0 +1,153 @@
+package cssminifier;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StylesheetTest {
+
+    private static List<String> strings(List<? extends CharSequence> views) {
+        List<String> result = new ArrayList<>();
+        for (CharSequence view : views) result.add(view.toString());
+        return result;
+    }
+
+    @Test
+    void rulesAtRulesAndDeclarations() {
+        Stylesheet sheet = Stylesheet.parse(
+            "@import url(a.css);\n/* c { } */\n.a, .b > li { color: red; margin : 0 !important }\n"
+                + "@media (min-width: 10px) {\n  .c { top: 0 }\n}\n");
+        List<Stylesheet.Node> top = sheet.children();
+        assertEquals(3, top.size());
+
+        Stylesheet.AtRule atImport = assertInstanceOf(Stylesheet.AtRule.class, top.get(0));
+        assertEquals("import", atImport.name().toString());
+        assertEquals("url(a.css)", atImport.prelude().toString());
+        assertFalse(atImport.hasBlock());
+        assertTrue(atImport.children().isEmpty());
+
+        Stylesheet.Rule rule = assertInstanceOf(Stylesheet.Rule.class, top.get(1));
+        assertEquals(".a, .b > li", rule.selector().toString());
+        assertEquals(List.of(".a", ".b > li"), strings(rule.selectors()));
+        assertEquals(".a, .b > li { color: red; margin : 0 !important }", rule.text().toString());
+        Stylesheet.Declaration color = (Stylesheet.Declaration) rule.children().get(0);
+        Stylesheet.Declaration margin = (Stylesheet.Declaration) rule.children().get(1);
+        assertEquals("color", color.property().toString());
+        assertEquals("red", color.value().toString());
+        assertFalse(color.important());
+        assertEquals("margin", margin.property().toString());
+        assertEquals("0 !important", margin.value().toString());
+        assertTrue(margin.important());
+        assertEquals(rule, margin.parent());
+
+        Stylesheet.AtRule media = assertInstanceOf(Stylesheet.AtRule.class, top.get(2));
+        assertEquals("media", media.name().toString());
+        assertEquals("(min-width: 10px)", media.prelude().toString());
+        assertTrue(media.hasBlock());
+        Stylesheet.Rule inner = (Stylesheet.Rule) media.children().get(0);
+        assertEquals(".c", inner.selector().toString());
+        assertEquals("top", ((Stylesheet.Declaration) inner.children().get(0)).property().toString());
+        assertNull(media.parent());
+    }
+
+    @Test
+    void flatWalkIsDocumentOrder() {
+        Stylesheet sheet = Stylesheet.parse("a{b:c}@media x{d{e:f;g:h}}i{}");
+        List<String> kinds = new ArrayList<>();
+        for (int i = 0; i < sheet.size(); i++) {
+            Stylesheet.Node node = sheet.node(i);
+            assertEquals(i, node.index());
+            kinds.add(switch (node) {
+                case Stylesheet.Rule r -> "rule " + r.selector();
+                case Stylesheet.AtRule a -> "@" + a.name();
+                case Stylesheet.Declaration d -> d.property() + "=" + d.value();
+            });
+        }
+        assertEquals(List.of("rule a", "b=c", "@media", "rule d", "e=f", "g=h", "rule i"), kinds);
+        assertThrows(IndexOutOfBoundsException.class, () -> sheet.node(sheet.size()));
+    }
+
+    @Test
+    void stringsCommentsAndParenthesesDoNotEndSegments() {
+        Stylesheet sheet = Stylesheet.parse(
+            "a[title='{;}'] { content: \"}\\\";\"; background: url(data:image/png;base64,AA==); /* x; } */ top: 0 }");
+        Stylesheet.Rule rule = (Stylesheet.Rule) sheet.children().get(0);
+        assertEquals("a[title='{;}']", rule.selector().toString());
+        assertEquals(List.of("content", "background", "top"),
+            rule.children().stream().map(d -> ((Stylesheet.Declaration) d).property().toString()).toList());
+        assertEquals("url(data:image/png;base64,AA==)", ((Stylesheet.Declaration) rule.children().get(1)).value().toString());
+    }
+
+    @Test
+    void selectorsSplitOutsideFunctions() {
+        Stylesheet sheet = Stylesheet.parse(":is(a, b) > c, d[x=\",\"], e{}");
+        assertEquals(List.of(":is(a, b) > c", "d[x=\",\"]", "e"),
+            strings(((Stylesheet.Rule) sheet.node(0)).selectors()));
+    }
+
+    @Test
+    void malformedInputIsKeptAsWritten() {
+        Stylesheet sheet = Stylesheet.parse("stray: 1; } a { color: red; b { top: 0");
+        List<Stylesheet.Node> top = sheet.children();
+        assertEquals(2, top.size());
+        assertEquals("stray", ((Stylesheet.Declaration) top.get(0)).property().toString());
+        Stylesheet.Node a = top.get(1);
+        assertEquals(sheet.source().length(), a.end(), "an unclosed block runs to the end");
+        assertEquals(2, a.children().size());
+        assertEquals("top", ((Stylesheet.Declaration) a.children().get(1).children().get(0)).property().toString());
+
+        Stylesheet.Declaration noColon = (Stylesheet.Declaration) Stylesheet.parse("a{oops}").node(1);
+        assertEquals("oops", noColon.property().toString());
+        assertEquals("", noColon.value().toString());
+        assertEquals(0, Stylesheet.parse("").size());
+    }
+
+    @Test
+    void viewsShareTheSource() {
+        String css = "a { color: red }";
+        Stylesheet sheet = Stylesheet.parse(css);
+        assertSame(css, sheet.source());
+        Stylesheet.Declaration color = (Stylesheet.Declaration) sheet.node(1);
+        assertEquals(css.indexOf("color"), color.start());
+        assertEquals(css.lastIndexOf('}'), color.end());
+        assertEquals(sheet.node(1), color);
+    }
+
+    private static String shape(Stylesheet sheet) {
+        StringBuilder shape = new StringBuilder();
+        for (int i = 0; i < sheet.size(); i++) {
+            Stylesheet.Node node = sheet.node(i);
+            Stylesheet.Node parent = node.parent();
+            shape.append(node.getClass().getSimpleName()).append(' ').append(node.start()).append('-')
+                .append(node.end()).append(" in ").append(parent == null ? -1 : parent.index()).append('\n');
+        }
+        return shape.toString();
+    }
+
+    @Test
+    void minifiedNodesAreThoseOfTheOutput() {
+        String[] inputs = {
+            "a { color: red; color: blue } a { top: 0 } b { margin: 0px }",
+            "@media print { a { x: 1; x: 2 } a { y: 3 } } a { z: 1 } a { w: 2; w: 2 }",
+            "a[title='{;}'] { content: \"}\"; content: 'x' } a[title='{;}'] { top: 0 }",
+            "@import url(a.css); a { b: c } @font-face { font-family: x; font-family: y } x { } x { }",
+            "/* lead */ .a { margin: 0 0 0 0; margin: 1px } .a { padding: 0 } @supports (x: y) { .b { c: d } }",
+            "a { b: c } a { d: e } a { f: g; f: g } @media x { a { h: i } } a { j: k }",
+            "a { color: red; b { top: 0 } } a { color: red } c { top: 0",
+        };
+        for (String css : inputs) {
+            Stylesheet minified = CssMinifier.minify(Stylesheet.parse(css));
+            assertEquals(CssMinifier.minify(css), minified.source(), css);
+            assertEquals(shape(Stylesheet.parse(minified.source())), shape(minified), css);
+        }
+    }
+
+    @Test
+    void minifyingMinifiedNodesParsesNothingAgain() {
+        Stylesheet minified = CssMinifier.minify(Stylesheet.parse("a { color: red } a { top: 0 } b { margin: 0 }"));
+        assertSame(minified, CssMinifier.minify(minified));
+    }
+}